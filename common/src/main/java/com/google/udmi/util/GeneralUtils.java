@@ -60,7 +60,7 @@ public class GeneralUtils {
 
   public static final Joiner CSV_JOINER = Joiner.on(", ");
   public static final Joiner NEWLINE_JOINER = Joiner.on("\n");
-  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+  static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
       .enable(SerializationFeature.INDENT_OUTPUT)
       .setDateFormat(new ISO8601DateFormat())
       .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
@@ -126,10 +126,21 @@ public class GeneralUtils {
     return new String(Base64.getDecoder().decode(payload));
   }
 
+  /**
+   * Make a deep copy of an object. Generated schema objects are copied structurally, everything
+   * else goes through a json round-trip.
+   */
   public static <T> T deepCopy(T object) {
     if (object == null) {
       return null;
     }
+    if (SchemaCopier.isCopyable(object.getClass())) {
+      return SchemaCopier.deepCopy(object);
+    }
+    return jsonCopy(object);
+  }
+
+  static <T> T jsonCopy(T object) {
     Class<?> targetClass = object.getClass();
     try {
       @SuppressWarnings("unchecked")
@@ -554,7 +565,21 @@ public class GeneralUtils {
     return added;
   }
 
+  /**
+   * Merge two objects, with the over values taking precedence. Generated schema objects of the
+   * same class are merged structurally, everything else goes through generic json maps.
+   */
   public static <T> T mergeObject(Object under, Object over) {
+    if (under != null && over != null && under.getClass() == over.getClass()
+        && SchemaCopier.isCopyable(under.getClass())) {
+      @SuppressWarnings("unchecked")
+      T t = (T) SchemaCopier.mergeObject(under, over);
+      return t;
+    }
+    return jsonMerge(under, over);
+  }
+
+  static <T> T jsonMerge(Object under, Object over) {
     Map<String, Object> target = JsonUtil.asMap(under);
     mergeObject(target, JsonUtil.asMap(over));
     @SuppressWarnings("unchecked")
@@ -9,20 +9,27 @@ import static com.google.udmi.util.GeneralUtils.toJsonString;
 import static java.util.Objects.requireNonNull;
 
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonParser.Feature;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.json.JsonReadFeature;
 import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.deser.DeserializationProblemHandler;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import com.google.gson.internal.bind.util.ISO8601Utils;
 import com.google.udmi.util.ProperPrinter.OutputFormat;
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.time.Instant;
@@ -31,6 +38,8 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 /**
@@ -54,6 +63,9 @@ public abstract class JsonUtil {
   public static final ObjectMapper TERSE_MAPPER = OBJECT_MAPPER.copy()
       .disable(SerializationFeature.INDENT_OUTPUT);
   private static final String JSON_STRING_LEADER = "\"";
+  private static final String UNKNOWN_PROPERTY_ATTR = "unknown_property";
+  private static final ObjectMapper CONVERTER_MAPPER = STRICT_MAPPER.copy()
+      .addHandler(new UnknownPropertyMarker());
 
   /**
    * Convert the json string to a generic map object.
@@ -136,6 +148,34 @@ public abstract class JsonUtil {
     }
   }
 
+  /**
+   * Make a reusable strict converter for the target class, which converts directly between object
+   * representations without an intermediate json string. Rather than throwing an exception, the
+   * converter returns null if the message has fields not defined by the target class.
+   *
+   * @param targetClass result class
+   * @param <T>         class parameter
+   * @return converter function
+   */
+  public static <T> Function<Object, T> strictConverter(Class<T> targetClass) {
+    ObjectReader reader = CONVERTER_MAPPER.readerFor(
+        requireNonNull(targetClass, "target class is null"));
+    return message -> {
+      if (message == null) {
+        return null;
+      }
+      AtomicBoolean unknownProperty = new AtomicBoolean();
+      try (TokenBuffer buffer = new TokenBuffer(OBJECT_MAPPER, false)) {
+        OBJECT_MAPPER.writeValue(buffer, message);
+        T converted = reader.withAttribute(UNKNOWN_PROPERTY_ATTR, unknownProperty)
+            .readValue(buffer.asParser());
+        return unknownProperty.get() ? null : converted;
+      } catch (Exception e) {
+        throw new RuntimeException("While converting strict to " + targetClass.getName(), e);
+      }
+    };
+  }
+
   public static <T> T fromString(Class<T> targetClass, String messageString) {
     requireNonNull(targetClass, "target class is null");
     try {
@@ -751,4 +791,21 @@ public abstract class JsonUtil {
     }
   }
 
+  /**
+   * Problem handler that marks (rather than fails on) unknown properties, when requested.
+   */
+  private static class UnknownPropertyMarker extends DeserializationProblemHandler {
+
+    @Override
+    public boolean handleUnknownProperty(DeserializationContext ctxt, JsonParser p,
+        JsonDeserializer<?> deserializer, Object beanOrClass, String propertyName)
+        throws IOException {
+      if (ctxt.getAttribute(UNKNOWN_PROPERTY_ATTR) instanceof AtomicBoolean unknownProperty) {
+        unknownProperty.set(true);
+        p.skipChildren();
+        return true;
+      }
+      return false;
+    }
+  }
 }
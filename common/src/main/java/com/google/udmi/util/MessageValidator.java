@@ -7,23 +7,13 @@ import static java.lang.String.format;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.fge.jsonschema.core.exceptions.ProcessingException;
-import com.github.fge.jsonschema.core.load.configuration.LoadingConfiguration;
-import com.github.fge.jsonschema.core.load.download.URIDownloader;
 import com.github.fge.jsonschema.core.report.LogLevel;
 import com.github.fge.jsonschema.core.report.ProcessingMessage;
 import com.github.fge.jsonschema.core.report.ProcessingReport;
-import com.github.fge.jsonschema.main.JsonSchema;
-import com.github.fge.jsonschema.main.JsonSchemaFactory;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Maps;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URI;
-import java.net.URL;
 import java.util.List;
-import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.stream.StreamSupport;
 
@@ -39,8 +29,7 @@ public class MessageValidator {
   private static final List<Pattern> IGNORE_PATTERNS = IGNORE_LIST.stream().map(Pattern::compile)
       .toList();
 
-  private final Map<String, JsonSchema> schemaMap = Maps.newConcurrentMap();
-  private final File schemaRoot;
+  private final SchemaRegistry schemaRegistry;
 
   /**
    * Create a message validator for the given schema root path.
@@ -48,11 +37,7 @@ public class MessageValidator {
    * @param schemaRootPath path to schema
    */
   public MessageValidator(String schemaRootPath) {
-    schemaRoot = new File(schemaRootPath);
-    if (!schemaRoot.isDirectory()) {
-      throw new IllegalStateException(
-          "Could not find schema directory " + schemaRoot.getAbsolutePath());
-    }
+    schemaRegistry = SchemaRegistry.forRoot(new File(schemaRootPath));
   }
 
   /**
@@ -96,9 +81,8 @@ public class MessageValidator {
    * @return list of validation results
    */
   public List<String> validateMessage(String subFolder, String data) {
-    JsonSchema schema = schemaMap.computeIfAbsent(subFolder, this::getSchema);
     try {
-      ProcessingReport report = schema.validate(OBJECT_MAPPER.readTree(data), true);
+      ProcessingReport report = schemaRegistry.validate(subFolder, OBJECT_MAPPER.readTree(data));
       if (report.isSuccess()) {
         return ImmutableList.of();
       }
@@ -109,43 +93,4 @@ public class MessageValidator {
       return ImmutableList.of(ex.getMessage());
     }
   }
-
-  private JsonSchema getSchema(String subFolder) {
-    return getSchema(new File(schemaRoot, subFolder + ".json"));
-  }
-
-  private JsonSchema getSchema(File schemaFile) {
-    try (InputStream schemaStream = new FileInputStream(schemaFile)) {
-      JsonNode rawSchema = OBJECT_MAPPER.readTree(schemaStream);
-      return JsonSchemaFactory.newBuilder()
-          .setLoadingConfiguration(
-              LoadingConfiguration.newBuilder()
-                  .addScheme("file", new RelativeDownloader())
-                  .freeze())
-          .freeze()
-          .getJsonSchema(rawSchema);
-    } catch (Exception e) {
-      throw new RuntimeException("While loading schema " + schemaFile.getAbsolutePath(), e);
-    }
-  }
-
-  class RelativeDownloader implements URIDownloader {
-
-    public static final String FILE_URL_PREFIX = "file:";
-
-    @Override
-    public InputStream fetch(URI source) {
-      String url = source.toString();
-      try {
-        if (!url.startsWith(FILE_URL_PREFIX)) {
-          throw new IllegalStateException("Expected path to start with " + FILE_URL_PREFIX);
-        }
-        String newUrl =
-            FILE_URL_PREFIX + new File(schemaRoot, url.substring(FILE_URL_PREFIX.length()));
-        return (InputStream) (new URL(newUrl)).getContent();
-      } catch (Exception e) {
-        throw new RuntimeException("While loading URL " + url, e);
-      }
-    }
-  }
 }
@@ -0,0 +1,523 @@
+package com.google.udmi.util;
+
+import static java.util.Objects.requireNonNull;
+
+import com.fasterxml.jackson.annotation.JacksonAnnotation;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * Structural copy and merge for the generated schema classes. This produces the same result as
+ * the json round-trip used by {@link GeneralUtils#deepCopy(Object)} and
+ * {@link GeneralUtils#mergeObject(Object, Object)}, but walks the (cached) public fields of the
+ * schema classes directly rather than going through intermediate strings and maps. Any value that
+ * isn't a plain schema structure falls back to a json conversion for just that value.
+ */
+public abstract class SchemaCopier {
+
+  private static final String SCHEMA_PACKAGE = "udmi.schema";
+  private static final String CONDITIONAL_KEY_PREFIX = "?";
+  private static final TypeFactory TYPE_FACTORY = TypeFactory.defaultInstance();
+  private static final JavaType OBJECT_TYPE = TYPE_FACTORY.constructType(Object.class);
+  private static final ClassValue<Optional<SchemaClass>> SCHEMA_CLASSES = new ClassValue<>() {
+    @Override
+    protected Optional<SchemaClass> computeValue(Class<?> type) {
+      return Optional.ofNullable(SchemaClass.from(type));
+    }
+  };
+
+  /**
+   * Round-trip semantics of the json conversion being mirrored. A deep copy is a single direct
+   * round-trip, while a merge goes through clean (NaN-free) generic maps.
+   */
+  private enum Mode {
+    COPY(GeneralUtils.OBJECT_MAPPER),
+    MERGE(JsonUtil.OBJECT_MAPPER);
+
+    private final ObjectMapper mapper;
+
+    Mode(ObjectMapper mapper) {
+      this.mapper = mapper;
+    }
+  }
+
+  /**
+   * Check if the given class is a schema class that can be structurally copied.
+   */
+  public static boolean isCopyable(Class<?> targetClass) {
+    return getSchemaClass(targetClass) != null;
+  }
+
+  /**
+   * Make a deep copy of a schema object, equivalent to {@link GeneralUtils#deepCopy(Object)}.
+   */
+  public static <T> T deepCopy(T object) {
+    if (object == null) {
+      return null;
+    }
+    SchemaClass schemaClass = requireNonNull(getSchemaClass(object.getClass()),
+        "not a copyable schema class " + object.getClass().getName());
+    @SuppressWarnings("unchecked")
+    T copy = (T) copySchema(schemaClass, object, Mode.COPY);
+    return copy;
+  }
+
+  /**
+   * Merge two schema objects of the same class, equivalent to
+   * {@link GeneralUtils#mergeObject(Object, Object)}. Neither of the arguments are modified.
+   */
+  public static <T> T mergeObject(T under, T over) {
+    requireNonNull(under, "merge under object");
+    requireNonNull(over, "merge over object");
+    SchemaClass schemaClass = getSchemaClass(under.getClass());
+    if (schemaClass == null || under.getClass() != over.getClass()) {
+      throw new IllegalArgumentException("Can not merge " + under.getClass().getName()
+          + " with " + over.getClass().getName());
+    }
+    @SuppressWarnings("unchecked")
+    T merged = (T) mergeSchema(schemaClass, under, over);
+    return merged;
+  }
+
+  private static SchemaClass getSchemaClass(Class<?> targetClass) {
+    return SCHEMA_CLASSES.get(targetClass).orElse(null);
+  }
+
+  private static Object copySchema(SchemaClass schemaClass, Object object, Mode mode) {
+    Object copy = schemaClass.newInstance();
+    for (SchemaField schemaField : schemaClass.fields) {
+      Field field = schemaField.field;
+      Object value = getField(field, object);
+      if (value != null) {
+        setField(field, copy, copyValue(schemaField.type, value, mode), mode);
+      }
+    }
+    return copy;
+  }
+
+  private static Object mergeSchema(SchemaClass schemaClass, Object under, Object over) {
+    Object merged = schemaClass.newInstance();
+    for (SchemaField schemaField : schemaClass.fields) {
+      Field field = schemaField.field;
+      Object underValue = getField(field, under);
+      Object overValue = getField(field, over);
+      JavaType type = schemaField.type;
+      if (overValue == null) {
+        if (underValue != null) {
+          setField(field, merged, copyValue(type, underValue, Mode.MERGE), Mode.MERGE);
+        }
+      } else if (underValue == null) {
+        setField(field, merged, copyValue(type, overValue, Mode.MERGE), Mode.MERGE);
+      } else {
+        setField(field, merged, mergeValue(type, underValue, overValue), Mode.MERGE);
+      }
+    }
+    return merged;
+  }
+
+  private static Object mergeValue(JavaType type, Object under, Object over) {
+    Class<?> rawType = type.getRawClass();
+    SchemaClass schemaClass = getSchemaClass(rawType);
+    if (schemaClass != null && under.getClass() == rawType && over.getClass() == rawType) {
+      return mergeSchema(schemaClass, under, over);
+    }
+    if (isStringMap(type, under) && isStringMap(type, over)) {
+      return mergeMap(type, (Map<?, ?>) under, (Map<?, ?>) over);
+    }
+    if (isLeaf(rawType, over) || isCollection(type, over)) {
+      return copyValue(type, over, Mode.MERGE);
+    }
+    return mergeConverted(type, under, over);
+  }
+
+  /**
+   * Merge two maps, following the conditional-key semantics of the generic map merge.
+   */
+  private static Object mergeMap(JavaType type, Map<?, ?> under, Map<?, ?> over) {
+    JavaType valueType = type.getContentType();
+    Map<String, Object> merged = new LinkedHashMap<>();
+    under.forEach((key, value) -> ifNotNullPut(merged, (String) key,
+        ifNotNullCopy(valueType, value)));
+    Set<String> overKeys = new HashSet<>();
+    over.forEach((rawKey, overValue) -> {
+      if (overValue == null) {
+        return;
+      }
+      String key = (String) rawKey;
+      overKeys.add(key);
+      String conditionalKey = CONDITIONAL_KEY_PREFIX + key;
+      Object underValue = merged.get(key);
+      Object underMaybe = merged.get(conditionalKey);
+      if (isMappy(valueType, overValue)) {
+        if (isMappy(valueType, underMaybe)) {
+          merged.put(key, mergeValue(valueType, underMaybe, overValue));
+          merged.remove(conditionalKey);
+        } else if (isMappy(valueType, underValue)) {
+          merged.put(key, mergeValue(valueType, underValue, overValue));
+        } else {
+          merged.put(key, copyValue(valueType, overValue, Mode.MERGE));
+        }
+      } else {
+        merged.put(key, copyValue(valueType, overValue, Mode.MERGE));
+        merged.remove(conditionalKey);
+      }
+    });
+    merged.keySet().removeIf(
+        key -> key.startsWith(CONDITIONAL_KEY_PREFIX) && !overKeys.contains(key));
+    Map<Object, Object> result = newMap(type, null);
+    merged.forEach((key, value) -> ifNotNullPut(result, key, value));
+    return result;
+  }
+
+  /**
+   * Merge values of unknown structure by converting them to generic json objects, which is
+   * exactly what the full json merge does for every value.
+   */
+  private static Object mergeConverted(JavaType type, Object under, Object over) {
+    Object underObject = toGeneric(under);
+    Object overObject = toGeneric(over);
+    if (underObject instanceof Map && overObject instanceof Map) {
+      @SuppressWarnings("unchecked")
+      Map<String, Object> underMap = (Map<String, Object>) underObject;
+      @SuppressWarnings("unchecked")
+      Map<String, Object> overMap = (Map<String, Object>) overObject;
+      GeneralUtils.mergeObject(underMap, overMap);
+      return convert(type, underMap, Mode.MERGE);
+    }
+    return convert(type, overObject, Mode.MERGE);
+  }
+
+  private static Object ifNotNullCopy(JavaType type, Object value) {
+    return value == null ? null : copyValue(type, value, Mode.MERGE);
+  }
+
+  private static <K> void ifNotNullPut(Map<K, Object> map, K key, Object value) {
+    if (value != null) {
+      map.put(key, value);
+    }
+  }
+
+  /**
+   * Check if a (merge-cleaned) value would be represented as a json object.
+   */
+  private static boolean isMappy(JavaType type, Object value) {
+    if (value == null) {
+      return false;
+    }
+    if (value instanceof Map || getSchemaClass(value.getClass()) != null) {
+      return true;
+    }
+    return !isLeaf(type.getRawClass(), value) && !isCollection(type, value)
+        && toGeneric(value) instanceof Map;
+  }
+
+  private static Object copyValue(JavaType type, Object value, Mode mode) {
+    Class<?> rawType = type.getRawClass();
+    if (rawType == Object.class) {
+      return copyGeneric(value, mode);
+    }
+    if (isLeaf(rawType, value)) {
+      return copyLeaf(value, mode);
+    }
+    if (value.getClass() == rawType) {
+      SchemaClass schemaClass = getSchemaClass(rawType);
+      if (schemaClass != null) {
+        return copySchema(schemaClass, value, mode);
+      }
+    }
+    if (isStringMap(type, value)) {
+      JavaType valueType = type.getContentType();
+      Map<Object, Object> copy = newMap(type, null);
+      ((Map<?, ?>) value).forEach((key, entry) -> {
+        if (entry != null) {
+          putEntry(copy, key, copyValue(valueType, entry, mode), mode);
+        }
+      });
+      return copy;
+    }
+    if (isCollection(type, value)) {
+      JavaType elementType = type.getContentType();
+      Collection<Object> copy = newCollection(type, null);
+      ((Collection<?>) value).forEach(
+          element -> copy.add(element == null ? null : copyValue(elementType, element, mode)));
+      return copy;
+    }
+    return convert(type, value, mode);
+  }
+
+  /**
+   * Copy a value of undeclared type, which the json conversion turns into plain json objects.
+   */
+  private static Object copyGeneric(Object value, Mode mode) {
+    if (value instanceof String || value instanceof Boolean || value instanceof Integer) {
+      return value;
+    }
+    if (value instanceof Double && Double.isFinite((Double) value)) {
+      return value;
+    }
+    if (value instanceof Map && ((Map<?, ?>) value).keySet().stream()
+        .allMatch(String.class::isInstance)) {
+      Map<Object, Object> copy = new LinkedHashMap<>();
+      ((Map<?, ?>) value).forEach((key, entry) -> {
+        if (entry != null) {
+          putEntry(copy, key, copyGeneric(entry, mode), mode);
+        }
+      });
+      return copy;
+    }
+    if (value instanceof Collection) {
+      List<Object> copy = new ArrayList<>();
+      ((Collection<?>) value).forEach(
+          element -> copy.add(element == null ? null : copyGeneric(element, mode)));
+      return copy;
+    }
+    return convert(OBJECT_TYPE, value, mode);
+  }
+
+  private static Object copyLeaf(Object value, Mode mode) {
+    if (value instanceof Date) {
+      // Dates are serialized as ISO strings, which only have second resolution.
+      return new Date(Math.floorDiv(((Date) value).getTime(), 1000L) * 1000L);
+    }
+    if (mode == Mode.MERGE && value instanceof Double && ((Double) value).isNaN()) {
+      return null;
+    }
+    return value;
+  }
+
+  private static void putEntry(Map<Object, Object> map, Object key, Object value, Mode mode) {
+    if (value != null || mode == Mode.COPY) {
+      map.put(key, value);
+    }
+  }
+
+  private static void setField(Field field, Object target, Object value, Mode mode) {
+    if (value == null && mode == Mode.MERGE) {
+      return;
+    }
+    try {
+      field.set(target, value);
+    } catch (Exception e) {
+      throw new RuntimeException("While setting field " + field.getName(), e);
+    }
+  }
+
+  private static Object getField(Field field, Object source) {
+    try {
+      return field.get(source);
+    } catch (Exception e) {
+      throw new RuntimeException("While getting field " + field.getName(), e);
+    }
+  }
+
+  /**
+   * Fall back to a json conversion of the value. For a merge, this goes through the intermediate
+   * generic representation, just as the full merge does.
+   */
+  private static Object convert(JavaType type, Object value, Mode mode) {
+    try {
+      ObjectMapper mapper = mode.mapper;
+      if (mode == Mode.MERGE) {
+        value = toGeneric(value);
+      }
+      return mapper.readValue(mapper.writeValueAsString(value), type);
+    } catch (Exception e) {
+      throw new RuntimeException("While converting value to " + type.getTypeName(), e);
+    }
+  }
+
+  /**
+   * Convert a value to its generic json object representation, as used by the merge.
+   */
+  private static Object toGeneric(Object value) {
+    try {
+      ObjectMapper mapper = Mode.MERGE.mapper;
+      return mapper.readValue(mapper.writeValueAsString(value), Object.class);
+    } catch (Exception e) {
+      throw new RuntimeException("While converting value to generic object", e);
+    }
+  }
+
+  /**
+   * Values that are either immutable or trivially copied, and round-trip to the same class.
+   */
+  private static boolean isLeaf(Class<?> rawType, Object value) {
+    Class<?> valueClass = value.getClass();
+    if (valueClass != rawType) {
+      return false;
+    }
+    return valueClass == String.class || valueClass == Boolean.class
+        || valueClass == Integer.class || valueClass == Long.class
+        || valueClass == Double.class || valueClass == Date.class || valueClass.isEnum();
+  }
+
+  private static boolean isStringMap(JavaType type, Object value) {
+    return value instanceof Map && type.isMapLikeType()
+        && newMap(type, () -> null) != null
+        && type.getKeyType().getRawClass() == String.class
+        && ((Map<?, ?>) value).keySet().stream().allMatch(String.class::isInstance);
+  }
+
+  private static boolean isCollection(JavaType type, Object value) {
+    return value instanceof Collection && type.isCollectionLikeType()
+        && newCollection(type, () -> null) != null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<Object, Object> newMap(JavaType type, Supplier<Map<Object, Object>> unknown) {
+    Class<?> rawType = type.getRawClass();
+    if (rawType == Map.class) {
+      return new LinkedHashMap<>();
+    } else if (rawType == SortedMap.class || rawType == TreeMap.class) {
+      return new TreeMap<>();
+    } else if (rawType == HashMap.class) {
+      return new HashMap<>();
+    } else if (rawType == LinkedHashMap.class) {
+      return new LinkedHashMap<>();
+    }
+    if (unknown == null) {
+      throw new IllegalStateException("Unknown map type " + type.getTypeName());
+    }
+    return unknown.get();
+  }
+
+  private static Collection<Object> newCollection(JavaType type,
+      Supplier<Collection<Object>> unknown) {
+    Class<?> rawType = type.getRawClass();
+    if (rawType == List.class || rawType == Collection.class || rawType == ArrayList.class) {
+      return new ArrayList<>();
+    } else if (rawType == Set.class || rawType == HashSet.class) {
+      return new HashSet<>();
+    } else if (rawType == LinkedHashSet.class) {
+      return new LinkedHashSet<>();
+    }
+    if (unknown == null) {
+      throw new IllegalStateException("Unknown collection type " + type.getTypeName());
+    }
+    return unknown.get();
+  }
+
+  /**
+   * Cached field information for a copyable schema class.
+   */
+  private static class SchemaClass {
+
+    private final Constructor<?> constructor;
+    private final List<SchemaField> fields;
+
+    private SchemaClass(Constructor<?> constructor, List<SchemaField> fields) {
+      this.constructor = constructor;
+      this.fields = fields;
+    }
+
+    /**
+     * Check that the class is a plain generated schema class, where json serialization is
+     * exactly the set of public fields, or return null if it's anything more complicated.
+     */
+    static SchemaClass from(Class<?> targetClass) {
+      int modifiers = targetClass.getModifiers();
+      if (!SCHEMA_PACKAGE.equals(targetClass.getPackageName()) || targetClass.isEnum()
+          || targetClass.isInterface() || !Modifier.isPublic(modifiers)
+          || Modifier.isAbstract(modifiers) || targetClass.getSuperclass() != Object.class
+          || hasJacksonAnnotation(targetClass.getDeclaredMethods())) {
+        return null;
+      }
+      List<SchemaField> fields = new ArrayList<>();
+      for (Field field : targetClass.getDeclaredFields()) {
+        int fieldModifiers = field.getModifiers();
+        if (Modifier.isStatic(fieldModifiers)) {
+          continue;
+        }
+        if (!Modifier.isPublic(fieldModifiers) || Modifier.isFinal(fieldModifiers)
+            || Modifier.isTransient(fieldModifiers) || field.isAnnotationPresent(JsonIgnore.class)
+            || fieldType(field) == null) {
+          return null;
+        }
+        // Skip the per-access visibility checks, which are a noticeable part of the copy time.
+        field.setAccessible(true);
+        fields.add(new SchemaField(field, fieldType(field)));
+      }
+      if (fields.isEmpty()) {
+        return null;
+      }
+      try {
+        return new SchemaClass(targetClass.getConstructor(), fields);
+      } catch (NoSuchMethodException e) {
+        return null;
+      }
+    }
+
+    /**
+     * Get the deserialization type of a field, including any collection-type hint, or null
+     * for any other kind of custom deserialization.
+     */
+    private static JavaType fieldType(Field field) {
+      JavaType type = TYPE_FACTORY.constructType(field.getGenericType());
+      JsonDeserialize deserialize = field.getAnnotation(JsonDeserialize.class);
+      if (deserialize == null) {
+        return type;
+      }
+      if (!type.isCollectionLikeType() || deserialize.as() == Void.class
+          || newCollection(TYPE_FACTORY.constructSpecializedType(type, deserialize.as()),
+          () -> null) == null) {
+        return null;
+      }
+      return TYPE_FACTORY.constructSpecializedType(type, deserialize.as());
+    }
+
+    private static boolean hasJacksonAnnotation(Method[] methods) {
+      for (Method method : methods) {
+        for (Annotation annotation : method.getAnnotations()) {
+          if (annotation.annotationType().isAnnotationPresent(JacksonAnnotation.class)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    Object newInstance() {
+      try {
+        return constructor.newInstance();
+      } catch (Exception e) {
+        throw new RuntimeException("While creating instance of " + constructor.getName(), e);
+      }
+    }
+  }
+
+  /**
+   * A copyable field of a schema class, with its resolved deserialization type.
+   */
+  private static class SchemaField {
+
+    private final Field field;
+    private final JavaType type;
+
+    private SchemaField(Field field, JavaType type) {
+      this.field = field;
+      this.type = type;
+    }
+  }
+}
@@ -0,0 +1,216 @@
+package com.google.udmi.util;
+
+import static com.google.udmi.util.GeneralUtils.ifTrueThen;
+import static java.lang.String.format;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.fge.jsonschema.core.exceptions.ProcessingException;
+import com.github.fge.jsonschema.core.load.configuration.LoadingConfiguration;
+import com.github.fge.jsonschema.core.load.download.URIDownloader;
+import com.github.fge.jsonschema.core.report.ProcessingReport;
+import com.github.fge.jsonschema.main.JsonSchema;
+import com.github.fge.jsonschema.main.JsonSchemaFactory;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared registry of compiled schemas for a schema directory. All the schemas of a directory are
+ * built from one schema factory, so referenced sub-schemas are only loaded and resolved once, and
+ * the compiled validators are cached across schemas (and threads). Also keeps per-schema timing
+ * of validations, for finding the expensive ones.
+ */
+public class SchemaRegistry {
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+  private static final String FILE_URL_PREFIX = "file:";
+  private static final String KEYWORD_PREFIX = "$";
+  private static final String REF_KEYWORD = "$ref";
+  private static final Map<File, SchemaRegistry> REGISTRIES = new ConcurrentHashMap<>();
+
+  private final File schemaRoot;
+  private final JsonSchemaFactory schemaFactory;
+  private final Map<String, JsonSchema> schemas = new ConcurrentHashMap<>();
+  private final Map<String, ValidationTiming> timings = new ConcurrentHashMap<>();
+
+  private SchemaRegistry(File schemaRoot) {
+    this.schemaRoot = schemaRoot;
+    schemaFactory = JsonSchemaFactory.newBuilder()
+        .setLoadingConfiguration(LoadingConfiguration.newBuilder()
+            .addScheme("file", new RelativeDownloader())
+            .freeze())
+        .freeze();
+  }
+
+  /**
+   * Get the shared registry for the given schema directory.
+   */
+  public static SchemaRegistry forRoot(File schemaRoot) {
+    File rootDir = schemaRoot.getAbsoluteFile();
+    if (!rootDir.isDirectory()) {
+      throw new IllegalStateException("Could not find schema directory " + rootDir);
+    }
+    return REGISTRIES.computeIfAbsent(rootDir, SchemaRegistry::new);
+  }
+
+  private static String schemaName(File schemaFile) {
+    String fileName = schemaFile.getName();
+    return fileName.substring(0, fileName.length() - JsonUtil.JSON_SUFFIX.length());
+  }
+
+  public File getSchemaRoot() {
+    return schemaRoot;
+  }
+
+  /**
+   * Load (and pre-warm) all the schemas in the directory, returning the names of those loaded.
+   */
+  public Set<String> loadAll() {
+    File[] schemaFiles = Objects.requireNonNull(
+        schemaRoot.listFiles(file -> file.getName().endsWith(JsonUtil.JSON_SUFFIX)),
+        "schema files");
+    Arrays.stream(schemaFiles).parallel().forEach(file -> getSchema(schemaName(file)));
+    return getSchemaNames();
+  }
+
+  public Set<String> getSchemaNames() {
+    return Set.copyOf(schemas.keySet());
+  }
+
+  /**
+   * Check if the named schema has been loaded (or aliased).
+   */
+  public boolean hasSchema(String schemaName) {
+    return schemas.containsKey(schemaName);
+  }
+
+  /**
+   * Make a schema available under another name as well.
+   */
+  public void alias(String alias, String schemaName) {
+    schemas.put(alias, getSchema(schemaName));
+  }
+
+  /**
+   * Get the named schema (file name without the .json suffix), loading it if necessary.
+   */
+  public JsonSchema getSchema(String schemaName) {
+    return schemas.computeIfAbsent(schemaName,
+        name -> compile(new File(schemaRoot, name + JsonUtil.JSON_SUFFIX)));
+  }
+
+  /**
+   * Compile an arbitrary schema file, with references resolved against this registry.
+   */
+  public JsonSchema compile(File schemaFile) {
+    try (InputStream schemaStream = Files.newInputStream(schemaFile.toPath())) {
+      JsonNode schemaTree = OBJECT_MAPPER.readTree(schemaStream);
+      if (schemaTree instanceof ObjectNode schemaObject) {
+        // Top-level annotations ($schema, $udmi_version, ...) only generate syntax warnings.
+        Set<String> toRemove = new HashSet<>();
+        schemaObject.fieldNames().forEachRemaining(key -> ifTrueThen(
+            key.startsWith(KEYWORD_PREFIX) && !REF_KEYWORD.equals(key), () -> toRemove.add(key)));
+        schemaObject.remove(toRemove);
+      }
+      JsonSchema schema = schemaFactory.getJsonSchema(schemaTree);
+      prewarm(schema);
+      return schema;
+    } catch (Exception e) {
+      throw new RuntimeException("While loading schema " + schemaFile.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * Validating anything builds (and caches) the validators for the top level of the schema. Any
+   * problems with the schema itself are left to be reported when it's actually used.
+   */
+  private void prewarm(JsonSchema schema) {
+    try {
+      schema.validate(OBJECT_MAPPER.createObjectNode(), true);
+    } catch (Exception e) {
+      // Ignored, see above.
+    }
+  }
+
+  /**
+   * Validate an already parsed message against the named schema, with a deep check (reporting
+   * all violations rather than stopping at the first failing keyword of a subschema).
+   */
+  public ProcessingReport validate(String schemaName, JsonNode message)
+      throws ProcessingException {
+    return validate(schemaName, message, true);
+  }
+
+  /**
+   * Validate an already parsed message against the named schema.
+   */
+  public ProcessingReport validate(String schemaName, JsonNode message, boolean deepCheck)
+      throws ProcessingException {
+    JsonSchema schema = getSchema(schemaName);
+    long startNanos = System.nanoTime();
+    try {
+      return schema.validate(message, deepCheck);
+    } finally {
+      timings.computeIfAbsent(schemaName, name -> new ValidationTiming())
+          .add(System.nanoTime() - startNanos);
+    }
+  }
+
+  /**
+   * Get a summary of the validation timing of each schema used so far.
+   */
+  public Map<String, String> getTimingSummary() {
+    Map<String, String> summary = new TreeMap<>();
+    timings.forEach((name, timing) -> summary.put(name, timing.toString()));
+    return summary;
+  }
+
+  /**
+   * Running count and total time of the validations against a schema.
+   */
+  static class ValidationTiming {
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+
+    void add(long nanos) {
+      count.increment();
+      totalNanos.add(nanos);
+    }
+
+    @Override
+    public String toString() {
+      long validations = count.sum();
+      double averageUs = validations == 0 ? 0 : totalNanos.sum() / 1000.0 / validations;
+      return format("%d validations, %.1fus average", validations, averageUs);
+    }
+  }
+
+  class RelativeDownloader implements URIDownloader {
+
+    @Override
+    public InputStream fetch(URI source) {
+      String url = source.toString();
+      try {
+        if (!url.startsWith(FILE_URL_PREFIX)) {
+          throw new IllegalStateException("Expected path to start with " + FILE_URL_PREFIX);
+        }
+        return Files.newInputStream(
+            new File(schemaRoot, url.substring(FILE_URL_PREFIX.length())).toPath());
+      } catch (Exception e) {
+        throw new RuntimeException("While loading URL " + url, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package com.google.udmi.util;
+
+import static com.google.udmi.util.JsonUtil.strictConverter;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.function.Function;
+import org.junit.Test;
+import udmi.schema.Envelope;
+import udmi.schema.Envelope.SubFolder;
+
+/**
+ * Tests for json utilities.
+ */
+public class JsonUtilTest {
+
+  @Test
+  public void testStrictConverter() {
+    Function<Object, Envelope> converter = strictConverter(Envelope.class);
+    Envelope converted =
+        converter.apply(ImmutableMap.of("deviceId", "AHU-1", "subFolder", "pointset"));
+    assertEquals("converted device id", "AHU-1", converted.deviceId);
+    assertEquals("converted sub folder", SubFolder.POINTSET, converted.subFolder);
+    assertNotSame("fresh converted object", converted, converter.apply(converted));
+    assertEquals("round trip object", converted.deviceId, converter.apply(converted).deviceId);
+    assertNull("unknown property", converter.apply(ImmutableMap.of("mystery", "value")));
+    assertNull("null message", converter.apply(null));
+  }
+}
@@ -0,0 +1,91 @@
+package com.google.udmi.util;
+
+import static com.google.udmi.util.GeneralUtils.jsonCopy;
+import static com.google.udmi.util.GeneralUtils.jsonMerge;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import udmi.schema.Category;
+import udmi.schema.EndpointConfiguration;
+import udmi.schema.EndpointConfiguration.Protocol;
+import udmi.schema.PointPointsetModel;
+import udmi.schema.PointsetModel;
+
+/**
+ * Tests for the structural schema copier, which must match the json round-trip exactly.
+ */
+public class SchemaCopierTest {
+
+  private static final long TIMESTAMP_MS = 1700000000123L;
+
+  private static PointsetModel makeModel(String units, double tolerance) {
+    PointsetModel model = new PointsetModel();
+    model.points = new HashMap<>();
+    PointPointsetModel point = new PointPointsetModel();
+    point.units = units;
+    point.baseline_value = ImmutableMap.of("value", 21.5, "nested", List.of("a", 2));
+    point.baseline_tolerance = tolerance;
+    point.tags = new LinkedHashSet<>(List.of("first", "second"));
+    point.adjunct = new HashMap<>(ImmutableMap.of("key", "value"));
+    model.points.put(units, point);
+    model.points.put("?" + units, point);
+    return model;
+  }
+
+  private static EndpointConfiguration makeEndpoint(String hostname) {
+    EndpointConfiguration endpoint = new EndpointConfiguration();
+    endpoint.protocol = Protocol.MQTT;
+    endpoint.hostname = hostname;
+    endpoint.generation = new Date(TIMESTAMP_MS);
+    endpoint.client_id = hostname + "/client";
+    return endpoint;
+  }
+
+  @Test
+  public void copyMatchesJson() {
+    PointsetModel model = makeModel("degrees", Double.NaN);
+    PointsetModel copy = SchemaCopier.deepCopy(model);
+    assertEquals("copied model", jsonCopy(model), copy);
+    assertNotSame("fresh points", model.points, copy.points);
+    assertNotSame("fresh point", model.points.get("degrees"), copy.points.get("degrees"));
+
+    EndpointConfiguration endpoint = makeEndpoint("localhost");
+    EndpointConfiguration endpointCopy = SchemaCopier.deepCopy(endpoint);
+    assertEquals("copied endpoint", jsonCopy(endpoint), endpointCopy);
+    assertEquals("truncated date", TIMESTAMP_MS / 1000 * 1000, endpointCopy.generation.getTime());
+  }
+
+  @Test
+  public void mergeMatchesJson() {
+    PointsetModel under = makeModel("degrees", Double.NaN);
+    PointsetModel over = makeModel("percent", 0.5);
+    over.points.put("degrees", new PointPointsetModel());
+    over.points.get("degrees").ref = "BV12.present_value";
+    assertEquals("merged model", jsonMerge(under, over), SchemaCopier.mergeObject(under, over));
+    assertEquals("unchanged under", 2, under.points.size());
+
+    EndpointConfiguration endpointUnder = makeEndpoint("localhost");
+    EndpointConfiguration endpointOver = new EndpointConfiguration();
+    endpointOver.hostname = "remotehost";
+    endpointOver.topic_prefix = "prefix";
+    assertEquals("merged endpoint", jsonMerge(endpointUnder, endpointOver),
+        SchemaCopier.mergeObject(endpointUnder, endpointOver));
+  }
+
+  @Test
+  public void copyableClasses() {
+    assertTrue("schema class", SchemaCopier.isCopyable(EndpointConfiguration.class));
+    assertFalse("no properties", SchemaCopier.isCopyable(Category.class));
+    assertFalse("not schema", SchemaCopier.isCopyable(Map.class));
+    assertFalse("enum", SchemaCopier.isCopyable(Protocol.class));
+  }
+}
@@ -0,0 +1,54 @@
+package com.google.udmi.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.File;
+import org.junit.Test;
+
+/**
+ * Unit tests for the shared schema registry.
+ */
+public class SchemaRegistryTest {
+
+  private static final File SCHEMA_ROOT = new File("../schema");
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  @Test
+  public void sharedRegistry() {
+    SchemaRegistry registry = SchemaRegistry.forRoot(SCHEMA_ROOT);
+    assertSame("registry for same root", registry,
+        SchemaRegistry.forRoot(new File(SCHEMA_ROOT.getAbsolutePath())));
+    assertSame("cached schema", registry.getSchema("envelope"), registry.getSchema("envelope"));
+  }
+
+  @Test
+  public void validateEnvelope() throws Exception {
+    SchemaRegistry registry = SchemaRegistry.forRoot(SCHEMA_ROOT);
+    ObjectNode envelope = OBJECT_MAPPER.createObjectNode();
+    envelope.put("deviceId", "AHU-1");
+    envelope.put("deviceRegistryId", "ZZ-TRI-FECTA");
+    envelope.put("projectId", "test-project");
+    envelope.put("subFolder", "pointset");
+    envelope.put("subType", "events");
+    assertTrue("valid envelope", registry.validate("envelope", envelope).isSuccess());
+
+    envelope.put("deviceId", "not a valid device id!");
+    assertFalse("invalid envelope", registry.validate("envelope", envelope).isSuccess());
+
+    assertTrue("envelope timing", registry.getTimingSummary().get("envelope")
+        .matches("\\d+ validations, .*us average"));
+  }
+
+  @Test
+  public void aliasSchema() {
+    SchemaRegistry registry = SchemaRegistry.forRoot(SCHEMA_ROOT);
+    registry.alias("model", "metadata");
+    assertTrue("alias loaded", registry.hasSchema("model"));
+    assertEquals("aliased schema", registry.getSchema("metadata"), registry.getSchema("model"));
+  }
+}
@@ -16,7 +16,8 @@ import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 @JsonInclude(JsonInclude.Include.NON_NULL)
 @JsonPropertyOrder({
     "udmi_prefix",
-    "failure_rate"
+    "failure_rate",
+    "metrics_port"
 })
 public class BasePodConfiguration {
 
@@ -34,12 +35,20 @@ public class BasePodConfiguration {
     @JsonProperty("failure_rate")
     @JsonPropertyDescription("chance of random failure in various bits of the system")
     public Double failure_rate;
+    /**
+     * port for serving scrapeable message metrics
+     * 
+     */
+    @JsonProperty("metrics_port")
+    @JsonPropertyDescription("port for serving scrapeable message metrics")
+    public Integer metrics_port;
 
     @Override
     public int hashCode() {
         int result = 1;
         result = ((result* 31)+((this.failure_rate == null)? 0 :this.failure_rate.hashCode()));
         result = ((result* 31)+((this.udmi_prefix == null)? 0 :this.udmi_prefix.hashCode()));
+        result = ((result* 31)+((this.metrics_port == null)? 0 :this.metrics_port.hashCode()));
         return result;
     }
 
@@ -52,7 +61,7 @@ public class BasePodConfiguration {
             return false;
         }
         BasePodConfiguration rhs = ((BasePodConfiguration) other);
-        return (((this.failure_rate == rhs.failure_rate)||((this.failure_rate!= null)&&this.failure_rate.equals(rhs.failure_rate)))&&((this.udmi_prefix == rhs.udmi_prefix)||((this.udmi_prefix!= null)&&this.udmi_prefix.equals(rhs.udmi_prefix))));
+        return ((((this.failure_rate == rhs.failure_rate)||((this.failure_rate!= null)&&this.failure_rate.equals(rhs.failure_rate)))&&((this.udmi_prefix == rhs.udmi_prefix)||((this.udmi_prefix!= null)&&this.udmi_prefix.equals(rhs.udmi_prefix))))&&((this.metrics_port == rhs.metrics_port)||((this.metrics_port!= null)&&this.metrics_port.equals(rhs.metrics_port))));
     }
 
 }
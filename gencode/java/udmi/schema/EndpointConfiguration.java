@@ -40,6 +40,12 @@ import com.fasterxml.jackson.annotation.JsonValue;
     "capacity",
     "publish_delay_sec",
     "periodic_sec",
+    "lanes",
+    "block_sec",
+    "virtual_threads",
+    "concurrency",
+    "batch_size",
+    "linger_ms",
     "keyBytes",
     "algorithm",
     "auth_provider",
@@ -167,6 +173,48 @@ public class EndpointConfiguration {
     @JsonProperty("periodic_sec")
     @JsonPropertyDescription("Rate for periodic task execution")
     public Integer periodic_sec;
+    /**
+     * Number of ordered dispatch lanes for processing received messages
+     * 
+     */
+    @JsonProperty("lanes")
+    @JsonPropertyDescription("Number of ordered dispatch lanes for processing received messages")
+    public Integer lanes;
+    /**
+     * Maximum time to block on a full message queue before dropping a message
+     * 
+     */
+    @JsonProperty("block_sec")
+    @JsonPropertyDescription("Maximum time to block on a full message queue before dropping a message")
+    public Integer block_sec;
+    /**
+     * Run message loops and handlers on virtual threads
+     * 
+     */
+    @JsonProperty("virtual_threads")
+    @JsonPropertyDescription("Run message loops and handlers on virtual threads")
+    public Boolean virtual_threads;
+    /**
+     * Maximum number of concurrent message handler invocations
+     * 
+     */
+    @JsonProperty("concurrency")
+    @JsonPropertyDescription("Maximum number of concurrent message handler invocations")
+    public Integer concurrency;
+    /**
+     * Maximum number of messages to batch together when publishing
+     * 
+     */
+    @JsonProperty("batch_size")
+    @JsonPropertyDescription("Maximum number of messages to batch together when publishing")
+    public Integer batch_size;
+    /**
+     * Maximum time to hold a message for batching before it is published
+     * 
+     */
+    @JsonProperty("linger_ms")
+    @JsonPropertyDescription("Maximum time to hold a message for batching before it is published")
+    public Integer linger_ms;
     @JsonProperty("keyBytes")
     public Object keyBytes;
     @JsonProperty("algorithm")
@@ -208,6 +256,12 @@ public class EndpointConfiguration {
         result = ((result* 31)+((this.gatewayId == null)? 0 :this.gatewayId.hashCode()));
         result = ((result* 31)+((this.auth_provider == null)? 0 :this.auth_provider.hashCode()));
         result = ((result* 31)+((this.algorithm == null)? 0 :this.algorithm.hashCode()));
+        result = ((result* 31)+((this.lanes == null)? 0 :this.lanes.hashCode()));
+        result = ((result* 31)+((this.block_sec == null)? 0 :this.block_sec.hashCode()));
+        result = ((result* 31)+((this.virtual_threads == null)? 0 :this.virtual_threads.hashCode()));
+        result = ((result* 31)+((this.concurrency == null)? 0 :this.concurrency.hashCode()));
+        result = ((result* 31)+((this.batch_size == null)? 0 :this.batch_size.hashCode()));
+        result = ((result* 31)+((this.linger_ms == null)? 0 :this.linger_ms.hashCode()));
         return result;
     }
 
@@ -220,7 +274,7 @@ public class EndpointConfiguration {
             return false;
         }
         EndpointConfiguration rhs = ((EndpointConfiguration) other);
-        return (((((((((((((((((((((((((this.generation == rhs.generation)||((this.generation!= null)&&this.generation.equals(rhs.generation)))&&((this.keyBytes == rhs.keyBytes)||((this.keyBytes!= null)&&this.keyBytes.equals(rhs.keyBytes))))&&((this.side_id == rhs.side_id)||((this.side_id!= null)&&this.side_id.equals(rhs.side_id))))&&((this.transport == rhs.transport)||((this.transport!= null)&&this.transport.equals(rhs.transport))))&&((this.publish_delay_sec == rhs.publish_delay_sec)||((this.publish_delay_sec!= null)&&this.publish_delay_sec.equals(rhs.publish_delay_sec))))&&((this.error == rhs.error)||((this.error!= null)&&this.error.equals(rhs.error))))&&((this.config_sync_sec == rhs.config_sync_sec)||((this.config_sync_sec!= null)&&this.config_sync_sec.equals(rhs.config_sync_sec))))&&((this.deviceId == rhs.deviceId)||((this.deviceId!= null)&&this.deviceId.equals(rhs.deviceId))))&&((this.client_id == rhs.client_id)||((this.client_id!= null)&&this.client_id.equals(rhs.client_id))))&&((this.enabled == rhs.enabled)||((this.enabled!= null)&&this.enabled.equals(rhs.enabled))))&&((this.capacity == rhs.capacity)||((this.capacity!= null)&&this.capacity.equals(rhs.capacity))))&&((this.send_id == rhs.send_id)||((this.send_id!= null)&&this.send_id.equals(rhs.send_id))))&&((this.protocol == rhs.protocol)||((this.protocol!= null)&&this.protocol.equals(rhs.protocol))))&&((this.hostname == rhs.hostname)||((this.hostname!= null)&&this.hostname.equals(rhs.hostname))))&&((this.payload == rhs.payload)||((this.payload!= null)&&this.payload.equals(rhs.payload))))&&((this.port == rhs.port)||((this.port!= null)&&this.port.equals(rhs.port))))&&((this.topic_prefix == rhs.topic_prefix)||((this.topic_prefix!= null)&&this.topic_prefix.equals(rhs.topic_prefix))))&&((this.name == rhs.name)||((this.name!= null)&&this.name.equals(rhs.name))))&&((this.periodic_sec == rhs.periodic_sec)||((this.periodic_sec!= null)&&this.periodic_sec.equals(rhs.periodic_sec))))&&((this.noConfigAck == rhs.noConfigAck)||((this.noConfigAck!= null)&&this.noConfigAck.equals(rhs.noConfigAck))))&&((this.recv_id == rhs.recv_id)||((this.recv_id!= null)&&this.recv_id.equals(rhs.recv_id))))&&((this.gatewayId == rhs.gatewayId)||((this.gatewayId!= null)&&this.gatewayId.equals(rhs.gatewayId))))&&((this.auth_provider == rhs.auth_provider)||((this.auth_provider!= null)&&this.auth_provider.equals(rhs.auth_provider))))&&((this.algorithm == rhs.algorithm)||((this.algorithm!= null)&&this.algorithm.equals(rhs.algorithm))));
+        return (((((((((((((((((((((((((((((((this.generation == rhs.generation)||((this.generation!= null)&&this.generation.equals(rhs.generation)))&&((this.keyBytes == rhs.keyBytes)||((this.keyBytes!= null)&&this.keyBytes.equals(rhs.keyBytes))))&&((this.side_id == rhs.side_id)||((this.side_id!= null)&&this.side_id.equals(rhs.side_id))))&&((this.transport == rhs.transport)||((this.transport!= null)&&this.transport.equals(rhs.transport))))&&((this.publish_delay_sec == rhs.publish_delay_sec)||((this.publish_delay_sec!= null)&&this.publish_delay_sec.equals(rhs.publish_delay_sec))))&&((this.error == rhs.error)||((this.error!= null)&&this.error.equals(rhs.error))))&&((this.config_sync_sec == rhs.config_sync_sec)||((this.config_sync_sec!= null)&&this.config_sync_sec.equals(rhs.config_sync_sec))))&&((this.deviceId == rhs.deviceId)||((this.deviceId!= null)&&this.deviceId.equals(rhs.deviceId))))&&((this.client_id == rhs.client_id)||((this.client_id!= null)&&this.client_id.equals(rhs.client_id))))&&((this.enabled == rhs.enabled)||((this.enabled!= null)&&this.enabled.equals(rhs.enabled))))&&((this.capacity == rhs.capacity)||((this.capacity!= null)&&this.capacity.equals(rhs.capacity))))&&((this.send_id == rhs.send_id)||((this.send_id!= null)&&this.send_id.equals(rhs.send_id))))&&((this.protocol == rhs.protocol)||((this.protocol!= null)&&this.protocol.equals(rhs.protocol))))&&((this.hostname == rhs.hostname)||((this.hostname!= null)&&this.hostname.equals(rhs.hostname))))&&((this.payload == rhs.payload)||((this.payload!= null)&&this.payload.equals(rhs.payload))))&&((this.port == rhs.port)||((this.port!= null)&&this.port.equals(rhs.port))))&&((this.topic_prefix == rhs.topic_prefix)||((this.topic_prefix!= null)&&this.topic_prefix.equals(rhs.topic_prefix))))&&((this.name == rhs.name)||((this.name!= null)&&this.name.equals(rhs.name))))&&((this.periodic_sec == rhs.periodic_sec)||((this.periodic_sec!= null)&&this.periodic_sec.equals(rhs.periodic_sec))))&&((this.noConfigAck == rhs.noConfigAck)||((this.noConfigAck!= null)&&this.noConfigAck.equals(rhs.noConfigAck))))&&((this.recv_id == rhs.recv_id)||((this.recv_id!= null)&&this.recv_id.equals(rhs.recv_id))))&&((this.gatewayId == rhs.gatewayId)||((this.gatewayId!= null)&&this.gatewayId.equals(rhs.gatewayId))))&&((this.auth_provider == rhs.auth_provider)||((this.auth_provider!= null)&&this.auth_provider.equals(rhs.auth_provider))))&&((this.algorithm == rhs.algorithm)||((this.algorithm!= null)&&this.algorithm.equals(rhs.algorithm))))&&((this.lanes == rhs.lanes)||((this.lanes!= null)&&this.lanes.equals(rhs.lanes))))&&((this.block_sec == rhs.block_sec)||((this.block_sec!= null)&&this.block_sec.equals(rhs.block_sec))))&&((this.virtual_threads == rhs.virtual_threads)||((this.virtual_threads!= null)&&this.virtual_threads.equals(rhs.virtual_threads))))&&((this.concurrency == rhs.concurrency)||((this.concurrency!= null)&&this.concurrency.equals(rhs.concurrency))))&&((this.batch_size == rhs.batch_size)||((this.batch_size!= null)&&this.batch_size.equals(rhs.batch_size))))&&((this.linger_ms == rhs.linger_ms)||((this.linger_ms!= null)&&this.linger_ms.equals(rhs.linger_ms))));
     }
 
     public enum Protocol {
@@ -66,6 +66,12 @@ class EndpointConfiguration(DataModel):
     capacity: Optional[int] = None
     publish_delay_sec: Optional[int] = None
     periodic_sec: Optional[int] = None
+    lanes: Optional[int] = None
+    block_sec: Optional[int] = None
+    virtual_threads: Optional[bool] = None
+    concurrency: Optional[int] = None
+    batch_size: Optional[int] = None
+    linger_ms: Optional[int] = None
     keyBytes: Optional[Any] = None
     algorithm: Optional[str] = None
     auth_provider: Optional[AuthProvider] = None
@@ -17,3 +17,4 @@ class BasePodConfiguration(DataModel):
 
     udmi_prefix: Optional[str] = None
     failure_rate: Optional[float] = None
+    metrics_port: Optional[int] = None
@@ -0,0 +1,68 @@
+package com.google.bos.udmi.service.core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import udmi.schema.PointsetEvents;
+
+/**
+ * Call into an annotated message handler, through reflection for every message (as dispatch
+ * used to be) versus through the consumer bound once by ProcessorBase.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HandlerDispatchBenchmark {
+
+  private final PointsetHandler target = new PointsetHandler();
+  private final PointsetEvents message = new PointsetEvents();
+  private Method handlerMethod;
+  private Consumer<Object> boundHandler;
+
+  /**
+   * Look up the handler method, and bind it the same way as registered handlers.
+   */
+  @Setup
+  public void setup() throws NoSuchMethodException {
+    handlerMethod = PointsetHandler.class.getMethod("pointsetEvents", PointsetEvents.class);
+    boundHandler = ProcessorBase.bindHandler(target, handlerMethod, PointsetEvents.class);
+  }
+
+  /**
+   * Handler called through Method.invoke.
+   */
+  @Benchmark
+  public int methodInvoke() throws Exception {
+    handlerMethod.invoke(target, message);
+    return target.handled;
+  }
+
+  /**
+   * Handler called through the LambdaMetafactory bound consumer.
+   */
+  @Benchmark
+  public int boundHandler() {
+    boundHandler.accept(message);
+    return target.handled;
+  }
+
+  /**
+   * Minimal handler target, so the measurement is the call itself.
+   */
+  public static class PointsetHandler {
+
+    private int handled;
+
+    @MessageHandler
+    public void pointsetEvents(PointsetEvents pointsetEvents) {
+      handled++;
+    }
+  }
+}
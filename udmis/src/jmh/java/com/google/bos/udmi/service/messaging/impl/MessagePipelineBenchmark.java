@@ -0,0 +1,108 @@
+package com.google.bos.udmi.service.messaging.impl;
+
+import static com.google.udmi.util.BenchmarkTraces.POINTSET_ATTRIBUTES;
+import static com.google.udmi.util.BenchmarkTraces.POINTSET_EVENTS;
+import static com.google.udmi.util.BenchmarkTraces.getTraceMap;
+import static com.google.udmi.util.BenchmarkTraces.getTraceString;
+import static com.google.udmi.util.JsonUtil.convertTo;
+import static com.google.udmi.util.JsonUtil.toStringMap;
+
+import com.google.bos.udmi.service.messaging.impl.MessageBase.Bundle;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import udmi.schema.EndpointConfiguration;
+import udmi.schema.EndpointConfiguration.Protocol;
+import udmi.schema.Envelope;
+import udmi.schema.PointsetEvents;
+
+/**
+ * Message path through the UDMIS messaging layer, from a received raw message to a dispatched
+ * bundle, and from a bundle to a typed handler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessagePipelineBenchmark {
+
+  private static final String NAMESPACE = "benchmark";
+  private static final int BATCH_SIZE = 100;
+  private static final long DISPATCH_TIMEOUT_SEC = 10;
+
+  private final Semaphore dispatched = new Semaphore(0);
+  private final AtomicInteger handled = new AtomicInteger();
+  private Map<String, String> attributes;
+  private String pointsetString;
+  private Envelope envelope;
+  private Map<String, Object> pointsetMap;
+  private LocalMessagePipe messagePipe;
+  private MessageDispatcherImpl dispatcher;
+
+  private static EndpointConfiguration makeConfig(String recvId) {
+    EndpointConfiguration config = new EndpointConfiguration();
+    config.protocol = Protocol.LOCAL;
+    config.hostname = NAMESPACE;
+    config.recv_id = recvId;
+    config.send_id = recvId + "_out";
+    return config;
+  }
+
+  /**
+   * Setup an active pipe and a dispatcher, and load the trace payloads.
+   */
+  @Setup
+  public void setup() {
+    attributes = toStringMap(getTraceMap(POINTSET_ATTRIBUTES));
+    pointsetString = getTraceString(POINTSET_EVENTS);
+    envelope = convertTo(Envelope.class, attributes);
+    pointsetMap = getTraceMap(POINTSET_EVENTS);
+
+    messagePipe = new LocalMessagePipe(makeConfig("pipe"));
+    messagePipe.activate(bundle -> dispatched.release());
+
+    dispatcher = new MessageDispatcherImpl(makeConfig("dispatcher"));
+    dispatcher.registerHandler(PointsetEvents.class, message -> handled.incrementAndGet());
+  }
+
+  @TearDown
+  public void teardown() {
+    messagePipe.shutdown();
+    LocalMessagePipe.resetForTestStatic();
+  }
+
+  /**
+   * Raw message received by a pipe, through parsing, queueing and dispatch lanes, to the
+   * dispatch consumer. Messages are sent in batches to measure throughput rather than handoff
+   * latency between threads.
+   */
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void receiveToDispatch() throws InterruptedException {
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      messagePipe.receiveMessage(new HashMap<>(attributes), pointsetString);
+    }
+    if (!dispatched.tryAcquire(BATCH_SIZE, DISPATCH_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("Timeout waiting for message dispatch");
+    }
+  }
+
+  /**
+   * Received bundle converted to a typed message and passed to the registered handler.
+   */
+  @Benchmark
+  public int processMessageBundle() {
+    dispatcher.processMessageBundle(new Bundle(envelope, pointsetMap));
+    return handled.get();
+  }
+}
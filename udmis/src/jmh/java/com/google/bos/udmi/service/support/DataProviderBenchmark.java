@@ -0,0 +1,110 @@
+package com.google.bos.udmi.service.support;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import udmi.schema.IotAccess;
+
+/**
+ * Device property reads and writes of the implicit provider workload, against the different data
+ * providers. The etcd provider needs a running etcd, so isn't in the default set: run it by
+ * setting the provider param to etcd (and the udmi.etcd property if it's not on localhost).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DataProviderBenchmark {
+
+  private static final String ETCD_TARGET_PROPERTY = "udmi.etcd";
+  private static final String DEFAULT_ETCD_TARGET = "http://localhost:2379";
+  private static final String REGISTRY_ID = "ZZ-TRI-FECTA";
+  private static final int DEVICE_COUNT = 100;
+  private static final String STATE_BLOB = "{\"system\":{\"operation\":{\"operational\":true}}}";
+  private static final String CONFIG_VER_KEY = "config_ver";
+
+  @Param({"memory", "file", "file_sync"})
+  public String provider;
+
+  private IotDataProvider dataProvider;
+  private File dataFile;
+  private DataRef[] deviceRefs;
+  private int deviceIndex;
+
+  /**
+   * Create the provider, and populate it with some devices.
+   */
+  @Setup
+  public void setup() throws Exception {
+    IotAccess iotAccess = new IotAccess();
+    if ("etcd".equals(provider)) {
+      iotAccess.project_id = System.getProperty(ETCD_TARGET_PROPERTY, DEFAULT_ETCD_TARGET);
+      dataProvider = new EtcdDataProvider(iotAccess);
+    } else {
+      if (provider.startsWith("file")) {
+        dataFile = File.createTempFile("udmis_benchmark", ".log");
+        iotAccess.options = "data_file=" + dataFile.getAbsolutePath()
+            + (provider.endsWith("sync") ? ",data_sync" : "");
+      }
+      dataProvider = new LocalDataProvider(iotAccess);
+    }
+    dataProvider.activate();
+    deviceRefs = new DataRef[DEVICE_COUNT];
+    for (int i = 0; i < DEVICE_COUNT; i++) {
+      deviceRefs[i] = dataProvider.ref().registry(REGISTRY_ID).device("AHU-" + i);
+      deviceRefs[i].putAll(ImmutableMap.of(CONFIG_VER_KEY, "1", "last_state", STATE_BLOB));
+    }
+  }
+
+  /**
+   * Clean up the provider and any data file.
+   */
+  @TearDown
+  public void teardown() {
+    dataProvider.shutdown();
+    if (dataFile != null) {
+      dataFile.delete();
+    }
+  }
+
+  private DataRef nextDevice() {
+    deviceIndex = (deviceIndex + 1) % DEVICE_COUNT;
+    return deviceRefs[deviceIndex];
+  }
+
+  @Benchmark
+  public String getProperty() {
+    return nextDevice().get(CONFIG_VER_KEY);
+  }
+
+  @Benchmark
+  public Map<String, String> getEntries() {
+    return nextDevice().entries();
+  }
+
+  @Benchmark
+  public void putState() {
+    nextDevice().put("last_state", STATE_BLOB);
+  }
+
+  /**
+   * Guarded config update, as done when modifying a device config.
+   */
+  @Benchmark
+  public boolean updateConfig() {
+    DataRef deviceRef = nextDevice();
+    String version = deviceRef.get(CONFIG_VER_KEY);
+    String nextVersion = Long.toString(Long.parseLong(version) + 1);
+    return deviceRef.compareAndUpdate(CONFIG_VER_KEY, version,
+        ImmutableMap.of(CONFIG_VER_KEY, nextVersion, "last_config", STATE_BLOB));
+  }
+}
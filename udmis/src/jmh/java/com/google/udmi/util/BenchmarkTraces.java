@@ -0,0 +1,53 @@
+package com.google.udmi.util;
+
+import static com.google.udmi.util.JsonUtil.asMap;
+import static com.google.udmi.util.JsonUtil.stringifyTerse;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Access to representative message payloads from the test traces in tests/traces.
+ */
+public abstract class BenchmarkTraces {
+
+  public static final String UDMI_ROOT_PROPERTY = "udmi.root";
+  public static final String POINTSET_EVENTS = "simple/devices/AHU-1/001_events_pointset.json";
+  public static final String POINTSET_ATTRIBUTES =
+      "simple/expected/devices/AHU-1/events_pointset.attr";
+  public static final String LEGACY_STATE = "upgrade/devices/AHU-1/001_state_update.json";
+  public static final String DEVICE_STATE = "upgrade/expected/devices/AHU-1/state.json";
+
+  public static File getUdmiRoot() {
+    return new File(System.getProperty(UDMI_ROOT_PROPERTY, ".."));
+  }
+
+  public static File getSchemaRoot() {
+    return new File(getUdmiRoot(), "schema");
+  }
+
+  /**
+   * Get a trace file, given its path relative to the tests/traces directory.
+   */
+  public static File getTraceFile(String tracePath) {
+    File traceFile = new File(getUdmiRoot(), "tests/traces/" + tracePath);
+    if (!traceFile.exists()) {
+      throw new IllegalStateException("Missing trace file " + traceFile.getAbsolutePath());
+    }
+    return traceFile;
+  }
+
+  /**
+   * Get a trace message as a generic map (trace files can contain comments).
+   */
+  public static Map<String, Object> getTraceMap(String tracePath) {
+    return asMap(getTraceFile(tracePath));
+  }
+
+  /**
+   * Get a trace message as a clean json string, as it would be received on the wire.
+   */
+  public static String getTraceString(String tracePath) {
+    return stringifyTerse(getTraceMap(tracePath));
+  }
+}
@@ -0,0 +1,64 @@
+package com.google.udmi.util;
+
+import static com.google.udmi.util.BenchmarkTraces.DEVICE_STATE;
+import static com.google.udmi.util.BenchmarkTraces.POINTSET_EVENTS;
+import static com.google.udmi.util.BenchmarkTraces.getTraceString;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import udmi.schema.PointsetEvents;
+
+/**
+ * Json conversion and copy costs for typical message payloads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JsonBenchmark {
+
+  private String pointsetString;
+  private PointsetEvents pointsetEvents;
+  private udmi.schema.State deviceState;
+
+  /**
+   * Load the trace payloads.
+   */
+  @Setup
+  public void setup() {
+    pointsetString = getTraceString(POINTSET_EVENTS);
+    pointsetEvents = JsonUtil.fromString(PointsetEvents.class, pointsetString);
+    deviceState = JsonUtil.fromString(udmi.schema.State.class, getTraceString(DEVICE_STATE));
+  }
+
+  @Benchmark
+  public String stringify() {
+    return JsonUtil.stringify(pointsetEvents);
+  }
+
+  @Benchmark
+  public String stringifyTerse() {
+    return JsonUtil.stringifyTerse(pointsetEvents);
+  }
+
+  @Benchmark
+  public PointsetEvents parseTyped() {
+    return JsonUtil.fromString(PointsetEvents.class, pointsetString);
+  }
+
+  @Benchmark
+  public Map<String, Object> parseMap() {
+    return JsonUtil.asMap(pointsetString);
+  }
+
+  @Benchmark
+  public udmi.schema.State deepCopy() {
+    return GeneralUtils.deepCopy(deviceState);
+  }
+}
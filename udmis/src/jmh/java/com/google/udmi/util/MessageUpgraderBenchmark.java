@@ -0,0 +1,40 @@
+package com.google.udmi.util;
+
+import static com.google.udmi.util.BenchmarkTraces.LEGACY_STATE;
+import static com.google.udmi.util.BenchmarkTraces.getTraceString;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Upgrade of a legacy (version 1) state message to the current schema.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageUpgraderBenchmark {
+
+  private static final String STATE_SCHEMA = "state";
+
+  private JsonNode legacyState;
+
+  @Setup
+  public void setup() throws Exception {
+    legacyState = JsonUtil.OBJECT_MAPPER.readTree(getTraceString(LEGACY_STATE));
+  }
+
+  /**
+   * The upgrader modifies its message in place, so each iteration gets a fresh copy.
+   */
+  @Benchmark
+  public Object upgrade() {
+    return new MessageUpgrader(STATE_SCHEMA, legacyState.deepCopy()).upgrade();
+  }
+}
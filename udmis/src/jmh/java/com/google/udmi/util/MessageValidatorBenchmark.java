@@ -0,0 +1,47 @@
+package com.google.udmi.util;
+
+import static com.google.udmi.util.BenchmarkTraces.POINTSET_EVENTS;
+import static com.google.udmi.util.BenchmarkTraces.getSchemaRoot;
+import static com.google.udmi.util.BenchmarkTraces.getTraceString;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Schema validation of a pointset event, with the schema already loaded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageValidatorBenchmark {
+
+  private static final String POINTSET_SCHEMA = "events_pointset";
+
+  private MessageValidator messageValidator;
+  private String pointsetString;
+
+  /**
+   * Load the schema and message, and do an initial validation to warm the schema cache.
+   */
+  @Setup
+  public void setup() {
+    messageValidator = new MessageValidator(getSchemaRoot().getAbsolutePath());
+    pointsetString = getTraceString(POINTSET_EVENTS);
+    List<String> errors = messageValidator.validateMessage(POINTSET_SCHEMA, pointsetString);
+    if (!errors.isEmpty()) {
+      throw new IllegalStateException("Unexpected validation errors: " + errors);
+    }
+  }
+
+  @Benchmark
+  public List<String> validate() {
+    return messageValidator.validateMessage(POINTSET_SCHEMA, pointsetString);
+  }
+}
@@ -0,0 +1,90 @@
+package com.google.udmi.util;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import udmi.schema.EndpointConfiguration;
+import udmi.schema.EndpointConfiguration.Protocol;
+import udmi.schema.PointPointsetModel;
+import udmi.schema.PointsetModel;
+
+/**
+ * Compare the structural schema copier against the json round-trip implementation. Run with
+ * the gc profiler (-prof gc) to also compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SchemaCopierBenchmark {
+
+  private static final int POINT_COUNT = 20;
+
+  private EndpointConfiguration endpointUnder;
+  private EndpointConfiguration endpointOver;
+  private PointsetModel pointsetModel;
+
+  /**
+   * Setup representative configuration and model objects.
+   */
+  @Setup
+  public void setup() {
+    endpointUnder = new EndpointConfiguration();
+    endpointUnder.protocol = Protocol.PUBSUB;
+    endpointUnder.hostname = "bos-platform-testing";
+    endpointUnder.recv_id = "udmi_target";
+    endpointUnder.send_id = "udmi_reflect";
+    endpointUnder.capacity = 1000;
+    endpointUnder.generation = new Date();
+    endpointOver = new EndpointConfiguration();
+    endpointOver.recv_id = "udmi_control";
+    endpointOver.periodic_sec = 60;
+
+    pointsetModel = new PointsetModel();
+    pointsetModel.points = new HashMap<>();
+    for (int i = 0; i < POINT_COUNT; i++) {
+      PointPointsetModel point = new PointPointsetModel();
+      point.units = "Degrees-Celsius";
+      point.ref = "BV" + i + ".present_value";
+      point.writable = i % 2 == 0;
+      point.baseline_value = 21.5;
+      pointsetModel.points.put("point_" + i, point);
+    }
+  }
+
+  @Benchmark
+  public Object copyEndpointJson() {
+    return GeneralUtils.jsonCopy(endpointUnder);
+  }
+
+  @Benchmark
+  public Object copyEndpointStructural() {
+    return SchemaCopier.deepCopy(endpointUnder);
+  }
+
+  @Benchmark
+  public Object copyModelJson() {
+    return GeneralUtils.jsonCopy(pointsetModel);
+  }
+
+  @Benchmark
+  public Object copyModelStructural() {
+    return SchemaCopier.deepCopy(pointsetModel);
+  }
+
+  @Benchmark
+  public Object mergeEndpointJson() {
+    return GeneralUtils.jsonMerge(endpointUnder, endpointOver);
+  }
+
+  @Benchmark
+  public Object mergeEndpointStructural() {
+    return SchemaCopier.mergeObject(endpointUnder, endpointOver);
+  }
+}
@@ -22,6 +22,10 @@ import static com.google.udmi.util.MetadataMapKeys.UDMI_UPDATED;
 import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
 import static java.util.Optional.ofNullable;
+import static java.util.concurrent.CompletableFuture.allOf;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.runAsync;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
 import static java.util.stream.Collectors.toMap;
 import static udmi.schema.CloudModel.ModelOperation.BIND;
 import static udmi.schema.CloudModel.ModelOperation.BOUND;
@@ -82,6 +86,7 @@ import com.google.udmi.util.GeneralUtils;
 import com.google.udmi.util.JsonUtil;
 import java.io.File;
 import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Date;
 import java.util.HashMap;
@@ -91,8 +96,14 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -138,8 +149,12 @@ public class ClearBladeIotAccessProvider extends IotAccessBase {
   private static final CharSequence HAD_BOUND_DEVICES_MARKER = " it has associated devices.";
   private static final CharSequence BOUND_TO_GATEWAY_MARKER = " it's associated with ";
   private static final CharSequence DUPLICATES_ERROR_MARKER = " duplicates in bound_devices";
+  private static final int AUGMENT_PARALLELISM = 8;
   private final String projectId;
   private final DeviceManagerInterface deviceManager;
+  private final ExecutorService pageExecutor = Executors.newCachedThreadPool();
+  private final ExecutorService augmentExecutor =
+      Executors.newFixedThreadPool(AUGMENT_PARALLELISM);
 
   /**
    * Create a new instance for interfacing with GCP IoT Core.
@@ -182,10 +197,6 @@ public class ClearBladeIotAccessProvider extends IotAccessBase {
     return getDate(isNullOrEmpty(lastEventTime) ? null : lastEventTime);
   }
 
-  private boolean isGateway(Entry<String, CloudModel> modelEntry) {
-    return modelEntry.getValue().resource_type == GATEWAY;
-  }
-
   /**
    * Core test function for listing the devices in a registry.
    */
@@ -230,6 +241,7 @@ public class ClearBladeIotAccessProvider extends IotAccessBase {
       System.err.printf("Wrote device state to %s%n", stateFile.getAbsoluteFile());
 
     }
+    clearBladeIotAccessProvider.shutdown();
   }
 
   private static Resource_type resourceType(Device deviceRaw) {
@@ -407,51 +419,65 @@ public class ClearBladeIotAccessProvider extends IotAccessBase {
 
   private HashMap<String, CloudModel> fetchDevices(String deviceRegistryId,
       Consumer<String> progress, boolean chattyProgress, GatewayListOptions gatewayListOptions) {
+    HashMap<String, CloudModel> collect = new HashMap<>();
+    fetchDevicePages(deviceRegistryId, gatewayListOptions, (page, more) -> {
+      List<String> exists = page.keySet().stream().filter(collect::containsKey).toList();
+      ifNotTrueThen(exists.isEmpty(),
+          () -> progress.accept("Found duplicate device entries: " + exists));
+      collect.putAll(page);
+      ifTrueThen(more || chattyProgress,
+          () -> progress.accept(getProgressMessage(collect.size(), gatewayListOptions)));
+    });
+    return collect;
+  }
+
+  /**
+   * Fetch the device list in pages, handing each page to the consumer along with whether there are
+   * more to come. Page tokens are sequential, so pages can't be fetched in parallel, but the next
+   * page is fetched in the background while the current one is being consumed.
+   */
+  private void fetchDevicePages(String deviceRegistryId, GatewayListOptions gatewayListOptions,
+      BiConsumer<Map<String, CloudModel>, Boolean> pageConsumer) {
     String location = getRegistryLocation(deviceRegistryId);
     String registryFullName =
         RegistryName.of(projectId, location, deviceRegistryId).getRegistryFullName();
-    String pageToken = null;
-    HashMap<String, CloudModel> collect = new HashMap<>();
-    int queryCount = 0;
-    do {
+    Function<String, DevicesListResponse> fetchPage = pageToken -> {
       DevicesListRequest request = DevicesListRequest.Builder.newBuilder().setParent(
               registryFullName)
           .setGatewayListOptions(gatewayListOptions)
           .setPageToken(pageToken)
           .build();
-      DevicesListResponse response = deviceManager.listDevices(request);
-      requireNonNull(response, "DeviceRegistriesList fetch failed");
+      return requireNonNull(deviceManager.listDevices(request), "DevicesList fetch failed");
+    };
+    int queryCount = 0;
+    CompletableFuture<DevicesListResponse> nextPage = completedFuture(fetchPage.apply(null));
+    while (nextPage != null) {
+      DevicesListResponse response = nextPage.join();
+      String pageToken = response.getNextPageToken();
+      nextPage = ifNotNullGet(pageToken,
+          token -> supplyAsync(() -> fetchPage.apply(token), pageExecutor));
       Map<String, CloudModel> responseMap =
           response.getDevicesList().stream().map(ClearBladeIotAccessProvider::convertPartial)
               .collect(toMap(Entry::getKey, Entry::getValue));
-      List<String> exists = responseMap.keySet().stream().filter(collect::containsKey).toList();
-      ifNotTrueThen(exists.isEmpty(),
-          () -> progress.accept("Found duplicate device entries: " + exists));
-
-      collect.putAll(responseMap);
-      pageToken = response.getNextPageToken();
       queryCount++;
-      ifTrueThen(pageToken != null || chattyProgress,
-          () -> progress.accept(getProgressMessage(collect, gatewayListOptions)));
-      debug(format("fetchDevices %s #%d found %d total %d more %s", deviceRegistryId,
-          queryCount, responseMap.size(), collect.size(), pageToken != null));
-    } while (pageToken != null);
-    return collect;
+      debug(format("fetchDevices %s #%d found %d more %s", deviceRegistryId, queryCount,
+          responseMap.size(), pageToken != null));
+      pageConsumer.accept(responseMap, pageToken != null);
+    }
   }
 
-  private static String getProgressMessage(HashMap<String, CloudModel> collect,
-      GatewayListOptions gatewayListOptions) {
+  private static String getProgressMessage(int count, GatewayListOptions gatewayListOptions) {
     if (gatewayListOptions != null) {
       String gatewayId = gatewayListOptions.getAssociationsGatewayId();
       if (gatewayId != null) {
-        return format("Fetched %d devices bound to gateway %s", collect.size(), gatewayId);
+        return format("Fetched %d devices bound to gateway %s", count, gatewayId);
       }
       String deviceId = gatewayListOptions.getAssociationsDeviceId();
       if (deviceId != null) {
-        return format("Fetched %s gateways bound to device %s", collect.size(), deviceId);
+        return format("Fetched %s gateways bound to device %s", count, deviceId);
       }
     }
-    return format("Fetched %d devices...", collect.size());
+    return format("Fetched %d devices...", count);
   }
 
   private CloudModel findDevicesForGateway(String registryId, Device device) {
@@ -523,15 +549,17 @@ public class ClearBladeIotAccessProvider extends IotAccessBase {
     try {
       CloudModel cloudModel = new CloudModel();
       Consumer<String> progress = ofNullable(maybeProgress).orElse(this::bitBucket);
-      GatewayListOptions options = ifNotNullGet(gatewayId, this::getBoundDevicesOptions);
-      HashMap<String, CloudModel> boundDevices =
-          fetchDevices(registryId, progress, chattyProgress, options);
-      debug(format("Fetched %d devices from %s gateway %s", boundDevices.size(), registryId,
-          gatewayId));
       if (gatewayId != null) {
+        HashMap<String, CloudModel> boundDevices = fetchDevices(registryId, progress,
+            chattyProgress, getBoundDevicesOptions(gatewayId));
+        debug(format("Fetched %d devices from %s gateway %s", boundDevices.size(), registryId,
+            gatewayId));
         cloudModel.gateway = makeGatewayModel(boundDevices);
       } else {
-        cloudModel.device_ids = augmentGatewayModels(registryId, boundDevices, progress);
+        HashMap<String, CloudModel> devices = new HashMap<>();
+        streamRegistryDevices(registryId, devices::put, progress);
+        debug(format("Fetched %d devices from %s", devices.size(), registryId));
+        cloudModel.device_ids = devices;
       }
       return cloudModel;
     } catch (Exception e) {
@@ -539,40 +567,73 @@ public class ClearBladeIotAccessProvider extends IotAccessBase {
     }
   }
 
-  private Map<String, CloudModel> augmentGatewayModels(String registryId,
-      HashMap<String, CloudModel> boundDevices, Consumer<String> progress) {
-    requireNonNull(progress, "augmentGatewayModels has null progress");
-    HashMap<String, String> proxyDeviceGateways = new HashMap<>();
-    Set<Entry<String, CloudModel>> gateways =
-        boundDevices.entrySet().stream().filter(this::isGateway).collect(Collectors.toSet());
-    AtomicInteger count = new AtomicInteger();
-    gateways.forEach(entry -> {
-      int added = augmentGatewayModel(registryId, entry, proxyDeviceGateways, progress);
-      progress.accept(format("Augmented gateway %s (%d/%d) with %d entries",
-          entry.getKey(), count.incrementAndGet(), gateways.size(), added));
+  /**
+   * Stream all the devices in a registry. Gateways are augmented with their bound devices in
+   * parallel as soon as they're listed, and delivered when done. Other devices can't be delivered
+   * until all the gateways are done, since only then is it known which of them are proxied.
+   */
+  private void streamRegistryDevices(String registryId, BiConsumer<String, CloudModel> consumer,
+      Consumer<String> maybeProgress) {
+    requireNonNull(maybeProgress, "streamRegistryDevices has null progress");
+    Map<String, String> proxyDeviceGateways = new ConcurrentHashMap<>();
+    HashMap<String, CloudModel> pending = new HashMap<>();
+    Set<String> listed = new HashSet<>();
+    List<CompletableFuture<Void>> augmentations = new ArrayList<>();
+    AtomicInteger gateways = new AtomicInteger();
+    AtomicInteger augmented = new AtomicInteger();
+    Object deliveryLock = new Object();
+    Consumer<String> progress = message -> {
+      synchronized (deliveryLock) {
+        maybeProgress.accept(message);
+      }
+    };
+    BiConsumer<String, CloudModel> deliver = (deviceId, cloudModel) -> {
+      synchronized (deliveryLock) {
+        consumer.accept(deviceId, cloudModel);
+      }
+    };
+    fetchDevicePages(registryId, null, (page, more) -> {
+      List<String> exists = page.keySet().stream().filter(listed::contains).toList();
+      ifNotTrueThen(exists.isEmpty(),
+          () -> progress.accept("Found duplicate device entries: " + exists));
+      listed.addAll(page.keySet());
+      progress.accept(getProgressMessage(listed.size(), null));
+      page.forEach((deviceId, cloudModel) -> {
+        if (cloudModel.resource_type != GATEWAY) {
+          pending.put(deviceId, cloudModel);
+          return;
+        }
+        gateways.incrementAndGet();
+        augmentations.add(runAsync(() -> {
+          int added = augmentGatewayModel(registryId, deviceId, cloudModel, proxyDeviceGateways,
+              progress);
+          progress.accept(format("Augmented gateway %s (%d/%d) with %d entries", deviceId,
+              augmented.incrementAndGet(), gateways.get(), added));
+          deliver.accept(deviceId, cloudModel);
+        }, augmentExecutor));
+      });
     });
+    allOf(augmentations.toArray(CompletableFuture[]::new)).join();
     progress.accept(format("Bound to gateways: %s", setOrSize(proxyDeviceGateways.keySet())));
-    boundDevices.entrySet()
-        .forEach(entry -> augmentProxiedModel(entry, proxyDeviceGateways));
-    return boundDevices;
+    pending.forEach((deviceId, cloudModel) -> {
+      augmentProxiedModel(cloudModel, proxyDeviceGateways.get(deviceId));
+      deliver.accept(deviceId, cloudModel);
+    });
   }
 
-  private void augmentProxiedModel(Entry<String, CloudModel> entry,
-      HashMap<String, String> proxyDeviceGateways) {
-    String gatewayId = proxyDeviceGateways.get(entry.getKey());
+  private void augmentProxiedModel(CloudModel cloudModel, String gatewayId) {
     ifNotNullThen(gatewayId, id -> {
       GatewayModel gatewayModel = new GatewayModel();
       gatewayModel.gateway_id = id;
       gatewayModel.proxy_ids = null;
-      entry.getValue().gateway = gatewayModel;
+      cloudModel.gateway = gatewayModel;
     });
   }
 
-  private int augmentGatewayModel(String registryId, Entry<String, CloudModel> model,
-      HashMap<String, String> proxyDeviceGateways, Consumer<String> progress) {
-    String gatewayId = model.getKey();
+  private int augmentGatewayModel(String registryId, String gatewayId, CloudModel cloudModel,
+      Map<String, String> proxyDeviceGateways, Consumer<String> progress) {
     CloudModel gatewayModel = listRegistryDevices(registryId, gatewayId, progress, false);
-    model.getValue().gateway = gatewayModel.gateway;
+    cloudModel.gateway = gatewayModel.gateway;
     gatewayModel.gateway.proxy_ids.forEach(proxyId -> proxyDeviceGateways.put(proxyId, gatewayId));
     return gatewayModel.gateway.proxy_ids.size();
   }
@@ -944,6 +1005,23 @@ public class ClearBladeIotAccessProvider extends IotAccessBase {
     }
   }
 
+  @Override
+  public void shutdown() {
+    pageExecutor.shutdown();
+    augmentExecutor.shutdown();
+    super.shutdown();
+  }
+
+  @Override
+  public void streamDevices(String registryId, BiConsumer<String, CloudModel> consumer,
+      Consumer<String> progress) {
+    try {
+      streamRegistryDevices(registryId, consumer, ofNullable(progress).orElse(this::bitBucket));
+    } catch (Exception e) {
+      throw new RuntimeException("While streaming devices " + getRegistryName(registryId), e);
+    }
+  }
+
   @Override
   public String updateConfig(Envelope envelope, String config, Long version) {
     String registryId = envelope.deviceRegistryId;
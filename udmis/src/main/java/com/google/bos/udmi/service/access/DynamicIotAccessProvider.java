@@ -20,6 +20,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -194,6 +195,12 @@ public class DynamicIotAccessProvider extends IotAccessBase {
     return format(PROVIDER_KEY_FORMAT, registryId, deviceId);
   }
 
+  @Override
+  public void streamDevices(String registryId, BiConsumer<String, CloudModel> consumer,
+      Consumer<String> progress) {
+    getProviderFor(registryId, null).streamDevices(registryId, consumer, progress);
+  }
+
   @Override
   public String updateConfig(Envelope envelope, String config, Long version) {
     throw new RuntimeException("Shouldn't be called for dynamic provider");
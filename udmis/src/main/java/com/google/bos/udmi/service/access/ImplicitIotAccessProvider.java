@@ -20,7 +20,6 @@ import static com.google.udmi.util.JsonUtil.stringifyTerse;
 import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
 import static java.util.Optional.ofNullable;
-import static java.util.function.Predicate.not;
 import static udmi.schema.CloudModel.ModelOperation.DELETE;
 import static udmi.schema.CloudModel.ModelOperation.READ;
 import static udmi.schema.CloudModel.Resource_type.DIRECT;
@@ -34,12 +33,18 @@ import com.google.bos.udmi.service.support.ConnectionBroker.Direction;
 import com.google.bos.udmi.service.support.DataRef;
 import com.google.bos.udmi.service.support.IotDataProvider;
 import com.google.bos.udmi.service.support.MosquittoBroker;
+import com.google.bos.udmi.service.support.MosquittoControlBroker;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
 import com.google.udmi.util.GeneralUtils;
 import com.google.udmi.util.JsonUtil;
 import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -47,7 +52,11 @@ import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import udmi.schema.CloudModel;
@@ -86,20 +95,46 @@ public class ImplicitIotAccessProvider extends IotAccessBase {
   private static final String CONFIG_SUFFIX = "/config";
   private static final String METADATA_STR_KEY = "metadata_str";
   private static final String RESOURCE_TYPE_PROPERTY = "resource_type";
+  private static final String GATEWAY_INDEX_KEY = "gateway_index";
+  private static final String BROKER_KEY = "broker";
+  private static final String SHELL_BROKER = "shell";
+  private static final String STATE_FLUSH_MS_KEY = "state_flush_ms";
+  private static final String STATE_FLUSH_SIZE_KEY = "state_flush_size";
+  private static final long DEFAULT_STATE_FLUSH_MS = 1000;
+  private static final int DEFAULT_STATE_FLUSH_SIZE = 100;
   private final boolean enabled;
-  private final ConnectionBroker broker = new MosquittoBroker(this);
+  private final ConnectionBroker broker;
   private final Future<Void> connLogger;
   private IotDataProvider database;
   private ReflectProcessor reflect;
   private final Map<String, Integer> configPublished = new ConcurrentHashMap<>();
+  private final Set<String> indexedRegistries = ConcurrentHashMap.newKeySet();
+  private final Map<Entry<String, String>, String> pendingStates = new ConcurrentHashMap<>();
+  private final AtomicBoolean stateFlushRequested = new AtomicBoolean();
+  private final Object stateFlushLock = new Object();
+  private final long stateFlushMs;
+  private final int stateFlushSize;
+  private ScheduledExecutorService stateFlusher;
 
   /**
    * Create an access provider with implicit internal resources.
    */
   public ImplicitIotAccessProvider(IotAccess iotAccess) {
+    this(iotAccess, null);
+  }
+
+  @VisibleForTesting
+  ImplicitIotAccessProvider(IotAccess iotAccess, ConnectionBroker connectionBroker) {
     super(iotAccess);
     enabled = isNullOrNotEmpty(options.get(ENABLED_KEY));
+    broker = ofNullable(connectionBroker).orElseGet(
+        () -> SHELL_BROKER.equals(options.get(BROKER_KEY)) ? new MosquittoBroker(this)
+            : new MosquittoControlBroker(this));
     connLogger = broker.addEventListener(CLIENT_PREFIX, this::brokerHandler);
+    stateFlushMs = ofNullable(options.get(STATE_FLUSH_MS_KEY)).map(Long::parseLong)
+        .orElse(DEFAULT_STATE_FLUSH_MS);
+    stateFlushSize = ofNullable(options.get(STATE_FLUSH_SIZE_KEY)).map(Integer::parseInt)
+        .orElse(DEFAULT_STATE_FLUSH_SIZE);
   }
 
   /**
@@ -109,21 +144,172 @@ public class ImplicitIotAccessProvider extends IotAccessBase {
     return String.valueOf(Math.abs(Objects.hash(registryId, deviceId)));
   }
 
+  private static Map<String, String> deletions(Collection<String> keys) {
+    Map<String, String> deletions = new HashMap<>();
+    keys.forEach(key -> deletions.put(key, null));
+    return deletions;
+  }
+
   private void bindDevicesToGateway(String registryId, String gatewayId, CloudModel cloudModel) {
     Set<String> deviceIds = ImmutableSet.copyOf(cloudModel.gateway.proxy_ids);
-    deviceIds.forEach(deviceId -> {
-      registryDeviceRef(registryId, deviceId).put(BOUND_TO_KEY, gatewayId);
-      broker.bindGateway(clientId(registryId, gatewayId), clientId(registryId, deviceId));
-    });
+    updateGatewayBindings(registryId, gatewayId, deviceIds);
+    broker.bindGateway(clientId(registryId, gatewayId),
+        deviceIds.stream().map(deviceId -> clientId(registryId, deviceId)).toList());
   }
 
   private void unbindDevicesFromGateway(String registryId, String gatewayId,
       CloudModel cloudModel) {
     Set<String> deviceIds = ImmutableSet.copyOf(cloudModel.gateway.proxy_ids);
-    deviceIds.forEach(deviceId -> {
-      registryDeviceRef(registryId, deviceId).delete(BOUND_TO_KEY);
-      broker.unbindGateway(clientId(registryId, gatewayId), clientId(registryId, deviceId));
-    });
+    updateGatewayBindings(registryId, null, deviceIds);
+    broker.unbindGateway(clientId(registryId, gatewayId),
+        deviceIds.stream().map(deviceId -> clientId(registryId, deviceId)).toList());
+  }
+
+  /**
+   * Bind (or unbind, for a null gateway) a set of devices, updating both the device bound_to
+   * entries and the gateway index. Devices previously bound to a different gateway are removed
+   * from that gateway's index. The read-modify-write is done under the registry lock, so that
+   * concurrent binds of the same device can't leave a stale index entry behind.
+   */
+  private void updateGatewayBindings(String registryId, String gatewayId, Set<String> deviceIds) {
+    ensureGatewayIndex(registryId);
+    String timestamp = isoConvert();
+    try (AutoCloseable locked = database.ref().registry(registryId).lock()) {
+      Map<String, Map<String, String>> indexUpdates = new HashMap<>();
+      Map<DataRef, Map<String, String>> updates = new HashMap<>();
+      deviceIds.forEach(deviceId -> {
+        DataRef deviceRef = registryDeviceRef(registryId, deviceId);
+        ifNotNullThen(deviceRef.get(BOUND_TO_KEY), previous ->
+            indexUpdates.computeIfAbsent(previous, id -> new HashMap<>()).put(deviceId, null));
+        ifNotNullThen(gatewayId, id ->
+            indexUpdates.computeIfAbsent(id, x -> new HashMap<>()).put(deviceId, timestamp));
+        Map<String, String> deviceUpdate = new HashMap<>();
+        deviceUpdate.put(BOUND_TO_KEY, gatewayId);
+        updates.put(deviceRef, deviceUpdate);
+      });
+      indexUpdates.forEach(
+          (id, entries) -> updates.put(registryGatewayRef(registryId, id), entries));
+      updateGatewayEntries(registryId, updates);
+    } catch (Exception e) {
+      throw new RuntimeException("While updating gateway bindings for " + registryId, e);
+    }
+  }
+
+  /**
+   * Apply device and gateway index updates, in chunks no larger than the database can update at
+   * once. The chunks aren't atomic with each other, so if one fails the gateway index of the
+   * registry is marked for a rebuild from the device bound_to entries.
+   */
+  private void updateGatewayEntries(String registryId, Map<DataRef, Map<String, String>> updates) {
+    try {
+      updateChunks(updates).forEach(database::update);
+    } catch (RuntimeException e) {
+      indexedRegistries.remove(registryId);
+      try {
+        database.update(ImmutableMap.of(database.ref().registry(registryId),
+            deletions(List.of(GATEWAY_INDEX_KEY))));
+      } catch (Exception suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Split updates into chunks of at most the number of entries the database can update at once.
+   * The entries of a single ref may be split across chunks.
+   */
+  private List<Map<DataRef, Map<String, String>>> updateChunks(
+      Map<DataRef, Map<String, String>> updates) {
+    int maxEntries = database.maxUpdateEntries();
+    List<Map<DataRef, Map<String, String>>> chunks = new ArrayList<>();
+    Map<DataRef, Map<String, String>> chunk = new HashMap<>();
+    int chunkEntries = 0;
+    for (Entry<DataRef, Map<String, String>> update : updates.entrySet()) {
+      for (Entry<String, String> entry : update.getValue().entrySet()) {
+        if (chunkEntries == maxEntries) {
+          chunks.add(chunk);
+          chunk = new HashMap<>();
+          chunkEntries = 0;
+        }
+        chunk.computeIfAbsent(update.getKey(), ref -> new HashMap<>())
+            .put(entry.getKey(), entry.getValue());
+        chunkEntries++;
+      }
+    }
+    if (chunkEntries > 0) {
+      chunks.add(chunk);
+    }
+    return chunks;
+  }
+
+  /**
+   * Make sure the gateway index for a registry exists, rebuilding it from the device entries if
+   * the registry has not been indexed yet (e.g. it was written before the index existed). The
+   * check is done under the registry lock, so concurrent first uses only rebuild it once.
+   */
+  private void ensureGatewayIndex(String registryId) {
+    if (indexedRegistries.contains(registryId)) {
+      return;
+    }
+    DataRef registryRef = database.ref().registry(registryId);
+    try (AutoCloseable locked = registryRef.lock()) {
+      if (registryRef.get(GATEWAY_INDEX_KEY) == null) {
+        rebuildGatewayIndex(registryId);
+      }
+    } catch (Exception e) {
+      throw new RuntimeException("While ensuring gateway index for " + registryId, e);
+    }
+    indexedRegistries.add(registryId);
+  }
+
+  /**
+   * Periodic (or size triggered) flush of pending states. A failure is only logged, since the
+   * entries stay pending and so are retried on the next flush.
+   */
+  private void flushStates() {
+    stateFlushRequested.set(false);
+    try {
+      writePendingStates();
+    } catch (Exception e) {
+      error("Exception flushing %d device states: %s", pendingStates.size(),
+          friendlyStackTrace(e));
+    }
+  }
+
+  /**
+   * Write out the latest saved state of each device, in batches no larger than the database can
+   * update at once. The states don't need to be written atomically with each other. Entries stay
+   * pending (and visible to fetchState) until written, so a failed batch is left for the next
+   * flush, as is anything saved since.
+   */
+  private void writePendingStates() {
+    synchronized (stateFlushLock) {
+      Map<Entry<String, String>, String> flushing = new HashMap<>(pendingStates);
+      if (flushing.isEmpty()) {
+        return;
+      }
+      for (List<Entry<Entry<String, String>, String>> batch :
+          Iterables.partition(flushing.entrySet(), database.maxUpdateEntries())) {
+        Map<DataRef, Map<String, String>> updates = new HashMap<>();
+        batch.forEach(entry -> updates.put(
+            registryDeviceRef(entry.getKey().getKey(), entry.getKey().getValue()),
+            ImmutableMap.of(LAST_STATE_KEY, entry.getValue())));
+        database.update(updates);
+        batch.forEach(entry -> pendingStates.remove(entry.getKey(), entry.getValue()));
+      }
+      debug("Flushed %d device states", flushing.size());
+    }
+  }
+
+  /**
+   * Drop any pending state for a device, waiting out any flush in progress so that it can't
+   * write the state back after the device is removed.
+   */
+  private void discardPendingState(String registryId, String deviceId) {
+    synchronized (stateFlushLock) {
+      pendingStates.remove(Map.entry(registryId, deviceId));
+    }
   }
 
   private void blockDevice(String registryId, String deviceId, CloudModel cloudModel) {
@@ -165,16 +351,38 @@ public class ImplicitIotAccessProvider extends IotAccessBase {
     ifNullThen(cloudModel.num_id, () -> cloudModel.num_id = hashedDeviceId(registryId, deviceId));
 
     Map<String, String> map = toDeviceMap(cloudModel, timestamp);
-    DataRef props = mungeDevice(registryId, deviceId, map);
-    props.entries().keySet().stream().filter(not(map::containsKey)).forEach(props::delete);
+    registryDeviceRef(registryId, deviceId).replace(map);
+    authorizeDevice(registryId, deviceId, map);
   }
 
   private void deleteDevice(String registryId, String deviceId, CloudModel cloudModel) {
-    DataRef properties = registryDeviceRef(registryId, deviceId);
-    properties.entries().keySet().forEach(properties::delete);
-    registryDevicesRef(registryId).delete(deviceId);
+    discardPendingState(registryId, deviceId);
+    ensureGatewayIndex(registryId);
+    final Set<String> proxyIds;
+    final String gatewayId;
+    try (AutoCloseable locked = database.ref().registry(registryId).lock()) {
+      DataRef properties = registryDeviceRef(registryId, deviceId);
+      Map<String, String> entries = properties.entries();
+      DataRef proxiesRef = registryGatewayRef(registryId, deviceId);
+      proxyIds = proxiesRef.entries().keySet();
+      gatewayId = entries.get(BOUND_TO_KEY);
+
+      Map<DataRef, Map<String, String>> updates = new HashMap<>();
+      updates.put(properties, deletions(entries.keySet()));
+      updates.put(registryDevicesRef(registryId), deletions(List.of(deviceId)));
+      ifNotNullThen(gatewayId, id ->
+          updates.put(registryGatewayRef(registryId, id), deletions(List.of(deviceId))));
+      updates.put(proxiesRef, deletions(proxyIds));
+      proxyIds.forEach(proxyId ->
+          updates.put(registryDeviceRef(registryId, proxyId), deletions(List.of(BOUND_TO_KEY))));
+      updateGatewayEntries(registryId, updates);
+    } catch (Exception e) {
+      throw new RuntimeException(format("While deleting device %s/%s", registryId, deviceId), e);
+    }
+
     broker.authorize(clientId(registryId, deviceId), null);
-    String gatewayId = properties.get(BOUND_TO_KEY);
+    broker.unbindGateway(clientId(registryId, deviceId),
+        proxyIds.stream().map(proxyId -> clientId(registryId, proxyId)).toList());
 
     if (gatewayId != null) {
       broker.unbindGateway(clientId(registryId, gatewayId), clientId(registryId, deviceId));
@@ -191,21 +399,25 @@ public class ImplicitIotAccessProvider extends IotAccessBase {
     return reply;
   }
 
-  private DataRef mungeDevice(String registryId, String deviceId, Map<String, String> map) {
-    DataRef properties = registryDeviceRef(registryId, deviceId);
-    map.forEach((key, value) ->
-        ifNotNullThen(value, v -> properties.put(key, value), () -> properties.delete(key)));
-
+  private void authorizeDevice(String registryId, String deviceId, Map<String, String> map) {
     if (map.containsKey(AUTH_PASSWORD_PROPERTY)) {
       broker.authorize(clientId(registryId, deviceId), map.get(AUTH_PASSWORD_PROPERTY));
     }
-    return properties;
+  }
+
+  private void mungeDevice(String registryId, String deviceId, Map<String, String> map) {
+    registryDeviceRef(registryId, deviceId).update(map);
+    authorizeDevice(registryId, deviceId, map);
   }
 
   private DataRef registryDeviceRef(String registryId, String deviceId) {
     return database.ref().registry(registryId).device(deviceId);
   }
 
+  private DataRef registryGatewayRef(String registryId, String gatewayId) {
+    return database.ref().registry(registryId).gateway(gatewayId);
+  }
+
   private DataRef registryDevicesRef(String registryId) {
     return database.ref().registry(registryId).collection(DEVICES_ACTIVE);
   }
@@ -262,6 +474,11 @@ public class ImplicitIotAccessProvider extends IotAccessBase {
   public void activate() {
     database = UdmiServicePod.getComponent(IMPLICIT_DATABASE_COMPONENT);
     reflect = UdmiServicePod.getComponent(ReflectProcessor.class);
+    if (stateFlushMs > 0) {
+      stateFlusher = Executors.newSingleThreadScheduledExecutor();
+      stateFlusher.scheduleWithFixedDelay(this::flushStates, stateFlushMs, stateFlushMs,
+          TimeUnit.MILLISECONDS);
+    }
     super.activate();
   }
 
@@ -322,7 +539,8 @@ public class ImplicitIotAccessProvider extends IotAccessBase {
 
   @Override
   public String fetchState(String registryId, String deviceId) {
-    return registryDeviceRef(registryId, deviceId).get(LAST_STATE_KEY);
+    return ofNullable(pendingStates.get(Map.entry(registryId, deviceId)))
+        .orElseGet(() -> registryDeviceRef(registryId, deviceId).get(LAST_STATE_KEY));
   }
 
   @Override
@@ -355,11 +573,10 @@ public class ImplicitIotAccessProvider extends IotAccessBase {
   }
 
   private Map<String, CloudModel> listBoundDevices(String registryId, String gatewayId) {
-    Set<String> deviceIds = registryDevicesRef(registryId).entries().keySet();
-    Map<String, CloudModel> devices = deviceIds.stream().filter(deviceId -> {
-      String boundTo = registryDeviceRef(registryId, deviceId).get(BOUND_TO_KEY);
-      return gatewayId.equals(boundTo);
-    }).collect(Collectors.toMap(id -> id, id -> fetchDevice(registryId, id)));
+    ensureGatewayIndex(registryId);
+    Set<String> deviceIds = registryGatewayRef(registryId, gatewayId).entries().keySet();
+    Map<String, CloudModel> devices = deviceIds.stream()
+        .collect(Collectors.toMap(id -> id, id -> fetchDevice(registryId, id)));
     List<CloudModel> gateways = devices.values().stream()
         .filter(model -> GATEWAY.equals(model.resource_type)).toList();
     checkState(gateways.isEmpty(),
@@ -410,9 +627,42 @@ public class ImplicitIotAccessProvider extends IotAccessBase {
     mungeDevice(registryId, deviceId, ImmutableMap.of(METADATA_STR_KEY, stringify(metadataMap)));
   }
 
+  /**
+   * Rebuild the gateway binding index for a registry from the bound_to entries of its devices,
+   * for registries that were populated before the index existed, or whose index was left
+   * inconsistent by a partially applied update. Stale index entries are removed.
+   */
+  public void rebuildGatewayIndex(String registryId) {
+    String timestamp = isoConvert();
+    Set<String> deviceIds = registryDevicesRef(registryId).entries().keySet();
+    Map<String, Map<String, String>> index = new HashMap<>();
+    deviceIds.forEach(deviceId -> ifNotNullThen(
+        registryDeviceRef(registryId, deviceId).get(BOUND_TO_KEY),
+        gatewayId -> index.computeIfAbsent(gatewayId, id -> new HashMap<>())
+            .put(deviceId, timestamp)));
+    Map<DataRef, Map<String, String>> updates = new HashMap<>();
+    Sets.union(deviceIds, index.keySet()).forEach(gatewayId -> {
+      DataRef gatewayRef = registryGatewayRef(registryId, gatewayId);
+      Map<String, String> proxies = new HashMap<>(index.getOrDefault(gatewayId, Map.of()));
+      gatewayRef.entries().keySet().forEach(proxyId -> proxies.putIfAbsent(proxyId, null));
+      ifNotTrueThen(proxies.isEmpty(), () -> updates.put(gatewayRef, proxies));
+    });
+    updateChunks(updates).forEach(database::update);
+    database.ref().registry(registryId).put(GATEWAY_INDEX_KEY, timestamp);
+    notice("Rebuilt gateway index for %s with %d gateways from %d devices", registryId,
+        index.size(), deviceIds.size());
+  }
+
   @Override
   public void saveState(String registryId, String deviceId, String stateBlob) {
-    registryDeviceRef(registryId, deviceId).put(LAST_STATE_KEY, stateBlob);
+    if (stateFlusher == null || stateFlusher.isShutdown()) {
+      registryDeviceRef(registryId, deviceId).put(LAST_STATE_KEY, stateBlob);
+      return;
+    }
+    pendingStates.put(Map.entry(registryId, deviceId), stateBlob);
+    if (pendingStates.size() >= stateFlushSize && stateFlushRequested.compareAndSet(false, true)) {
+      stateFlusher.execute(this::flushStates);
+    }
   }
 
   @Override
@@ -424,10 +674,25 @@ public class ImplicitIotAccessProvider extends IotAccessBase {
     reflect.getDispatcher().withEnvelope(envelope).publish(asMap(message));
   }
 
+  /**
+   * Shut down, writing out any pending states first. This relies on the database component still
+   * being available, which is why the pod shuts down data providers after everything else. Unlike
+   * the periodic flush, a failure here is thrown, since there won't be another chance to retry.
+   */
   @Override
   public void shutdown() {
     connLogger.cancel(true);
-    super.shutdown();
+    try {
+      ifNotNullThen(stateFlusher, flusher -> {
+        flusher.shutdown();
+        writePendingStates();
+      });
+    } catch (Exception e) {
+      throw new RuntimeException(
+          format("While flushing %d pending device states", pendingStates.size()), e);
+    } finally {
+      super.shutdown();
+    }
   }
 
   @Override
@@ -441,10 +706,13 @@ public class ImplicitIotAccessProvider extends IotAccessBase {
         throw new RuntimeException("Config version update mismatch");
       }
 
-      dataRef.put(LAST_CONFIG_KEY, config);
       String update = ofNullable(prevVersion).map(v -> v + 1)
           .orElseGet(() -> ofNullable(prev).map(Long::parseLong).orElse(1L)).toString();
-      dataRef.put(CONFIG_VER_KEY, update);
+      boolean updated = dataRef.compareAndUpdate(CONFIG_VER_KEY, prev,
+          ImmutableMap.of(LAST_CONFIG_KEY, config, CONFIG_VER_KEY, update));
+      if (!updated) {
+        throw new RuntimeException("Config version changed during update");
+      }
       info("Updated config %s #%s to #%s", dataRef, prev, update);
 
       sendConfigUpdate(registryId, deviceId, config);
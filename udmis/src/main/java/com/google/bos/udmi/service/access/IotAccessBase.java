@@ -9,21 +9,36 @@ import static com.google.udmi.util.JsonUtil.safeSleep;
 import static com.google.udmi.util.JsonUtil.toMap;
 import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
+import static java.util.Optional.ofNullable;
 
 import com.google.bos.udmi.service.core.DistributorPipe;
 import com.google.bos.udmi.service.core.ProcessorBase.PreviousParseException;
+import com.google.bos.udmi.service.messaging.MessagePipe.PipeStats;
 import com.google.bos.udmi.service.pod.ContainerBase;
+import com.google.bos.udmi.service.pod.MetricsServer;
 import com.google.bos.udmi.service.pod.SimpleHandler;
 import com.google.bos.udmi.service.pod.UdmiServicePod;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -43,15 +58,34 @@ public abstract class IotAccessBase extends ContainerBase implements IotAccessPr
   public static final int MAX_CONFIG_LENGTH = 262144;
   protected static final String EMPTY_JSON = "{}";
   private static final long REGISTRY_COMMAND_BACKOFF_SEC = 60;
-  private static final Map<Entry<String, String>, Instant> BACKOFF_MAP = new ConcurrentHashMap<>();
-  private static final long CONFIG_UPDATE_BACKOFF_MS = 1000;
+  private static final int BACKOFF_MAX_ENTRIES = 100000;
+  private static final Duration BACKOFF_EXPIRY = Duration.ofDays(1);
+  private static final Map<Entry<String, String>, BackoffEntry> BACKOFF_MAP =
+      Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Entry<Entry<String, String>, BackoffEntry> eldest) {
+          return size() > BACKOFF_MAX_ENTRIES || eldest.getValue().isExpired();
+        }
+      });
+  private static final long CONFIG_UPDATE_BACKOFF_MS = 50;
+  private static final long CONFIG_UPDATE_BACKOFF_MAX_MS = 2000;
+  private static final int MAX_BACKOFF_SHIFT = 16;
   private static final int CONFIG_UPDATE_MAX_RETRIES = 10;
   private static final Duration REGISTRY_REFRESH = Duration.ofMinutes(10);
+  private static final Duration REGISTRY_REFRESH_AHEAD = Duration.ofMinutes(8);
   private static final Duration REGISTRY_BACKOFF = Duration.ofMinutes(1);
   final Map<String, String> options;
+  private final Map<String, ConfigQueue> configQueues = new ConcurrentHashMap<>();
   private final AtomicReference<Instant> lastRegistryFetch =
       new AtomicReference<>(Instant.ofEpochSecond(0));
-  private CompletableFuture<Map<String, String>> registryRegions;
+  private final AtomicReference<CompletableFuture<Map<String, String>>> regionRefresh =
+      new AtomicReference<>();
+  private final AtomicLong regionHits = new AtomicLong();
+  private final AtomicLong regionMisses = new AtomicLong();
+  private final AtomicLong regionRefreshes = new AtomicLong();
+  private final AtomicLong regionRefreshMs = new AtomicLong();
+  private final ExecutorService regionRefresher = Executors.newSingleThreadExecutor();
+  private volatile Map<String, String> registryRegions;
   private DistributorPipe distributor;
 
   public IotAccessBase(IotAccess iotAccess) {
@@ -59,8 +93,18 @@ public abstract class IotAccessBase extends ContainerBase implements IotAccessPr
     options = parseOptions(iotAccess);
   }
 
+  /**
+   * Get the backoff before a (zero-based) config update retry. It's exponential with jitter, so
+   * that contending updates for the same device spread out rather than retry in lockstep.
+   */
+  static long configBackoffMs(int attempt) {
+    long ceiling = Math.min(CONFIG_UPDATE_BACKOFF_MAX_MS,
+        CONFIG_UPDATE_BACKOFF_MS << Math.min(attempt, MAX_BACKOFF_SHIFT));
+    return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+  }
+
   private static Instant getBackoff(String registryId, String deviceId) {
-    return BACKOFF_MAP.get(getBackoffKey(registryId, deviceId));
+    return ifNotNullGet(BACKOFF_MAP.get(getBackoffKey(registryId, deviceId)), BackoffEntry::until);
   }
 
   private static Entry<String, String> getBackoffKey(String registryId, String deviceId) {
@@ -93,11 +137,7 @@ public abstract class IotAccessBase extends ContainerBase implements IotAccessPr
 
   protected String getRefreshedRegistryRegion(String registryId) {
     populateRegistryRegions(registryId);
-    try {
-      return registryRegions.get().get(registryId);
-    } catch (Exception e) {
-      throw new RuntimeException("While getting region for registry " + registryId, e);
-    }
+    return ifNotNullGet(registryRegions, regions -> regions.get(registryId));
   }
 
   @NotNull
@@ -106,30 +146,86 @@ public abstract class IotAccessBase extends ContainerBase implements IotAccessPr
         "unknown region for registry " + registryId);
   }
 
-  protected synchronized void populateRegistryRegions() {
+  protected void populateRegistryRegions() {
     populateRegistryRegions(null);
   }
 
-  protected synchronized void populateRegistryRegions(String checkRegistryId) {
+  /**
+   * Make sure the registry regions are loaded, and include the given registry (if any). Callers
+   * only block on a refresh when there's nothing loaded yet, or the registry is unknown (and the
+   * last refresh wasn't too recent). Otherwise, possibly stale regions are served while a refresh
+   * happens in the background once they get old enough.
+   */
+  protected void populateRegistryRegions(String checkRegistryId) {
+    Map<String, String> regions = registryRegions;
     Instant now = Instant.now();
     Instant last = lastRegistryFetch.get();
-    boolean stale = last.plus(REGISTRY_REFRESH).isBefore(now);
+    boolean known = regions != null && (checkRegistryId == null
+        || regions.containsKey(checkRegistryId));
     boolean backoff = last.plus(REGISTRY_BACKOFF).isAfter(now);
-    boolean target = ifNotNullGet(checkRegistryId,
-        id -> registryRegions.getNow(ImmutableMap.of()).containsKey(id), true);
-    boolean update = stale || !(target || backoff);
-    if (update) {
-      lastRegistryFetch.set(now);
-      Map<String, String> previousRegions =
-          ifNotNullGet(registryRegions, regions -> regions.getNow(ImmutableMap.of()));
-      registryRegions = new CompletableFuture<>();
-      registryRegions.complete(fetchRegistryRegions());
-      Map<String, String> currentRegions = registryRegions.getNow(ImmutableMap.of());
+    (known ? regionHits : regionMisses).incrementAndGet();
+    if (regions == null || !(known || backoff)) {
+      try {
+        refreshRegistryRegions().get();
+      } catch (Exception e) {
+        throw new RuntimeException("While refreshing registry regions", e);
+      }
+    } else if (last.plus(REGISTRY_REFRESH_AHEAD).isBefore(now)) {
+      refreshRegistryRegions();
+    }
+  }
+
+  /**
+   * Start a refresh of the registry regions, or join the one that's already in progress.
+   */
+  private CompletableFuture<Map<String, String>> refreshRegistryRegions() {
+    CompletableFuture<Map<String, String>> refresh = new CompletableFuture<>();
+    CompletableFuture<Map<String, String>> existing = regionRefresh.compareAndExchange(null,
+        refresh);
+    if (existing != null) {
+      return existing;
+    }
+    lastRegistryFetch.set(Instant.now());
+    try {
+      regionRefresher.execute(() -> updateRegistryRegions(refresh));
+    } catch (RejectedExecutionException e) {
+      regionRefresh.set(null);
+      refresh.completeExceptionally(e);
+    }
+    return refresh;
+  }
+
+  private void updateRegistryRegions(CompletableFuture<Map<String, String>> refresh) {
+    try {
+      long startTime = System.currentTimeMillis();
+      Map<String, String> previousRegions = registryRegions;
+      Map<String, String> currentRegions =
+          new ConcurrentHashMap<>(ofNullable(fetchRegistryRegions()).orElse(ImmutableMap.of()));
+      registryRegions = currentRegions;
+      regionRefreshes.incrementAndGet();
+      regionRefreshMs.addAndGet(System.currentTimeMillis() - startTime);
       ifNotNullThen(previousRegions,
           () -> disseminateDifference(previousRegions, currentRegions));
+      regionRefresh.set(null);
+      refresh.complete(currentRegions);
+    } catch (Exception e) {
+      error("Exception refreshing registry regions: " + friendlyStackTrace(e));
+      regionRefresh.set(null);
+      refresh.completeExceptionally(e);
     }
   }
 
+  private Map<String, PipeStats> getRegionStats() {
+    PipeStats stats = new PipeStats();
+    stats.count = (int) regionRefreshes.get();
+    stats.latency = regionRefreshMs.get() / 1000.0;
+    return ImmutableMap.of("region_refresh", stats);
+  }
+
+  private Map<String, Long> getRegionCounters() {
+    return ImmutableMap.of("region_hit", regionHits.get(), "region_miss", regionMisses.get());
+  }
+
   private String checkedUpdate(Envelope envelope, Long version, String updated) {
     int configLength = updated.length();
     if (configLength > MAX_CONFIG_LENGTH) {
@@ -162,8 +258,9 @@ public abstract class IotAccessBase extends ContainerBase implements IotAccessPr
   private void registryBackoffClear(String registryId, String deviceId) {
     Entry<String, String> backoffKey = getBackoffKey(registryId, deviceId);
     Instant inThePast = Instant.now().minusSeconds(1);
-    Instant previous = BACKOFF_MAP.put(backoffKey, inThePast);
-    debug("Cleared registry backoff for " + backoffKey + " was " + isoConvert(previous));
+    BackoffEntry previous = BACKOFF_MAP.put(backoffKey, new BackoffEntry(inThePast));
+    debug("Cleared registry backoff for " + backoffKey + " was "
+        + isoConvert(ifNotNullGet(previous, BackoffEntry::until)));
   }
 
   private Instant registryBackoffInhibit(String registryId, String deviceId) {
@@ -171,7 +268,7 @@ public abstract class IotAccessBase extends ContainerBase implements IotAccessPr
       return null;
     }
     Instant until = Instant.now().plus(REGISTRY_COMMAND_BACKOFF_SEC, ChronoUnit.SECONDS);
-    BACKOFF_MAP.put(getBackoffKey(registryId, deviceId), until);
+    BACKOFF_MAP.put(getBackoffKey(registryId, deviceId), new BackoffEntry(until));
     return until;
   }
 
@@ -194,11 +291,27 @@ public abstract class IotAccessBase extends ContainerBase implements IotAccessPr
     if (isEnabled()) {
       distributor = UdmiServicePod.maybeGetComponent(DistributorPipe.class);
       populateRegistryRegions();
+      MetricsServer.addStatsSource(containerId + "_regions", this::getRegionStats);
+      MetricsServer.addCounterSource(containerId + "_regions", this::getRegionCounters);
     }
   }
 
+  @Override
+  public void shutdown() {
+    MetricsServer.removeStatsSource(containerId + "_regions");
+    MetricsServer.removeCounterSource(containerId + "_regions");
+    regionRefresher.shutdown();
+    super.shutdown();
+  }
+
+  /**
+   * Get the connections (registry/device pairs) that have been active within the expiry window.
+   */
   public Set<Entry<String, String>> getActiveConnections() {
-    return BACKOFF_MAP.keySet();
+    synchronized (BACKOFF_MAP) {
+      return BACKOFF_MAP.entrySet().stream().filter(entry -> !entry.getValue().isExpired())
+          .map(Entry::getKey).collect(Collectors.toSet());
+    }
   }
 
   /**
@@ -207,7 +320,7 @@ public abstract class IotAccessBase extends ContainerBase implements IotAccessPr
   public Set<String> getRegistries() {
     try {
       populateRegistryRegions();
-      return registryRegions.get().keySet();
+      return registryRegions.keySet();
     } catch (Exception e) {
       throw new RuntimeException("While getting list of all registries", e);
     }
@@ -219,9 +332,118 @@ public abstract class IotAccessBase extends ContainerBase implements IotAccessPr
 
   /**
    * Modify a device configuration. Return the full/complete update that was actually written.
+   * Concurrent modifications for the same device are coalesced: whichever caller gets there first
+   * applies all the pending mungers, in order, in one read-modify-write, and every caller whose
+   * munger made a change gets the combined update that was written.
    */
   @Override
   public String modifyConfig(Envelope envelope, Function<Entry<Long, String>, String> munger) {
+    String deviceKey = envelope.deviceRegistryId + "/" + envelope.deviceId;
+    PendingMunge pending = new PendingMunge(munger);
+    ConfigQueue queue = configQueues.compute(deviceKey, (key, existing) -> {
+      ConfigQueue configQueue = ofNullable(existing).orElseGet(ConfigQueue::new);
+      synchronized (configQueue) {
+        configQueue.pending.add(pending);
+      }
+      return configQueue;
+    });
+    try {
+      while (!pending.result.isDone()) {
+        List<PendingMunge> batch;
+        synchronized (queue) {
+          while (queue.leading && !pending.result.isDone()) {
+            queue.wait();
+          }
+          if (pending.result.isDone()) {
+            break;
+          }
+          queue.leading = true;
+          batch = new ArrayList<>(queue.pending);
+          queue.pending.clear();
+        }
+        try {
+          applyConfigBatch(envelope, batch);
+        } finally {
+          synchronized (queue) {
+            queue.leading = false;
+            queue.notifyAll();
+          }
+          configQueues.computeIfPresent(deviceKey, (key, existing) -> {
+            synchronized (existing) {
+              return existing.leading || !existing.pending.isEmpty() ? existing : null;
+            }
+          });
+        }
+      }
+      return pending.result.join();
+    } catch (CompletionException e) {
+      throw (RuntimeException) e.getCause();
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted waiting for config update", e);
+    }
+  }
+
+  /**
+   * Number of config updates for a device queued behind the current leader.
+   */
+  @VisibleForTesting
+  int queuedConfigUpdates(String registryId, String deviceId) {
+    ConfigQueue queue = configQueues.get(registryId + "/" + deviceId);
+    if (queue == null) {
+      return 0;
+    }
+    synchronized (queue) {
+      return queue.pending.size();
+    }
+  }
+
+  /**
+   * Apply a batch of coalesced mungers in one read-modify-write. A munger that throws fails only
+   * its own caller, and the rest of the batch carries on from the previous working config. If
+   * every munger throws, the failure goes through the normal retry path (as for a single caller).
+   */
+  private void applyConfigBatch(Envelope envelope, List<PendingMunge> batch) {
+    if (batch.size() > 1) {
+      debug("Coalescing %d config updates for %s/%s", batch.size(), envelope.deviceRegistryId,
+          envelope.deviceId);
+    }
+    try {
+      String updated = modifyConfigOnce(envelope, current -> {
+        Entry<Long, String> working = current;
+        String combined = null;
+        for (PendingMunge pending : batch) {
+          pending.munged = null;
+          pending.failure = null;
+          try {
+            pending.munged = safeMunge(pending.munger, working);
+          } catch (RuntimeException e) {
+            pending.failure = e;
+            continue;
+          }
+          if (pending.munged != null) {
+            combined = pending.munged;
+            working = new SimpleEntry<>(current == null ? null : current.getKey(), combined);
+          }
+        }
+        if (batch.stream().allMatch(pending -> pending.failure != null)) {
+          throw batch.get(0).failure;
+        }
+        return combined;
+      });
+      batch.forEach(pending -> {
+        if (pending.failure != null) {
+          pending.result.completeExceptionally(pending.failure);
+        } else {
+          pending.result.complete(pending.munged == null ? null : updated);
+        }
+      });
+    } catch (RuntimeException e) {
+      batch.forEach(pending -> pending.result.completeExceptionally(e));
+    }
+  }
+
+  private String modifyConfigOnce(Envelope envelope,
+      Function<Entry<Long, String>, String> munger) {
     int retryCount = CONFIG_UPDATE_MAX_RETRIES;
     String registryId = envelope.deviceRegistryId;
     String deviceId = envelope.deviceId;
@@ -246,10 +468,11 @@ public abstract class IotAccessBase extends ContainerBase implements IotAccessPr
                 friendlyStackTrace(e));
             throw e;
           }
+          long backoffMs = configBackoffMs(CONFIG_UPDATE_MAX_RETRIES - retryCount);
           warn(
-              format("Error modifying config for %s/%s, remaining retries %d...", registryId,
-                  deviceId, --retryCount));
-          safeSleep(CONFIG_UPDATE_BACKOFF_MS);
+              format("Error modifying config for %s/%s, remaining retries %d, backoff %dms...",
+                  registryId, deviceId, --retryCount, backoffMs));
+          safeSleep(backoffMs);
         }
       }
     } catch (AbortLoopException e) {
@@ -314,11 +537,8 @@ public abstract class IotAccessBase extends ContainerBase implements IotAccessPr
    */
   @Override
   public void updateRegistryRegions(Map<String, String> regions) {
-    try {
-      registryRegions.get().putAll(requireNonNull(regions, "additional regions is null"));
-    } catch (Exception e) {
-      throw new RuntimeException("Getting completed registry regions", e);
-    }
+    requireNonNull(regions, "additional regions is null");
+    ifNotNullThen(registryRegions, current -> current.putAll(regions));
   }
 
   private static class AbortLoopException extends RuntimeException {
@@ -328,4 +548,33 @@ public abstract class IotAccessBase extends ContainerBase implements IotAccessPr
     }
   }
 
+  private record BackoffEntry(Instant until, Instant touched) {
+
+    BackoffEntry(Instant until) {
+      this(until, Instant.now());
+    }
+
+    boolean isExpired() {
+      return touched.plus(BACKOFF_EXPIRY).isBefore(Instant.now());
+    }
+  }
+
+  private static class ConfigQueue {
+
+    final List<PendingMunge> pending = new ArrayList<>();
+    boolean leading;
+  }
+
+  private static class PendingMunge {
+
+    final Function<Entry<Long, String>, String> munger;
+    final CompletableFuture<String> result = new CompletableFuture<>();
+    String munged;
+    RuntimeException failure;
+
+    PendingMunge(Function<Entry<Long, String>, String> munger) {
+      this.munger = munger;
+    }
+  }
+
 }
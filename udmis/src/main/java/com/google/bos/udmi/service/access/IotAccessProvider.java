@@ -8,6 +8,7 @@ import com.google.common.collect.ImmutableMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import udmi.schema.CloudModel;
@@ -61,6 +62,17 @@ public interface IotAccessProvider extends UdmiComponent {
 
   CloudModel listDevices(String registryId, Consumer<String> progress);
 
+  /**
+   * Deliver the devices of a registry to the consumer as they become available, rather than all
+   * at once when the listing is complete. The consumer may be called from provider worker threads
+   * (for ClearBlade, the gateway augmentation executor) rather than the calling thread, but only
+   * from one thread at a time, and all calls have completed by the time this method returns.
+   */
+  default void streamDevices(String registryId, BiConsumer<String, CloudModel> consumer,
+      Consumer<String> progress) {
+    listDevices(registryId, progress).device_ids.forEach(consumer);
+  }
+
   CloudModel modelDevice(String registryId, String deviceId,
       CloudModel cloudModel, Consumer<String> progress);
 
@@ -112,6 +112,7 @@ public class LocalIotAccessProvider extends IotAccessBase {
   @Override
   public void shutdown() {
     debug("shutdown");
+    super.shutdown();
   }
 
   @Override
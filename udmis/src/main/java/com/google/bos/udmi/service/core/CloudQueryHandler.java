@@ -10,9 +10,10 @@ import static com.google.udmi.util.JsonUtil.stringifyTerse;
 import static java.util.Objects.requireNonNull;
 
 import com.google.bos.udmi.service.access.IotAccessBase;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
@@ -133,26 +134,30 @@ public class CloudQueryHandler {
     String deviceRegistryId = requireNonNull(envelope.deviceRegistryId, "registry id");
     requireNull(envelope.deviceId, "device id");
 
-    CloudModel cloudModel = iotAccess.listDevices(deviceRegistryId, null);
-    Set<Entry<String, CloudModel>> deviceSet = new HashSet<>(cloudModel.device_ids.entrySet());
-    debug("Queried registry %s for %d totaling %d %s",
-        envelope.deviceRegistryId, cloudModel.device_ids.size(), deviceSet.size(),
+    // Devices are delivered from provider threads, but only one at a time (see streamDevices).
+    Map<String, CloudModel> devices = new HashMap<>();
+    List<String> detailIds = new ArrayList<>();
+    boolean detailEntries = shouldDetailEntries();
+    iotAccess.streamDevices(deviceRegistryId, (deviceId, cloudModel) -> {
+      devices.put(deviceId, convertDeviceEntry(cloudModel));
+      ifTrueThen(detailEntries && !isTrue(cloudModel.blocked), () -> detailIds.add(deviceId));
+    }, null);
+    debug("Queried registry %s for %d %s", envelope.deviceRegistryId, devices.size(),
         envelope.transactionId);
 
     DiscoveryEvents discoveryEvent = new DiscoveryEvents();
     discoveryEvent.family = ProtocolFamily.IOT;
     discoveryEvent.generation = query.generation;
-    discoveryEvent.devices = deviceSet.stream().collect(Collectors.toMap(
-        Entry::getKey, entry -> convertDeviceEntry(entry.getValue())));
+    discoveryEvent.devices = devices;
     publish(discoveryEvent);
 
-    List<String> active = discoveryEvent.devices.entrySet().stream()
-        .filter(entry -> !isTrue(entry.getValue().blocked)).map(Entry::getKey).toList();
+    long active = devices.values().stream().filter(entry -> !isTrue(entry.blocked)).count();
 
     debug("Listed registry %s with %d devices (%d active)", deviceRegistryId,
-        discoveryEvent.devices.size(), active.size());
+        discoveryEvent.devices.size(), active);
 
-    ifTrueThen(shouldDetailEntries(), () -> active.forEach(this::issueModifiedDevice));
+    // Detail queries go out only after the registry listing, in the order devices were streamed.
+    detailIds.forEach(this::issueModifiedDevice);
   }
 
   private boolean shouldDetailEntries() {
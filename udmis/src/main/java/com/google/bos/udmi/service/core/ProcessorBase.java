@@ -47,8 +47,15 @@ import com.google.bos.udmi.service.messaging.impl.MessageDispatcherImpl;
 import com.google.bos.udmi.service.pod.ContainerBase;
 import com.google.bos.udmi.service.pod.SimpleHandler;
 import com.google.bos.udmi.service.pod.UdmiServicePod;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.udmi.util.Common;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
@@ -75,6 +82,7 @@ public abstract class ProcessorBase extends ContainerBase implements SimpleHandl
   private static final String BROKEN_CONFIG_JSON =
       format("{ broken by %s == %s", EXTRA_FIELD_KEY, BREAK_CONFIG_VALUE);
   private static final String JSON_EMPTY_STRING = "\"\"";
+  private static final MethodHandles.Lookup HANDLER_LOOKUP = MethodHandles.lookup();
   protected final MessageDispatcher dispatcher;
   private final MessageDispatcher sidecar;
   private final boolean isEnabled;
@@ -118,6 +126,25 @@ public abstract class ProcessorBase extends ContainerBase implements SimpleHandl
     return sidecar;
   }
 
+  /**
+   * Bind an annotated handler method of the target directly to a consumer, so that it can be
+   * invoked (and inlined) like any other lambda rather than through reflection for every message.
+   */
+  @VisibleForTesting
+  @SuppressWarnings("unchecked")
+  static Consumer<Object> bindHandler(Object target, Method method, Class<?> messageType) {
+    try {
+      MethodHandle handle = HANDLER_LOOKUP.unreflect(method);
+      CallSite callSite = LambdaMetafactory.metafactory(HANDLER_LOOKUP, "accept",
+          MethodType.methodType(Consumer.class, method.getDeclaringClass()),
+          MethodType.methodType(void.class, Object.class), handle,
+          MethodType.methodType(void.class, messageType));
+      return (Consumer<Object>) callSite.getTarget().invoke(target);
+    } catch (Throwable e) {
+      throw new RuntimeException("While binding message handler " + method.getName(), e);
+    }
+  }
+
   /**
    * The default message handler. Defaults to ignore unexpected message types, but can be overridden
    * to provide component-specific behavior.
@@ -231,9 +258,10 @@ public abstract class ProcessorBase extends ContainerBase implements SimpleHandl
         checkState(parameterTypes.length == 1,
             "dispatch handlers should have exactly one argument");
         Class<?> messageType = parameterTypes[0];
+        Consumer<Object> handler = bindHandler(this, method, messageType);
         dispatcher.registerHandler(messageType, message -> {
           try {
-            method.invoke(this, messageType.cast(message));
+            handler.accept(message);
           } catch (Exception e) {
             throw new RuntimeException(
                 "While invoking message annotation on " + getClass().getSimpleName(), e);
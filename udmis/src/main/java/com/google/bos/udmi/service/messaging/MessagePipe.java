@@ -9,6 +9,7 @@ import com.google.bos.udmi.service.messaging.impl.PubSubPipe;
 import com.google.bos.udmi.service.messaging.impl.SimpleMqttPipe;
 import com.google.bos.udmi.service.messaging.impl.TraceMessagePipe;
 import com.google.common.collect.ImmutableMap;
+import java.util.Collection;
 import java.util.Map;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -58,6 +59,12 @@ public interface MessagePipe {
    */
   void publish(Bundle bundle);
 
+  /**
+   * Publish a batch of outgoing message bundles, in order, amortizing the send cost where the
+   * underlying transport allows it.
+   */
+  void publishBatch(Collection<Bundle> bundles);
+
   /**
    * Shutdown an active pipe so that it no longer processes received messages.
    */
@@ -69,11 +76,16 @@ public interface MessagePipe {
   Map<String, PipeStats> extractStats();
 
   /**
-   * Simple class to hold pipe statistics values.
+   * Simple class to hold pipe statistics values. Latencies are all in seconds, with the base
+   * latency being the sum over all counted messages.
    */
   class PipeStats {
     public int count;
     public double latency;
+    public double p50;
+    public double p99;
+    public double p999;
+    public double max;
     public double size;
   }
 }
\ No newline at end of file
@@ -0,0 +1,48 @@
+package com.google.bos.udmi.service.messaging.impl;
+
+import com.google.bos.udmi.service.messaging.MessagePipe.PipeStats;
+import java.time.Duration;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Lock-free latency histogram for message processing. Values are recorded without contention
+ * from any number of threads, and extracted as interval snapshots that reset the histogram.
+ */
+public class LatencyStats {
+
+  private static final int SIGNIFICANT_DIGITS = 3;
+  private static final double MICROS_PER_SEC = 1000000.0;
+  private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+  private Histogram intervalHistogram;
+
+  private double secondsAt(double percentile) {
+    return intervalHistogram.getValueAtPercentile(percentile) / MICROS_PER_SEC;
+  }
+
+  /**
+   * Extract the stats accumulated since the last extraction, and reset for the next interval.
+   */
+  public synchronized PipeStats extract(double size) {
+    intervalHistogram = recorder.getIntervalHistogram(intervalHistogram);
+    PipeStats pipeStats = new PipeStats();
+    long count = intervalHistogram.getTotalCount();
+    pipeStats.count = (int) count;
+    pipeStats.latency = count == 0 ? 0 : intervalHistogram.getMean() * count / MICROS_PER_SEC;
+    pipeStats.p50 = secondsAt(50.0);
+    pipeStats.p99 = secondsAt(99.0);
+    pipeStats.p999 = secondsAt(99.9);
+    pipeStats.max = intervalHistogram.getMaxValue() / MICROS_PER_SEC;
+    pipeStats.size = size;
+    return pipeStats;
+  }
+
+  /**
+   * Record a single latency sample, returning the duration in seconds.
+   */
+  public double record(Duration duration) {
+    long micros = Math.max(0, duration.toNanos() / 1000);
+    recorder.recordValue(micros);
+    return micros / MICROS_PER_SEC;
+  }
+}
@@ -1,7 +1,6 @@
 package com.google.bos.udmi.service.messaging.impl;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.udmi.util.JsonUtil.stringify;
 import static java.lang.String.format;
 
 import com.google.bos.udmi.service.messaging.MessagePipe;
@@ -67,7 +66,7 @@ public class LocalMessagePipe extends MessageBase {
   protected void publishRaw(Bundle bundle) {
     try {
       debug("Publishing bundle to %s", this);
-      pushQueueEntry(destinationQueue, stringify(bundle));
+      pushQueueEntry(destinationQueue, bundle.handoffCopy());
     } catch (Exception e) {
       throw new RuntimeException("While publishing to destination queue", e);
     }
@@ -1,7 +1,9 @@
 package com.google.bos.udmi.service.messaging.impl;
 
 import static com.google.api.client.util.Preconditions.checkState;
+import static com.google.udmi.util.Common.DEVICE_ID_KEY;
 import static com.google.udmi.util.Common.RAWFOLDER_PROPERTY_KEY;
+import static com.google.udmi.util.Common.REGISTRY_ID_PROPERTY_KEY;
 import static com.google.udmi.util.Common.SUBFOLDER_PROPERTY_KEY;
 import static com.google.udmi.util.Common.SUBTYPE_PROPERTY_KEY;
 import static com.google.udmi.util.GeneralUtils.catchToElse;
@@ -9,12 +11,14 @@ import static com.google.udmi.util.GeneralUtils.deepCopy;
 import static com.google.udmi.util.GeneralUtils.friendlyStackTrace;
 import static com.google.udmi.util.GeneralUtils.ifNotNullGet;
 import static com.google.udmi.util.GeneralUtils.ifNotNullThen;
+import static com.google.udmi.util.GeneralUtils.ifTrueThen;
+import static com.google.udmi.util.GeneralUtils.isTrue;
 import static com.google.udmi.util.GeneralUtils.mergeObject;
 import static com.google.udmi.util.GeneralUtils.stackTraceString;
 import static com.google.udmi.util.JsonUtil.convertTo;
-import static com.google.udmi.util.JsonUtil.fromString;
 import static com.google.udmi.util.JsonUtil.parseJson;
 import static com.google.udmi.util.JsonUtil.stringify;
+import static java.lang.Math.floorMod;
 import static java.lang.String.format;
 import static java.util.Objects.isNull;
 import static java.util.Objects.requireNonNull;
@@ -27,27 +31,29 @@ import com.google.bos.udmi.service.pod.ContainerBase;
 import com.google.bos.udmi.service.pod.UdmiServicePod;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.util.concurrent.AtomicDouble;
 import com.google.udmi.util.JsonUtil;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.stream.IntStream;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 import udmi.schema.EndpointConfiguration;
@@ -66,6 +72,8 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
   public static final String ERROR_MESSAGE_MARKER = "error-mark";
   public static final String PUBLISH_STATS = "publish";
   public static final String RECEIVE_STATS = "receive";
+  public static final String WAIT_STATS = "wait";
+  public static final String DISPATCH_STATS = "dispatch";
   public static final double MESSAGE_WARN_THRESHOLD_SEC = 1.0;
   public static final double QUEUE_THROTTLE_MARK = 0.6;
   static final String TERMINATE_MARKER = "terminate";
@@ -74,12 +82,31 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
   private static final long DEFAULT_POLL_TIME_SEC = 1;
   private static final long AWAIT_TERMINATION_SEC = 10;
   private static final int DEFAULT_CAPACITY = 1000;
+  private static final int DEFAULT_BLOCK_SEC = 10;
+  private static final int DEFAULT_LANES =
+      Math.max(EXECUTION_THREADS, Runtime.getRuntime().availableProcessors());
+  private static final int DEFAULT_VIRTUAL_LANES = 256;
+  private static final double LANE_CAPACITY_SHARE = 0.2;
+  private static final int DEFAULT_BATCH_SIZE = 1;
+  private static final int DEFAULT_LINGER_MS = 10;
+  private static final int MAX_LINGER_BACKOFF_SHIFT = 10;
   protected final int queueCapacity;
   protected final long publishDelaySec;
-  private final ExecutorService executor = Executors.newFixedThreadPool(EXECUTION_THREADS);
-  private final Entry<AtomicInteger, AtomicDouble> publishStats = makeEmptyStats();
-  private final Entry<AtomicInteger, AtomicDouble> receiveStats = makeEmptyStats();
+  protected final long blockSec;
+  protected final int batchSize;
+  protected final long lingerMs;
+  private final List<BlockingQueue<QueueEntry>> dispatchLanes;
+  private final ExecutorService executor;
+  private final Semaphore handlerPermits;
+  private final LatencyStats publishStats = new LatencyStats();
+  private final LatencyStats receiveStats = new LatencyStats();
+  private final LatencyStats waitStats = new LatencyStats();
+  private final LatencyStats dispatchStats = new LatencyStats();
   private final AtomicBoolean subscriptionsThrottled = new AtomicBoolean();
+  private final List<Bundle> pendingBatch = new ArrayList<>();
+  private final Object batchFlushLock = new Object();
+  private final ScheduledExecutorService lingerExecutor;
+  private volatile int batchFailures;
   private BlockingQueue<QueueEntry> sourceQueue;
   private Consumer<Bundle> dispatcher;
   private boolean activated;
@@ -90,6 +117,13 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
   public MessageBase() {
     queueCapacity = DEFAULT_CAPACITY;
     publishDelaySec = 0;
+    blockSec = DEFAULT_BLOCK_SEC;
+    dispatchLanes = makeDispatchLanes(DEFAULT_LANES);
+    executor = Executors.newFixedThreadPool(dispatchLanes.size() + 1);
+    handlerPermits = null;
+    batchSize = DEFAULT_BATCH_SIZE;
+    lingerMs = DEFAULT_LINGER_MS;
+    lingerExecutor = null;
   }
 
   /**
@@ -102,6 +136,20 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
     if (publishDelaySec > 0) {
       warn("Artificially delaying message publishing by %ds", publishDelaySec);
     }
+    blockSec = ofNullable(configuration.block_sec).orElse(DEFAULT_BLOCK_SEC);
+    boolean virtualThreads = isTrue(configuration.virtual_threads);
+    int defaultLanes = virtualThreads ? DEFAULT_VIRTUAL_LANES : DEFAULT_LANES;
+    dispatchLanes = makeDispatchLanes(ofNullable(configuration.lanes).orElse(defaultLanes));
+    executor = virtualThreads ? Executors.newVirtualThreadPerTaskExecutor()
+        : Executors.newFixedThreadPool(dispatchLanes.size() + 1);
+    handlerPermits = ifNotNullGet(configuration.concurrency, permits -> new Semaphore(permits));
+    ifTrueThen(virtualThreads, () -> notice("Using %d virtual thread lanes with concurrency %s",
+        dispatchLanes.size(), configuration.concurrency));
+    batchSize = ofNullable(configuration.batch_size).orElse(DEFAULT_BATCH_SIZE);
+    lingerMs = ofNullable(configuration.linger_ms).orElse(DEFAULT_LINGER_MS);
+    lingerExecutor = batchSize > 1 ? Executors.newSingleThreadScheduledExecutor() : null;
+    ifTrueThen(batchSize > 1,
+        () -> notice("Batching published messages up to %d within %dms", batchSize, lingerMs));
   }
 
   /**
@@ -113,8 +161,18 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
     return ifNotNullGet(defined, () -> mergeObject(deepCopy(useDefaults), defined));
   }
 
-  static Bundle extractBundle(String bundleString) {
-    return ifNotNullGet(bundleString, b -> fromString(Bundle.class, b));
+  /**
+   * Get the partition key used to order message processing. Messages for the same device are
+   * always processed in the order they were received, falling back to the raw attributes for
+   * bundles (e.g. errors) that don't have a parsed envelope.
+   */
+  static String getPartitionKey(Bundle bundle) {
+    Envelope envelope = bundle.envelope;
+    if (envelope != null && (envelope.deviceRegistryId != null || envelope.deviceId != null)) {
+      return envelope.deviceRegistryId + "/" + envelope.deviceId;
+    }
+    Map<String, String> attributes = ofNullable(bundle.attributesMap).orElseGet(HashMap::new);
+    return attributes.get(REGISTRY_ID_PROPERTY_KEY) + "/" + attributes.get(DEVICE_ID_KEY);
   }
 
   static String normalizeNamespace(String configSpace) {
@@ -148,14 +206,32 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
     return bundle;
   }
 
+  /**
+   * Pause the delivery of new messages from the underlying subscriptions, called when the queues
+   * cross the high-water mark. Messages already in flight are still received (and queued).
+   */
+  protected void pauseSubscriptions() {
+  }
+
   protected abstract void publishRaw(Bundle bundle);
 
-  protected void pushQueueEntry(BlockingQueue<QueueEntry> queue, String stringBundle) {
+  /**
+   * Publish a batch of bundles, in order. Pipes that can amortize the cost of sending several
+   * messages at once should override this, the default just publishes them one at a time.
+   */
+  protected void publishRawBatch(List<Bundle> bundles) {
+    bundles.forEach(this::publishRaw);
+  }
+
+  protected void pushQueueEntry(BlockingQueue<QueueEntry> queue, Bundle bundle) {
     try {
-      requireNonNull(stringBundle, "missing queue bundle");
+      requireNonNull(bundle, "missing queue bundle");
       throttleQueue();
       randomlyFail();
-      queue.add(new QueueEntry(grabExecutionContext(), stringBundle));
+      QueueEntry entry = new QueueEntry(grabExecutionContext(), bundle, System.nanoTime());
+      if (!queue.offer(entry, blockSec, TimeUnit.SECONDS)) {
+        throw new IllegalStateException(format("Queue full after blocking for %ds", blockSec));
+      }
     } catch (Exception e) {
       throw new RuntimeException("While adding queue entry", e);
     }
@@ -183,15 +259,20 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
     receiveMessage(envelope, stringify(object));
   }
 
+  /**
+   * Resume the delivery of messages from the underlying subscriptions, called when the queues
+   * have drained below the low-water mark.
+   */
+  protected void resumeSubscriptions() {
+  }
+
   protected void setSourceQueue(BlockingQueue<QueueEntry> queueForScope) {
     sourceQueue = queueForScope;
   }
 
   protected void terminateHandlers() {
     debug("Terminating " + this);
-    for (int i = 0; i < EXECUTION_THREADS; i++) {
-      receiveBundle(new Bundle(TERMINATE_MARKER));
-    }
+    receiveBundle(new Bundle(TERMINATE_MARKER));
   }
 
   protected void throttleQueue() {
@@ -203,24 +284,72 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
     boolean releaseReceiver = receiveQueueSize < QUEUE_THROTTLE_MARK / 2.0;
     boolean releasePublisher = publishQueueSize < QUEUE_THROTTLE_MARK / 2.0;
 
-    String message = messageQueueMessage();
     if (blockReceiver || blockPublisher) {
-      if (!subscriptionsThrottled.getAndSet(true)) {
-        warn(message + ", crossing high-water mark");
-      }
+      ifTrueThen(!subscriptionsThrottled.get(), () -> updateThrottled(true));
     } else if (releaseReceiver && releasePublisher) {
-      if (subscriptionsThrottled.getAndSet(false)) {
-        warn(message + ", below high-water mark");
-      }
+      ifTrueThen(subscriptionsThrottled.get(), () -> updateThrottled(false));
+    }
+  }
+
+  private void addToBatch(Bundle bundle) {
+    final boolean flushNow;
+    synchronized (pendingBatch) {
+      pendingBatch.add(bundle);
+      boolean full = pendingBatch.size() >= batchSize;
+      flushNow = full || (pendingBatch.size() == 1 && !scheduleLinger(lingerMs));
+    }
+    ifTrueThen(flushNow, this::flushBatch);
+  }
+
+  /**
+   * Schedule a lingering flush, returning false if that's not possible because the linger
+   * executor has been shut down (in which case the caller should flush synchronously).
+   */
+  private boolean scheduleLinger(long delayMs) {
+    try {
+      lingerExecutor.schedule(this::flushLingering, delayMs, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Flush a lingering batch. There's no publisher to report a failure to, so it's only logged (the
+   * failed batch itself is kept and retried by flushBatch).
+   */
+  private void flushLingering() {
+    try {
+      flushBatch();
+    } catch (Exception e) {
+      error(format("While publishing lingering batch, attempt %d: %s", batchFailures,
+          friendlyStackTrace(e)));
     }
   }
 
-  private synchronized void accumulateStats(String statsBucket,
-      Entry<AtomicInteger, AtomicDouble> stats,
-      Duration duration) {
-    double seconds = duration.getSeconds() + duration.toMillisPart() / 1000.0;
-    stats.getKey().incrementAndGet();
-    stats.getValue().addAndGet(seconds);
+  /**
+   * Put a failed batch back at the head of the pending batch, so that no bundle in it is lost
+   * (it may hold other publishers' bundles), and schedule a retry with an increasing delay.
+   */
+  private void requeueBatch(List<Bundle> batch) {
+    synchronized (pendingBatch) {
+      pendingBatch.addAll(0, batch);
+      long retryMs = Math.max(lingerMs, 1) << Math.min(batchFailures, MAX_LINGER_BACKOFF_SHIFT);
+      ifTrueThen(!scheduleLinger(retryMs),
+          () -> warn("Holding %d batched messages for next flush", pendingBatch.size()));
+    }
+  }
+
+  private List<Bundle> takePendingBatch() {
+    synchronized (pendingBatch) {
+      List<Bundle> batch = new ArrayList<>(pendingBatch);
+      pendingBatch.clear();
+      return batch;
+    }
+  }
+
+  private void accumulateStats(String statsBucket, LatencyStats stats, Duration duration) {
+    double seconds = stats.record(duration);
     if (seconds >= MESSAGE_WARN_THRESHOLD_SEC) {
       warn("Message %s took %.03fs", statsBucket, seconds);
     }
@@ -233,24 +362,35 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
     }
   }
 
-  private PipeStats extractStat(Entry<AtomicInteger, AtomicDouble> stats, double size) {
-    PipeStats pipeStats = new PipeStats();
-    pipeStats.count = stats.getKey().getAndSet(0);
-    pipeStats.latency = stats.getValue().getAndSet(0);
-    pipeStats.size = size;
-    return pipeStats;
-  }
-
   @Nullable
-  private String getFromSourceQueue() throws InterruptedException {
+  private Bundle getFromSourceQueue() throws InterruptedException {
     QueueEntry poll = sourceQueue.poll(DEFAULT_POLL_TIME_SEC, TimeUnit.SECONDS);
     throttleQueue();
     ifNotNullThen(poll, p -> setExecutionContext(p.context));
-    return ifNotNullGet(poll, p -> p.message);
+    return ifNotNullGet(poll, p -> p.bundle);
   }
 
+  /**
+   * Get the fill level of the receive side, counting entries already partitioned into the
+   * dispatch lanes as well as those still waiting in the source queue.
+   */
   private double getReceiveQueueSize() {
-    return ofNullable(sourceQueue).map(Collection::size).orElse(0) / (double) queueCapacity;
+    int laneDepth = dispatchLanes.stream().mapToInt(Collection::size).sum();
+    int sourceDepth = ofNullable(sourceQueue).map(Collection::size).orElse(0);
+    return (sourceDepth + laneDepth) / (double) queueCapacity;
+  }
+
+  private void dispatchBundle(Bundle bundle) throws InterruptedException {
+    if (handlerPermits == null) {
+      dispatcher.accept(bundle);
+      return;
+    }
+    handlerPermits.acquire();
+    try {
+      dispatcher.accept(bundle);
+    } finally {
+      handlerPermits.release();
+    }
   }
 
   private void handleDispatchException(Envelope envelope, Exception e) {
@@ -268,31 +408,78 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
     if (!HANDLED_QUEUES.add(System.identityHashCode(sourceQueue))) {
       throw new IllegalStateException("Source queue handled multiple times!");
     }
-    for (int i = 0; i < EXECUTION_THREADS; i++) {
+    for (int i = 0; i < dispatchLanes.size(); i++) {
       String id = format("%s:%02d", queueIdentifier(), i);
-      executor.submit(() -> messageLoop(id));
+      BlockingQueue<QueueEntry> lane = dispatchLanes.get(i);
+      executor.submit(() -> messageLoop(id, lane));
     }
+    executor.submit(this::partitionLoop);
+  }
+
+  /**
+   * Make the dispatch lanes. Between them they only hold a small share of the queue capacity, so
+   * a hot lane fills (and pushes back on the source queue) quickly, rather than buffering up a
+   * full queue's worth of messages per lane.
+   */
+  private List<BlockingQueue<QueueEntry>> makeDispatchLanes(int laneCount) {
+    checkState(laneCount > 0, "dispatch lane count must be positive");
+    int laneCapacity = Math.max(1, (int) (queueCapacity * LANE_CAPACITY_SHARE / laneCount));
+    return IntStream.range(0, laneCount)
+        .<BlockingQueue<QueueEntry>>mapToObj(lane -> new LinkedBlockingQueue<>(laneCapacity))
+        .toList();
   }
 
-  private Entry<AtomicInteger, AtomicDouble> makeEmptyStats() {
-    return new SimpleEntry<>(new AtomicInteger(), new AtomicDouble());
+  /**
+   * Distribute entries from the source queue to the dispatch lanes, so that all messages for any
+   * given device are handled (in order) by the same lane. A terminate marker is forwarded to every
+   * lane, so each one finishes processing everything queued before it.
+   */
+  private void partitionLoop() {
+    String id = format("%s:in", queueIdentifier());
+    info("Starting partition loop %s", id);
+    while (true) {
+      try {
+        QueueEntry entry = sourceQueue.poll(DEFAULT_POLL_TIME_SEC, TimeUnit.SECONDS);
+        throttleQueue();
+        if (entry == null) {
+          continue;
+        }
+        if (TERMINATE_MARKER.equals(entry.bundle.message)) {
+          for (BlockingQueue<QueueEntry> lane : dispatchLanes) {
+            lane.put(entry);
+          }
+          info("Terminating partition loop %s", id);
+          return;
+        }
+        int laneIndex = floorMod(getPartitionKey(entry.bundle).hashCode(), dispatchLanes.size());
+        dispatchLanes.get(laneIndex).put(entry);
+      } catch (InterruptedException e) {
+        error("Partition loop %s interrupted", id);
+        return;
+      } catch (Exception loopException) {
+        error("Partition loop exception: " + friendlyStackTrace(loopException));
+        error(stackTraceString(loopException));
+      }
+    }
   }
 
-  private void messageLoop(String id) {
+  private void messageLoop(String id, BlockingQueue<QueueEntry> lane) {
     info("Starting message loop %s", id);
     while (true) {
       try {
         grabExecutionContext();
         Envelope envelope = null;
         try {
-          final Instant before = Instant.now();
-          Bundle bundle = extractBundle(getFromSourceQueue());
-          if (bundle == null) {
+          QueueEntry entry = lane.poll(DEFAULT_POLL_TIME_SEC, TimeUnit.SECONDS);
+          if (entry == null) {
             continue;
           }
+          setExecutionContext(entry.context);
+          Bundle bundle = entry.bundle;
           final Instant start = Instant.now();
-          long waiting = Duration.between(before, start).getSeconds();
-          trace("Processing waited %ds on message loop %s", waiting, id);
+          Duration waiting = Duration.ofNanos(System.nanoTime() - entry.enqueued);
+          waitStats.record(waiting);
+          trace("Processing waited %ss on message loop %s", waiting.toSeconds(), id);
           if (TERMINATE_MARKER.equals(bundle.message)) {
             info("Terminating message loop %s", id);
             return;
@@ -303,9 +490,10 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
           if (ERROR_MESSAGE_MARKER.equals(envelope.transactionId)) {
             throw new RuntimeException("Exception due to test-induced error");
           }
-          dispatcher.accept(bundle);
-          long seconds = Duration.between(start, Instant.now()).getSeconds();
-          trace("Processing took %ds for message loop %s", seconds, id);
+          dispatchBundle(bundle);
+          Duration processing = Duration.between(start, Instant.now());
+          dispatchStats.record(processing);
+          trace("Processing took %ss for message loop %s", processing.toSeconds(), id);
         } catch (Exception e) {
           warn("Handling dispatch exception: " + friendlyStackTrace(e));
           handleDispatchException(envelope, e);
@@ -324,12 +512,8 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
   }
 
   private void receiveBundle(Bundle bundle) {
-    receiveBundle(stringify(bundle));
-  }
-
-  private void receiveBundle(String stringBundle) {
     ensureSourceQueue();
-    pushQueueEntry(sourceQueue, stringBundle);
+    pushQueueEntry(sourceQueue, bundle);
   }
 
   private void receiveException(Map<String, String> attributesMap, String messageString,
@@ -340,7 +524,7 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
     HashMap<String, String> mutableMap = new HashMap<>(attributesMap);
     bundle.attributesMap = mutableMap;
     ifNotNullThen(forceFolder, folder -> mutableMap.put(SUBFOLDER_PROPERTY_KEY, folder.value()));
-    receiveBundle(stringify(bundle));
+    receiveBundle(bundle);
   }
 
   private void receiveMessageRaw(Map<String, String> attributesMap, String messageString) {
@@ -407,9 +591,25 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
     }
   }
 
+  private void updateThrottled(boolean throttled) {
+    synchronized (subscriptionsThrottled) {
+      if (subscriptionsThrottled.getAndSet(throttled) == throttled) {
+        return;
+      }
+      String mark = throttled ? "crossing high-water mark" : "below low-water mark";
+      warn(messageQueueMessage() + ", " + mark);
+      try {
+        ifTrueThen(throttled, this::pauseSubscriptions, this::resumeSubscriptions);
+      } catch (Exception e) {
+        error("While updating subscriptions: " + friendlyStackTrace(e));
+      }
+    }
+  }
+
   private void shutdownExecutor() {
     debug("Shutdown of %s", this);
     executor.shutdown();
+    ifNotNullThen(lingerExecutor, ScheduledExecutorService::shutdown);
   }
 
   @Override
@@ -439,15 +639,17 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
   }
 
   @Override
-  public synchronized Map<String, PipeStats> extractStats() {
+  public Map<String, PipeStats> extractStats() {
     double receiveQueue = getReceiveQueueSize();
     double publishQueue = getPublishQueueSize();
     if (subscriptionsThrottled.get()) {
       warn(messageQueueMessage() + ", currently paused");
     }
     return ImmutableMap.of(
-        RECEIVE_STATS, extractStat(receiveStats, receiveQueue),
-        PUBLISH_STATS, extractStat(publishStats, publishQueue));
+        RECEIVE_STATS, receiveStats.extract(receiveQueue),
+        PUBLISH_STATS, publishStats.extract(publishQueue),
+        WAIT_STATS, waitStats.extract(receiveQueue),
+        DISPATCH_STATS, dispatchStats.extract(receiveQueue));
   }
 
   @Override
@@ -464,14 +666,41 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
         throw new RuntimeException("Drain on active pipe");
       }
       debug("Polling on %s", this);
-      return ifNotNullGet(getFromSourceQueue(), MessageBase::extractBundle);
+      return getFromSourceQueue();
     } catch (Exception e) {
       throw new RuntimeException("While polling queue", e);
     }
   }
 
+  /**
+   * Publish all pending batched messages. Flushes are serialized, so batches are sent in order. If
+   * the batch fails, it's kept for a later retry, and the failure is thrown to the caller.
+   */
+  public void flushBatch() {
+    synchronized (batchFlushLock) {
+      List<Bundle> batch = takePendingBatch();
+      try {
+        publishBatch(batch);
+        batchFailures = 0;
+      } catch (RuntimeException e) {
+        batchFailures++;
+        requeueBatch(batch);
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Publish a message bundle. When batching is enabled, the bundle is held until either the batch
+   * is full (in which case it's sent by the publishing thread), or the linger time expires. Failed
+   * batches are kept and retried, and a failed full batch is also thrown to the publishing thread.
+   */
   @Override
   public final void publish(Bundle bundle) {
+    if (batchSize > 1) {
+      addToBatch(bundle);
+      return;
+    }
     Instant start = Instant.now();
     try {
       publishRaw(bundle);
@@ -481,11 +710,34 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
     }
   }
 
+  @Override
+  public final void publishBatch(Collection<Bundle> bundles) {
+    if (bundles.isEmpty()) {
+      return;
+    }
+    Instant start = Instant.now();
+    try {
+      publishRawBatch(List.copyOf(bundles));
+    } finally {
+      Duration between = Duration.between(start, Instant.now());
+      Duration perMessage = between.dividedBy(bundles.size());
+      bundles.forEach(bundle -> publishStats.record(perMessage));
+      double seconds = between.toMillis() / 1000.0;
+      if (seconds >= MESSAGE_WARN_THRESHOLD_SEC) {
+        warn("Message %s batch of %d took %.03fs", PUBLISH_STATS, bundles.size(), seconds);
+      }
+    }
+  }
+
   @Override
   public void shutdown() {
     try {
-      terminateHandlers();
-      awaitShutdown();
+      try {
+        flushBatch();
+      } finally {
+        terminateHandlers();
+        awaitShutdown();
+      }
     } catch (Exception e) {
       throw new RuntimeException("While processing shutdown", e);
     }
@@ -495,7 +747,11 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
    * Terminate the output path.
    */
   public void terminate() {
-    terminateHandlers();
+    try {
+      flushBatch();
+    } finally {
+      terminateHandlers();
+    }
   }
 
   @Override
@@ -532,6 +788,34 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
       assignMessage(message);
     }
 
+    /**
+     * Make a copy of this bundle suitable for handing off to an in-process queue, so that neither
+     * side sees later mutations made by the other. Immutable messages are shared as-is, while
+     * anything else is snapshot with a structural deep copy rather than a full serialization.
+     */
+    public Bundle handoffCopy() {
+      Bundle copy = new Bundle();
+      copy.envelope = MessageDispatcherImpl.copyEnvelope(envelope);
+      copy.attributesMap = ifNotNullGet(attributesMap, map -> new HashMap<>(map));
+      copy.message = isImmutable(message) ? message : snapshotMessage(message);
+      copy.payload = payload;
+      return copy;
+    }
+
+    private static boolean isImmutable(Object object) {
+      return object == null || object instanceof String || object instanceof Number
+          || object instanceof Boolean || object instanceof Enum<?>
+          || object instanceof RawString;
+    }
+
+    private static Object snapshotMessage(Object message) {
+      try {
+        return deepCopy(message);
+      } catch (Exception e) {
+        return JsonUtil.toMap(message);
+      }
+    }
+
     private void assignMessage(Object checkMessage) {
       if (checkMessage instanceof RawString rawString) {
         payload = rawString.rawString;
@@ -568,7 +852,7 @@ public abstract class MessageBase extends ContainerBase implements MessagePipe {
     }
   }
 
-  record QueueEntry(String context, String message) {
+  record QueueEntry(String context, Bundle bundle, long enqueued) {
 
   }
 
@@ -1,14 +1,16 @@
 package com.google.bos.udmi.service.messaging.impl;
 
+import static com.google.bos.udmi.service.messaging.impl.MessageBase.DISPATCH_STATS;
 import static com.google.bos.udmi.service.messaging.impl.MessageBase.PUBLISH_STATS;
 import static com.google.bos.udmi.service.messaging.impl.MessageBase.RECEIVE_STATS;
+import static com.google.bos.udmi.service.messaging.impl.MessageBase.WAIT_STATS;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.udmi.util.Common.RAWFOLDER_PROPERTY_KEY;
 import static com.google.udmi.util.Common.SUBFOLDER_PROPERTY_KEY;
+import static com.google.udmi.util.GeneralUtils.copyFields;
 import static com.google.udmi.util.GeneralUtils.deepCopy;
+import static com.google.udmi.util.GeneralUtils.ifNotNullGet;
 import static com.google.udmi.util.GeneralUtils.ifNotNullThen;
-import static com.google.udmi.util.GeneralUtils.requireNull;
-import static com.google.udmi.util.JsonUtil.convertToStrict;
 import static com.google.udmi.util.JsonUtil.stringify;
 import static com.google.udmi.util.JsonUtil.toMap;
 import static com.google.udmi.util.JsonUtil.toStringMap;
@@ -33,16 +35,24 @@ import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.google.common.collect.ImmutableMap;
 import com.google.udmi.util.Common;
+import com.google.udmi.util.JsonUtil;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 import org.jetbrains.annotations.VisibleForTesting;
@@ -67,8 +77,14 @@ public class MessageDispatcherImpl extends ContainerBase implements MessageDispa
   );
   private static final Map<Class<?>, SimpleEntry<SubType, SubFolder>> CLASS_TYPES = new HashMap<>();
   private static final BiMap<String, Class<?>> TYPE_CLASSES = HashBiMap.create();
+  private static final Map<SubType, Map<SubFolder, Class<?>>> ENVELOPE_CLASSES =
+      new EnumMap<>(SubType.class);
+  private static final Map<Class<?>, Function<Object, ?>> CONVERTERS = new ConcurrentHashMap<>();
   private static final double LATENCY_WARNING_THRESHOLD = 1.0;
   private static final double SIZE_WARNING_THRESHOLD = 0.5;
+  private static final String HANDLER_STATS_PREFIX = "handler/";
+  private static final Set<MessageDispatcherImpl> ACTIVE_DISPATCHERS =
+      ConcurrentHashMap.newKeySet();
 
   static {
     Arrays.stream(SubType.values()).forEach(type -> Arrays.stream(SubFolder.values())
@@ -81,9 +97,10 @@ public class MessageDispatcherImpl extends ContainerBase implements MessageDispa
   }
 
   private final MessagePipe messagePipe;
-  private final Map<Integer, Envelope> messageEnvelopes = new ConcurrentHashMap<>();
   private final Map<Class<?>, Consumer<Object>> handlers = new ConcurrentHashMap<>();
   private final Map<Class<?>, AtomicInteger> handlerCounts = new ConcurrentHashMap<>();
+  private final Map<Class<?>, LatencyStats> handlerStats = new ConcurrentHashMap<>();
+  private volatile Map<String, PipeStats> latestStats = ImmutableMap.of();
   private final String projectId;
   private final ThreadLocal<Envelope> threadEnvelope = new ThreadLocal<>();
 
@@ -99,17 +116,43 @@ public class MessageDispatcherImpl extends ContainerBase implements MessageDispa
   @Nullable
   private static Object convertStrictOrObject(Class<?> handlerType, Object message) {
     try {
-      return convertToStrict(handlerType, message);
+      Object converted = CONVERTERS.computeIfAbsent(handlerType, JsonUtil::strictConverter)
+          .apply(message);
+      return converted != null ? converted : toMap(message);
     } catch (Exception e) {
       return toMap(message);
     }
   }
 
+  /**
+   * Make a copy of an envelope. All the fields are immutable values (other than the publish time,
+   * which is explicitly cloned), so a field-wise copy is sufficient.
+   */
+  public static Envelope copyEnvelope(Envelope envelope) {
+    if (envelope == null) {
+      return null;
+    }
+    Envelope copy = new Envelope();
+    copyFields(envelope, copy, true);
+    copy.publishTime = ifNotNullGet(envelope.publishTime, time -> (Date) time.clone());
+    return copy;
+  }
+
   private static String getMapKey(SubType subType, SubFolder subFolder) {
     SubType useType = ofNullable(subType).orElse(SubType.EVENTS);
     return format("%s/%s", useType, subFolder);
   }
 
+  /**
+   * Get the most recent periodic stats snapshot for all active dispatchers, keyed by dispatcher.
+   */
+  public static Map<String, Map<String, PipeStats>> getLatestStats() {
+    Map<String, Map<String, PipeStats>> allStats = new HashMap<>();
+    ACTIVE_DISPATCHERS.forEach(dispatcher -> allStats.put(dispatcher.containerId,
+        dispatcher.latestStats));
+    return allStats;
+  }
+
   private static Class<?> getMessageClass(SubType type, SubFolder folder) {
     String typeName = Common.capitalize(folder.value()) + Common.capitalize(type.value());
     String className = SystemState.class.getPackageName() + "." + typeName;
@@ -124,6 +167,12 @@ public class MessageDispatcherImpl extends ContainerBase implements MessageDispa
    * Get the associated message class for the indicated envelope.
    */
   public static Class<?> getMessageClassFor(Envelope envelope, boolean allowDefault) {
+    SubType useType = ofNullable(envelope.subType).orElse(SubType.EVENTS);
+    Map<SubFolder, Class<?>> folderClasses = ENVELOPE_CLASSES.get(useType);
+    Class<?> messageClass = ifNotNullGet(folderClasses, classes -> classes.get(envelope.subFolder));
+    if (messageClass != null) {
+      return messageClass;
+    }
     String mapKey = getMapKey(envelope.subType, envelope.subFolder);
     checkState(allowDefault || TYPE_CLASSES.containsKey(mapKey), "missing class for " + mapKey);
     return TYPE_CLASSES.getOrDefault(mapKey, SPECIAL_CLASSES.getOrDefault(mapKey, DEFAULT_CLASS));
@@ -134,10 +183,6 @@ public class MessageDispatcherImpl extends ContainerBase implements MessageDispa
     return new SimpleEntry<>(type, folder);
   }
 
-  private static Integer messageKey(Object message) {
-    return System.identityHashCode(message);
-  }
-
   private static void registerHandlerType(SubType type, SubFolder folder) {
     Class<?> messageClass = getMessageClass(type, folder);
     registerMessageClass(type, folder, messageClass);
@@ -148,6 +193,8 @@ public class MessageDispatcherImpl extends ContainerBase implements MessageDispa
     if (messageClass != null) {
       MessageDispatcherImpl.TYPE_CLASSES.put(mapKey, messageClass);
       MessageDispatcherImpl.CLASS_TYPES.put(messageClass, getTypeFolderEntry(type, folder));
+      ENVELOPE_CLASSES.computeIfAbsent(type, key -> new EnumMap<>(SubFolder.class))
+          .put(folder, messageClass);
     }
   }
 
@@ -157,14 +204,24 @@ public class MessageDispatcherImpl extends ContainerBase implements MessageDispa
 
   @Override
   protected void periodicTask() {
-    Map<String, PipeStats> countSum = messagePipe.extractStats();
+    Map<String, PipeStats> countSum = new LinkedHashMap<>(messagePipe.extractStats());
+    handlerStats.forEach((handlerType, stats) -> countSum.put(
+        HANDLER_STATS_PREFIX + handlerType.getSimpleName(), stats.extract(0)));
     extractAndLog(countSum, RECEIVE_STATS);
     extractAndLog(countSum, PUBLISH_STATS);
+    extractAndLog(countSum, WAIT_STATS);
+    extractAndLog(countSum, DISPATCH_STATS);
+    countSum.keySet().stream().filter(key -> key.startsWith(HANDLER_STATS_PREFIX))
+        .forEach(key -> extractAndLog(countSum, key));
+    latestStats = ImmutableMap.copyOf(countSum);
   }
 
   private void executeHandler(Class<?> handlerType, Object messageObject) {
+    Instant start = Instant.now();
     try {
       handlers.get(handlerType).accept(messageObject);
+      handlerStats.computeIfAbsent(handlerType, key -> new LatencyStats())
+          .record(Duration.between(start, Instant.now()));
       synchronized (handlerCounts) {
         handlerCounts.computeIfAbsent(handlerType, key -> new AtomicInteger()).incrementAndGet();
         handlerCounts.notify();
@@ -176,10 +233,15 @@ public class MessageDispatcherImpl extends ContainerBase implements MessageDispa
 
   private void extractAndLog(Map<String, PipeStats> countSum, String key) {
     PipeStats stats = countSum.get(key);
+    if (stats == null) {
+      return;
+    }
     double rate = stats.count / (double) periodicSec;
     double average = stats.latency / stats.count;
-    String message = format("Pipe %s %s count %.3f/s latency %.03fs, queue %.03f",
-        messagePipe, key, rate, average, stats.size);
+    String message = format(
+        "Pipe %s %s count %.3f/s latency %.03fs (p50 %.03fs p99 %.03fs p999 %.03fs max %.03fs)"
+            + ", queue %.03f", messagePipe, key, rate, average, stats.p50, stats.p99, stats.p999,
+        stats.max, stats.size);
     boolean asWarn = average >= LATENCY_WARNING_THRESHOLD || stats.size >= SIZE_WARNING_THRESHOLD;
     Consumer<String> logger = asWarn ? this::warn : this::trace;
     logger.accept(message);
@@ -204,7 +266,8 @@ public class MessageDispatcherImpl extends ContainerBase implements MessageDispa
     withEnvelopeFor(envelope, messageObject, () -> executeHandler(handlerType, messageObject));
   }
 
-  private void processMessageBundle(Bundle bundle) {
+  @VisibleForTesting
+  void processMessageBundle(Bundle bundle) {
     Envelope envelope = Preconditions.checkNotNull(bundle.envelope, "bundle envelope is null");
     Object message = bundle.message;
     if (bundle.payload != null) {
@@ -243,6 +306,7 @@ public class MessageDispatcherImpl extends ContainerBase implements MessageDispa
     Consumer<Bundle> processMessage = this::processMessageBundle;
     info(format("%s activating %s with %08x", this, messagePipe, Objects.hash(processMessage)));
     messagePipe.activate(processMessage);
+    ACTIVE_DISPATCHERS.add(this);
   }
 
   @TestOnly
@@ -271,10 +335,8 @@ public class MessageDispatcherImpl extends ContainerBase implements MessageDispa
 
   @Override
   public MessageContinuation getContinuation(Object message) {
-    Envelope messageEnvelope = messageEnvelopes.get(messageKey(message));
-    Envelope envelope = messageEnvelope == null ? getThreadEnvelope() : messageEnvelope;
     final Envelope continuationEnvelope =
-        requireNonNull(deepCopy(envelope), "missing message envelope");
+        requireNonNull(copyEnvelope(getThreadEnvelope()), "missing message envelope");
 
     return new MessageContinuation() {
       private boolean available = true;
@@ -320,7 +382,7 @@ public class MessageDispatcherImpl extends ContainerBase implements MessageDispa
       return (Bundle) message;
     }
 
-    Bundle bundle = new Bundle(deepCopy(envelope), message);
+    Bundle bundle = new Bundle(copyEnvelope(envelope), message);
 
     Envelope bundleEnvelope = bundle.envelope;
     if (message instanceof Exception || message instanceof String) {
@@ -401,6 +463,7 @@ public class MessageDispatcherImpl extends ContainerBase implements MessageDispa
 
   @Override
   public void shutdown() {
+    ACTIVE_DISPATCHERS.remove(this);
     messagePipe.shutdown();
     super.shutdown();
   }
@@ -430,18 +493,17 @@ public class MessageDispatcherImpl extends ContainerBase implements MessageDispa
   }
 
   /**
-   * Execute the runnable with the envelope mapped for the message.
+   * Execute the runnable with the envelope for the message. The envelope is carried by the
+   * dispatching thread for the duration of the handler, which is where any continuation for the
+   * message is created.
    */
   @VisibleForTesting
   public void withEnvelopeFor(Envelope envelope, Object message, Runnable run) {
-    Integer messageKey = messageKey(message);
     try {
-      requireNull(messageEnvelopes.put(messageKey, envelope), "duplicate remove envelope");
-      setThreadEnvelope(envelope);
+      setThreadEnvelope(requireNonNull(envelope, "missing message envelope"));
       run.run();
     } finally {
       setThreadEnvelope(null);
-      requireNonNull(messageEnvelopes.remove(messageKey), "missing remove envelope");
     }
   }
 
@@ -16,6 +16,7 @@ import static java.util.Optional.ofNullable;
 
 import com.google.api.core.AbstractApiService;
 import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
 import com.google.api.core.ApiService;
 import com.google.api.core.ApiService.Listener;
 import com.google.api.core.ApiService.State;
@@ -70,6 +71,7 @@ public class PubSubPipe extends MessageBase implements MessageReceiver {
   private final Set<String> subscriberSet;
   private List<Subscriber> subscribers;
   private final AtomicInteger publisherQueueSize = new AtomicInteger();
+  private boolean subscribersTerminated;
 
   /**
    * Create a new instance based off the configuration.
@@ -134,6 +136,17 @@ public class PubSubPipe extends MessageBase implements MessageReceiver {
     return publisherQueueSize.get() / (double) queueCapacity;
   }
 
+  /**
+   * PubSub subscribers can't be paused, so stop them outright and create fresh ones on resume.
+   */
+  @Override
+  protected synchronized void pauseSubscriptions() {
+    if (subscribers != null) {
+      notice("Pausing %d subscribers for %s", subscribers.size(), containerId);
+      stopAsyncSubscribers();
+    }
+  }
+
   @Override
   protected void publishRaw(Bundle bundle) {
     if (publisher == null) {
@@ -144,12 +157,8 @@ public class PubSubPipe extends MessageBase implements MessageReceiver {
     try {
       int currentQueueSize = publisherQueueSize.incrementAndGet();
       Envelope envelope = ofNullable(bundle.envelope).orElse(new Envelope());
-      Map<String, String> stringMap = toMap(envelope).entrySet().stream()
-          .collect(Collectors.toMap(Entry::getKey, entry -> (String) entry.getValue()));
-      PubsubMessage message = PubsubMessage.newBuilder()
-          .putAllAttributes(stringMap)
-          .setData(ByteString.copyFromUtf8(stringify(bundle.message)))
-          .build();
+      Map<String, String> stringMap = envelopeAttributes(envelope);
+      PubsubMessage message = makePubsubMessage(stringMap, bundle);
       randomlyFail();
 
       debug(
@@ -178,7 +187,68 @@ public class PubSubPipe extends MessageBase implements MessageReceiver {
     }
   }
 
+  /**
+   * Hand the whole batch to the publisher before waiting on any of the results, so the client
+   * library can group them into as few publish requests as its batching settings allow.
+   */
+  @Override
+  protected void publishRawBatch(List<Bundle> bundles) {
+    if (publisher == null) {
+      trace("Dropping message batch because publisher is null");
+      return;
+    }
+    throttleQueue();
+    try {
+      int currentQueueSize = publisherQueueSize.addAndGet(bundles.size());
+      debug(format("Preparing to publish PubSub batch of %d. Current internal queue size: %d",
+          bundles.size(), currentQueueSize));
+      randomlyFail();
+
+      long publishStartTime = System.currentTimeMillis();
+      long sleepTime = publishDelaySec * MS_PER_SEC;
+      List<ApiFuture<String>> futures = bundles.stream().map(bundle -> publisher.publish(
+          makePubsubMessage(envelopeAttributes(ofNullable(bundle.envelope).orElse(new Envelope())),
+              bundle))).toList();
+      Thread.sleep(sleepTime);
+      List<String> publishedIds = ApiFutures.allAsList(futures).get();
+      long gcpAckLatencyMs = (System.currentTimeMillis() - publishStartTime) - sleepTime;
+
+      debug(format("Published PubSub batch of %d to %s, %s to %s, with GCP Ack Latency %dms",
+          publishedIds.size(), topicId, PS_TXN_PREFIX + publishedIds.get(0),
+          PS_TXN_PREFIX + publishedIds.get(publishedIds.size() - 1), gcpAckLatencyMs));
+    } catch (Exception e) {
+      throw new RuntimeException("While publishing batch to " + publisher.getTopicNameString(), e);
+    } finally {
+      publisherQueueSize.addAndGet(-bundles.size());
+      throttleQueue();
+    }
+  }
+
+  private static Map<String, String> envelopeAttributes(Envelope envelope) {
+    return toMap(envelope).entrySet().stream()
+        .collect(Collectors.toMap(Entry::getKey, entry -> (String) entry.getValue()));
+  }
+
+  private static PubsubMessage makePubsubMessage(Map<String, String> attributes, Bundle bundle) {
+    return PubsubMessage.newBuilder()
+        .putAllAttributes(attributes)
+        .setData(ByteString.copyFromUtf8(stringify(bundle.message)))
+        .build();
+  }
+
+  @Override
+  protected synchronized void resumeSubscriptions() {
+    if (subscribers == null && isActive() && !subscribersTerminated) {
+      initializeSubscribers();
+      notice("Resuming %d subscribers for %s", subscribers.size(), containerId);
+      subscribers.forEach(Subscriber::startAsync);
+    }
+  }
+
   private void awaitTerminated() {
+    synchronized (this) {
+      subscribersTerminated = true;
+    }
     stopAsyncSubscribers().forEach(ApiService::awaitTerminated);
   }
 
@@ -194,8 +264,9 @@ public class PubSubPipe extends MessageBase implements MessageReceiver {
     subscribers = ifNotNullGet(subscriberSet, this::getSubscribers);
   }
 
-  private List<ApiService> stopAsyncSubscribers() {
-    List<ApiService> apiServices = subscribers.stream().map(AbstractApiService::stopAsync).toList();
+  private synchronized List<ApiService> stopAsyncSubscribers() {
+    List<ApiService> apiServices = ofNullable(subscribers).orElse(List.of()).stream()
+        .map(AbstractApiService::stopAsync).toList();
     subscribers = null;
     return apiServices;
   }
@@ -21,7 +21,12 @@ import com.google.bos.udmi.service.messaging.MessagePipe;
 import com.google.common.base.Strings;
 import com.google.udmi.util.CertManager;
 import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledFuture;
@@ -33,7 +38,10 @@ import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import udmi.schema.Basic;
 import udmi.schema.EndpointConfiguration;
@@ -72,6 +80,8 @@ public class SimpleMqttPipe extends MessageBase {
   private final CountDownLatch connectLatch = new CountDownLatch(1);
   private final boolean publishMessages;
   private final String sendTopicChannel;
+  private final Queue<MqttMessage> deferredAcks = new ConcurrentLinkedQueue<>();
+  private volatile boolean subscriptionsPaused;
 
   /**
    * Create new pipe instance for the given config.
@@ -154,6 +164,15 @@ public class SimpleMqttPipe extends MessageBase {
     }
   }
 
+  /**
+   * Pause by withholding acks for received messages, so the broker stops delivering once its
+   * in-flight window is full and queues the rest, rather than dropping them for an unsubscribe.
+   */
+  @Override
+  protected void pauseSubscriptions() {
+    subscriptionsPaused = true;
+  }
+
   @Override
   protected void publishRaw(Bundle bundle) {
     if (!publishMessages) {
@@ -172,6 +191,53 @@ public class SimpleMqttPipe extends MessageBase {
     }
   }
 
+  /**
+   * Send the whole batch without waiting for each delivery in turn, so the broker round trips
+   * overlap. If the client's in-flight window fills up, wait for the oldest outstanding delivery
+   * from this batch before continuing.
+   */
+  @Override
+  protected void publishRawBatch(List<Bundle> bundles) {
+    if (!publishMessages) {
+      trace("Dropping message batch because no send_id");
+      return;
+    }
+    try {
+      Deque<MqttDeliveryToken> pending = new ArrayDeque<>();
+      for (Bundle bundle : bundles) {
+        MqttTopic topic = mqttClient.getTopic(makeMqttTopic(bundle));
+        MqttMessage message = makeMqttMessage(bundle);
+        while (true) {
+          try {
+            pending.add(topic.publish(message));
+            break;
+          } catch (MqttException e) {
+            if (e.getReasonCode() != MqttException.REASON_CODE_MAX_INFLIGHT || pending.isEmpty()) {
+              throw e;
+            }
+            pending.remove().waitForCompletion(mqttClient.getTimeToWait());
+          }
+        }
+      }
+      for (MqttDeliveryToken token : pending) {
+        token.waitForCompletion(mqttClient.getTimeToWait());
+      }
+    } catch (Exception e) {
+      throw new RuntimeException("While publishing batch to mqtt client " + clientId, e);
+    }
+  }
+
+  @Override
+  protected void resumeSubscriptions() {
+    subscriptionsPaused = false;
+    flushDeferredAcks();
+  }
+
+  private void acknowledge(MqttMessage message) {
+    deferredAcks.add(message);
+    ifTrueThen(!subscriptionsPaused, this::flushDeferredAcks);
+  }
+
   private void connect(boolean forceDisconnect) {
     try {
       synchronized (mqttClient) {
@@ -212,6 +278,7 @@ public class SimpleMqttPipe extends MessageBase {
     try {
       MqttClient client = new MqttClient(broker, clientId, new MemoryPersistence());
       client.setCallback(new MqttCallbackHandler());
+      client.setManualAcks(true);
       client.setTimeToWait(INITIALIZE_TIME_MS);
       return client;
     } catch (Exception e) {
@@ -219,6 +286,18 @@ public class SimpleMqttPipe extends MessageBase {
     }
   }
 
+  private void flushDeferredAcks() {
+    MqttMessage message;
+    while ((message = deferredAcks.poll()) != null) {
+      try {
+        mqttClient.messageArrivedComplete(message.getId(), message.getQos());
+      } catch (Exception e) {
+        error("Exception acking message %d on %s: %s", message.getId(), clientId,
+            friendlyStackTrace(e));
+      }
+    }
+  }
+
   private void forceDisconnect() {
     try {
       mqttClient.disconnectForcibly();
@@ -330,6 +409,8 @@ public class SimpleMqttPipe extends MessageBase {
     @Override
     public void connectionLost(Throwable cause) {
       error("Connection lost for %s: %s", clientId, friendlyStackTrace(cause));
+      // Message ids are only valid for the connection they were received on.
+      deferredAcks.clear();
     }
 
     @Override
@@ -345,6 +426,8 @@ public class SimpleMqttPipe extends MessageBase {
         receiveMessage(envelopeMap, new String(message.getPayload()));
       } catch (Exception e) {
         error("Exception receiving message on %s: %s", clientId, friendlyStackTrace(e));
+      } finally {
+        acknowledge(message);
       }
     }
   }
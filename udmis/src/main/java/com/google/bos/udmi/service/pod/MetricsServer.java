@@ -0,0 +1,145 @@
+package com.google.bos.udmi.service.pod;
+
+import static java.lang.String.format;
+
+import com.google.bos.udmi.service.messaging.MessagePipe.PipeStats;
+import com.google.bos.udmi.service.messaging.impl.MessageDispatcherImpl;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Simple web server that exposes the latest message dispatcher stats in a scrapeable (Prometheus)
+ * text format. Stats are the snapshot from each dispatcher's last periodic interval, so scraping
+ * doesn't interfere with the regular stats logging. Other components can add their own stats
+ * sources, which are rendered the same way, or plain counter sources for things that are only
+ * counted and have no latency.
+ */
+public class MetricsServer {
+
+  public static final String METRICS_PATH = "/metrics";
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+  private static final Map<String, Supplier<Map<String, PipeStats>>> STATS_SOURCES =
+      new ConcurrentHashMap<>();
+  private static final Map<String, Supplier<Map<String, Long>>> COUNTER_SOURCES =
+      new ConcurrentHashMap<>();
+  private final HttpServer server;
+
+  /**
+   * Create and start a new metrics server on the given port.
+   */
+  public MetricsServer(int port) {
+    try {
+      server = HttpServer.create(new InetSocketAddress(port), 0);
+      server.createContext(METRICS_PATH, this::handleMetrics);
+      server.start();
+    } catch (Exception e) {
+      throw new RuntimeException("While creating metrics server on port " + port, e);
+    }
+  }
+
+  /**
+   * Add a source of (latest snapshot) stats, keyed by stage, to be exported with the given name.
+   */
+  public static void addStatsSource(String name, Supplier<Map<String, PipeStats>> source) {
+    STATS_SOURCES.put(name, source);
+  }
+
+  public static void removeStatsSource(String name) {
+    STATS_SOURCES.remove(name);
+  }
+
+  /**
+   * Add a source of monotonic counters, keyed by counter name, to be exported with the given name.
+   */
+  public static void addCounterSource(String name, Supplier<Map<String, Long>> source) {
+    COUNTER_SOURCES.put(name, source);
+  }
+
+  public static void removeCounterSource(String name) {
+    COUNTER_SOURCES.remove(name);
+  }
+
+  static Map<String, Map<String, PipeStats>> getAllStats() {
+    Map<String, Map<String, PipeStats>> allStats =
+        new HashMap<>(MessageDispatcherImpl.getLatestStats());
+    STATS_SOURCES.forEach((name, source) -> allStats.put(name, source.get()));
+    return allStats;
+  }
+
+  static Map<String, Map<String, Long>> getAllCounters() {
+    Map<String, Map<String, Long>> allCounters = new HashMap<>();
+    COUNTER_SOURCES.forEach((name, source) -> allCounters.put(name, source.get()));
+    return allCounters;
+  }
+
+  private static void appendMetric(StringBuilder builder, String name, String labels,
+      double value) {
+    builder.append(format("udmis_pipe_%s{%s} %s%n", name, labels, value));
+  }
+
+  /**
+   * Render the given dispatcher stats, keyed by dispatcher and then stage, as metrics text.
+   */
+  static String renderMetrics(Map<String, Map<String, PipeStats>> allStats) {
+    StringBuilder builder = new StringBuilder();
+    builder.append("# TYPE udmis_pipe_count gauge\n");
+    builder.append("# TYPE udmis_pipe_latency_seconds summary\n");
+    builder.append("# TYPE udmis_pipe_latency_max_seconds gauge\n");
+    builder.append("# TYPE udmis_pipe_queue_size gauge\n");
+    new TreeMap<>(allStats).forEach((dispatcher, stages) ->
+        new TreeMap<>(stages).forEach((stage, stats) -> {
+          String labels = format("dispatcher=\"%s\",stage=\"%s\"", dispatcher, stage);
+          appendMetric(builder, "count", labels, stats.count);
+          appendMetric(builder, "latency_seconds", labels + ",quantile=\"0.5\"", stats.p50);
+          appendMetric(builder, "latency_seconds", labels + ",quantile=\"0.99\"", stats.p99);
+          appendMetric(builder, "latency_seconds", labels + ",quantile=\"0.999\"", stats.p999);
+          appendMetric(builder, "latency_seconds_sum", labels, stats.latency);
+          appendMetric(builder, "latency_seconds_count", labels, stats.count);
+          appendMetric(builder, "latency_max_seconds", labels, stats.max);
+          appendMetric(builder, "queue_size", labels, stats.size);
+        }));
+    return builder.toString();
+  }
+
+  /**
+   * Render the given counters, keyed by source and then counter name, as metrics text.
+   */
+  static String renderCounters(Map<String, Map<String, Long>> allCounters) {
+    StringBuilder builder = new StringBuilder();
+    builder.append("# TYPE udmis_counter_total counter\n");
+    new TreeMap<>(allCounters).forEach((source, counters) ->
+        new TreeMap<>(counters).forEach((counter, value) ->
+            builder.append(format("udmis_counter_total{source=\"%s\",counter=\"%s\"} %d%n",
+                source, counter, value))));
+    return builder.toString();
+  }
+
+  private void handleMetrics(HttpExchange exchange) {
+    try {
+      String metrics = renderMetrics(getAllStats()) + renderCounters(getAllCounters());
+      byte[] response = metrics.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(response);
+      }
+    } catch (Exception e) {
+      throw new RuntimeException("While handling metrics request", e);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  public void shutdown() {
+    server.stop(0);
+  }
+}
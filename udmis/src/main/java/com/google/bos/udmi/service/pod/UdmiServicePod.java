@@ -60,6 +60,7 @@ public class UdmiServicePod extends ContainerBase {
       ProvisioningEngine.class, BitboxAdapter.class, DistributorPipe.class);
   private static final Map<String, Class<? extends ProcessorBase>> PROCESSORS =
       PROCESSOR_CLASSES.stream().collect(Collectors.toMap(ContainerBase::getName, clazz -> clazz));
+  private MetricsServer metricsServer;
 
   /**
    * Core pod to instantiate all the other components as necessary based on configuration.
@@ -246,6 +247,9 @@ public class UdmiServicePod extends ContainerBase {
     String absolutePath = READY_INDICATOR.getAbsolutePath();
     try {
       forAllComponents(UdmiComponent::activate);
+      Integer metricsPort = ifNotNullGet(podConfiguration.base, base -> base.metrics_port);
+      metricsServer = ifNotNullGet(metricsPort, MetricsServer::new);
+      ifNotNullThen(metricsPort, port -> notice("Serving metrics on port " + port));
       checkState(READY_INDICATOR.createNewFile(), "ready file already exists: " + absolutePath);
       READY_INDICATOR.deleteOnExit();
     } catch (Exception e) {
@@ -259,12 +263,23 @@ public class UdmiServicePod extends ContainerBase {
   }
 
   /**
-   * Shutdown all processors and bridges in the pod.
+   * Shutdown all processors and bridges in the pod. Data providers are shut down last, since other
+   * components may still need to write out pending data as they shut down.
    */
   @Override
   public void shutdown() {
     notice("Starting shutdown of container components");
-    forAllComponents(UdmiComponent::shutdown);
+    forAllComponents(component -> {
+      if (!(component instanceof IotDataProvider)) {
+        component.shutdown();
+      }
+    });
+    forAllComponents(component -> {
+      if (component instanceof IotDataProvider) {
+        component.shutdown();
+      }
+    });
+    ifNotNullThen(metricsServer, MetricsServer::shutdown);
     notice("Finished shutdown of container components");
     super.shutdown();
   }
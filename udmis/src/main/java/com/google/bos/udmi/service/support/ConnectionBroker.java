@@ -1,5 +1,6 @@
 package com.google.bos.udmi.service.support;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.concurrent.Future;
 import java.util.function.Consumer;
@@ -17,6 +18,20 @@ public interface ConnectionBroker {
 
   void unbindGateway(String gatewayId, String deviceId);
 
+  /**
+   * Bind a set of devices to a gateway. Implementations can override this to do it in bulk.
+   */
+  default void bindGateway(String gatewayId, Collection<String> deviceIds) {
+    deviceIds.forEach(deviceId -> bindGateway(gatewayId, deviceId));
+  }
+
+  /**
+   * Unbind a set of devices from a gateway. Implementations can override this to do it in bulk.
+   */
+  default void unbindGateway(String gatewayId, Collection<String> deviceIds) {
+    deviceIds.forEach(deviceId -> unbindGateway(gatewayId, deviceId));
+  }
+
   /**
    * Simple event for connection broker happenings.
    */
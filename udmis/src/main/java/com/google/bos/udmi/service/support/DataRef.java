@@ -1,7 +1,12 @@
 package com.google.bos.udmi.service.support;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.udmi.util.GeneralUtils.ifNotNullGet;
 import static java.lang.String.format;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -9,8 +14,16 @@ import java.util.Map;
  */
 public abstract class DataRef {
 
+  private static final String PATH_SEPARATOR = "/";
+  private static final String KEY_SEPARATOR = ":";
+  private static final String REGISTRY_PATH = PATH_SEPARATOR + "r" + PATH_SEPARATOR;
+  private static final String DEVICE_PATH = PATH_SEPARATOR + "d" + PATH_SEPARATOR;
+  private static final String GATEWAY_PATH = PATH_SEPARATOR + "g" + PATH_SEPARATOR;
+  private static final String COLLECT_PATH = PATH_SEPARATOR + "c" + PATH_SEPARATOR;
+
   protected String registryId;
   protected String deviceId;
+  protected String gatewayId;
   protected String collection;
 
   private static String sanitize(String key) {
@@ -25,8 +38,36 @@ public abstract class DataRef {
     return this;
   }
 
+  /**
+   * Atomically set the value of a key, but only if its current value matches the expected value
+   * (null for an absent key). A null value deletes the key.
+   */
+  public boolean compareAndSwap(String key, String expected, String value) {
+    Map<String, String> updates = new HashMap<>();
+    updates.put(key, value);
+    return compareAndUpdate(key, expected, updates);
+  }
+
+  /**
+   * Atomically apply the updates, but only if the current value of the guard key matches the
+   * expected value (null for an absent key). Updates with a null value delete the entry.
+   *
+   * @return true if the guard matched and the updates were applied
+   */
+  public abstract boolean compareAndUpdate(String guardKey, String expected,
+      Map<String, String> updates);
+
   public abstract void delete(String key);
 
+  /**
+   * Atomically delete all the given keys.
+   */
+  public void deleteAll(Collection<String> keys) {
+    Map<String, String> updates = new HashMap<>();
+    keys.forEach(key -> updates.put(key, null));
+    update(updates);
+  }
+
   /**
    * Add a device specification.
    */
@@ -37,12 +78,41 @@ public abstract class DataRef {
 
   public abstract Map<String, String> entries();
 
+  /**
+   * Add a gateway specification, for entries indexed by gateway.
+   */
+  public DataRef gateway(String gatewayId) {
+    this.gatewayId = sanitize(gatewayId);
+    return this;
+  }
+
   public abstract String get(String key);
 
   public abstract AutoCloseable lock();
 
+  /**
+   * Get the full path for a key, scoped by the registry, device, and collection of this ref.
+   */
+  protected String getKeyPath(String key) {
+    checkState(deviceId == null || registryId != null, "device without registry");
+    checkState(gatewayId == null || registryId != null, "gateway without registry");
+    return ifNotNullGet(registryId, id -> REGISTRY_PATH + id, "")
+        + ifNotNullGet(deviceId, id -> DEVICE_PATH + id, "")
+        + ifNotNullGet(gatewayId, id -> GATEWAY_PATH + id, "")
+        + ifNotNullGet(collection, id -> COLLECT_PATH + id, "")
+        + KEY_SEPARATOR + key;
+  }
+
   public abstract void put(String key, String value);
 
+  /**
+   * Atomically put all the given entries.
+   */
+  public void putAll(Map<String, String> entries) {
+    checkArgument(!entries.containsValue(null), "null value in put entries");
+    update(entries);
+  }
+
   /**
    * Add a registry specification.
    */
@@ -51,7 +121,31 @@ public abstract class DataRef {
     return this;
   }
 
+  /**
+   * Replace the entries of this ref with the given ones, deleting any existing entries that are
+   * not included. The writes are applied atomically, against the entries as last listed.
+   */
+  public void replace(Map<String, String> entries) {
+    Map<String, String> updates = new HashMap<>(entries);
+    entries().keySet().forEach(key -> updates.putIfAbsent(key, null));
+    update(updates);
+  }
+
+  /**
+   * Convert a map of keys to a map of full key paths for this ref.
+   */
+  protected Map<String, String> toKeyPaths(Map<String, String> updates) {
+    Map<String, String> keyPaths = new HashMap<>();
+    updates.forEach((key, value) -> keyPaths.put(getKeyPath(key), value));
+    return keyPaths;
+  }
+
   public String toString() {
     return format("r/%s/d/%s/c/%s", registryId, deviceId, collection);
   }
+
+  /**
+   * Atomically apply the updates. Updates with a null value delete the entry.
+   */
+  public abstract void update(Map<String, String> updates);
 }
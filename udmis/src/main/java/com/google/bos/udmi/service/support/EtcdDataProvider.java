@@ -5,27 +5,60 @@ import static com.google.bos.udmi.service.core.DistributorPipe.clientId;
 import static com.google.udmi.util.GeneralUtils.CSV_JOINER;
 import static com.google.udmi.util.GeneralUtils.friendlyStackTrace;
 import static com.google.udmi.util.GeneralUtils.ifNotNullGet;
+import static com.google.udmi.util.GeneralUtils.ifNotNullThen;
+import static com.google.udmi.util.GeneralUtils.ifTrueThen;
 import static com.google.udmi.util.GeneralUtils.isNullOrNotEmpty;
+import static java.lang.String.format;
+import static java.util.Optional.ofNullable;
 
+import com.google.bos.udmi.service.messaging.MessagePipe.PipeStats;
+import com.google.bos.udmi.service.messaging.impl.LatencyStats;
 import com.google.bos.udmi.service.pod.ContainerBase;
+import com.google.bos.udmi.service.pod.MetricsServer;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
 import com.google.udmi.util.GeneralUtils;
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.Client;
 import io.etcd.jetcd.KV;
 import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.Lease;
 import io.etcd.jetcd.Lock;
+import io.etcd.jetcd.Txn;
+import io.etcd.jetcd.Watch;
+import io.etcd.jetcd.Watch.Watcher;
 import io.etcd.jetcd.cluster.Member;
+import io.etcd.jetcd.kv.DeleteResponse;
 import io.etcd.jetcd.kv.GetResponse;
+import io.etcd.jetcd.kv.PutResponse;
+import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.lease.LeaseKeepAliveResponse;
+import io.etcd.jetcd.lock.LockResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.CmpTarget;
+import io.etcd.jetcd.op.Op;
+import io.etcd.jetcd.options.DeleteOption;
 import io.etcd.jetcd.options.GetOption;
+import io.etcd.jetcd.options.PutOption;
+import io.etcd.jetcd.options.WatchOption;
+import io.etcd.jetcd.support.CloseableClient;
+import io.etcd.jetcd.watch.WatchEvent.EventType;
+import io.etcd.jetcd.watch.WatchResponse;
+import io.grpc.stub.StreamObserver;
 import java.net.URI;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 import udmi.schema.IotAccess;
 
@@ -45,13 +78,29 @@ public class EtcdDataProvider extends ContainerBase implements IotDataProvider {
   private static final int HEARTBEAT_SEC = THRESHOLD_MIN * 60 / 4;
   private static final Duration CLIENT_THRESHOLD = Duration.ofMinutes(THRESHOLD_MIN);
   private static final GetOption LIST_OPT = GetOption.newBuilder().isPrefix(true).build();
+  private static final String CACHE_REFS_KEY = "cache_refs";
+  private static final int DEFAULT_CACHE_REFS = 1000;
+  private static final String CACHED_PATH = "/r/";
+  private static final int MAX_TXN_OPS = 128;
+  private static final long LOCK_LEASE_SEC = 10;
+  private static final String LEASE_NOT_FOUND = "requested lease not found";
+  private static final String LOCK_STAGE = "lock";
+  private static final String LOCK_CONTENDED_STAGE = "lock_contended";
   private final IotAccess config;
   private final Client client;
   private final KV kvClient;
   private final Lock lockClient;
   private final Map<String, String> options;
   private final boolean enabled;
+  private final RefCache refCache;
+  private final Map<String, ReentrantLock> localLocks = new ConcurrentHashMap<>();
+  private final LatencyStats lockStats = new LatencyStats();
+  private final LatencyStats contendedStats = new LatencyStats();
   private ScheduledExecutorService scheduledExecutorService;
+  private Watcher refWatcher;
+  private volatile Map<String, PipeStats> latestLockStats = ImmutableMap.of();
+  private long sessionLease;
+  private CloseableClient leaseKeepAlive;
 
   /**
    * Create an instance of this component.
@@ -63,6 +112,9 @@ public class EtcdDataProvider extends ContainerBase implements IotDataProvider {
     client = enabled ? initializeClient() : null;
     kvClient = ifNotNullGet(client, Client::getKVClient);
     lockClient = ifNotNullGet(client, Client::getLockClient);
+    int cacheRefs = ofNullable(options.get(CACHE_REFS_KEY)).map(Integer::parseInt)
+        .orElse(DEFAULT_CACHE_REFS);
+    refCache = enabled && cacheRefs > 0 ? new RefCache(cacheRefs) : null;
   }
 
   private static String asString(ByteSequence input) {
@@ -77,28 +129,63 @@ public class EtcdDataProvider extends ContainerBase implements IotDataProvider {
   protected void periodicTask() {
     updateConnectedKey(client);
     reapConnectedKeys(client);
+    latestLockStats = ImmutableMap.of(LOCK_STAGE, lockStats.extract(0),
+        LOCK_CONTENDED_STAGE, contendedStats.extract(0));
+    debug("Lock acquisitions %d, contended %d", latestLockStats.get(LOCK_STAGE).count,
+        latestLockStats.get(LOCK_CONTENDED_STAGE).count);
+    ifNotNullThen(refCache, cache -> {
+      debug("Ref cache has " + cache.getStats());
+      ifTrueThen(!cache.isActive(), this::startRefWatch);
+    });
+  }
+
+  private void applyRefChanges(WatchResponse response) {
+    response.getEvents().forEach(event -> {
+      KeyValue kv = event.getKeyValue();
+      boolean deleted = event.getEventType() == EventType.DELETE;
+      refCache.apply(asString(kv.getKey()), deleted ? null : asString(kv.getValue()),
+          kv.getModRevision());
+    });
   }
 
   private void deleteEntry(String key) {
     try {
-      kvClient.delete(bytes(key)).get(QUERY_TIMEOUT_SEC, TimeUnit.SECONDS);
+      DeleteResponse response =
+          kvClient.delete(bytes(key)).get(QUERY_TIMEOUT_SEC, TimeUnit.SECONDS);
+      invalidateCached(key, response.getHeader().getRevision());
     } catch (Exception e) {
       throw new RuntimeException("While deleting key " + key, e);
     }
   }
 
   private Map<String, String> getEntries(String keyPath) {
+    boolean cacheable = isCacheable(keyPath);
+    Map<String, String> cached = cacheable ? refCache.get(keyPath) : null;
+    if (cached != null) {
+      return cached;
+    }
     try {
       GetResponse response =
           kvClient.get(bytes(keyPath), LIST_OPT).get(QUERY_TIMEOUT_SEC, TimeUnit.SECONDS);
-      return response.getKvs().stream().collect(Collectors.toMap(
+      Map<String, String> entries = response.getKvs().stream().collect(Collectors.toMap(
           kv -> asString(kv.getKey()).substring(keyPath.length()), kv -> asString(kv.getValue())));
+      ifTrueThen(cacheable,
+          () -> refCache.load(keyPath, response.getHeader().getRevision(), entries));
+      return entries;
     } catch (Exception e) {
       throw new RuntimeException("While listing db keys " + keyPath, e);
     }
   }
 
+  /**
+   * Get a single entry. If the cache is running, this reads through the entire ref, so that
+   * subsequent reads of other entries (the typical pattern) are served locally.
+   */
   private String getKey(String key) {
+    String prefix = RefCache.prefixOf(key);
+    if (prefix != null && isCacheable(prefix)) {
+      return getEntries(prefix).get(key.substring(prefix.length()));
+    }
     try {
       GetResponse response = kvClient.get(bytes(key)).get(QUERY_TIMEOUT_SEC, TimeUnit.SECONDS);
       if (response.getCount() == 0) {
@@ -138,6 +225,14 @@ public class EtcdDataProvider extends ContainerBase implements IotDataProvider {
     }
   }
 
+  private void invalidateCached(String key, long revision) {
+    ifNotNullThen(refCache, cache -> cache.invalidate(key, revision));
+  }
+
+  private boolean isCacheable(String keyPath) {
+    return refCache != null && refCache.isActive() && keyPath.startsWith(CACHED_PATH);
+  }
+
   private boolean isStaleKey(KeyValue kv, Instant threshold) {
     String value = asString(kv.getValue());
     try {
@@ -148,20 +243,100 @@ public class EtcdDataProvider extends ContainerBase implements IotDataProvider {
     }
   }
 
+  /**
+   * Get the shared session lease used for all locks from this provider, granting (and keeping
+   * alive) a new one if needed. Locks are released on unlock, or when the lease lapses because
+   * this process has gone away.
+   */
+  private synchronized long getSessionLease() throws Exception {
+    if (leaseKeepAlive == null) {
+      Lease leaseClient = client.getLeaseClient();
+      long leaseId = leaseClient.grant(LOCK_LEASE_SEC).get(QUERY_TIMEOUT_SEC, TimeUnit.SECONDS)
+          .getID();
+      leaseKeepAlive = leaseClient.keepAlive(leaseId, new StreamObserver<>() {
+        @Override
+        public void onNext(LeaseKeepAliveResponse value) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+          warn("Session lease %x keep-alive failed: %s", leaseId, friendlyStackTrace(t));
+          resetSessionLease(leaseId);
+        }
+
+        @Override
+        public void onCompleted() {
+          resetSessionLease(leaseId);
+        }
+      });
+      sessionLease = leaseId;
+      info("Granted session lease %x", leaseId);
+    }
+    return sessionLease;
+  }
+
+  private synchronized void resetSessionLease(long leaseId) {
+    if (leaseKeepAlive != null && sessionLease == leaseId) {
+      leaseKeepAlive.close();
+      leaseKeepAlive = null;
+    }
+  }
+
+  private synchronized void revokeSessionLease() throws Exception {
+    if (leaseKeepAlive != null) {
+      leaseKeepAlive.close();
+      leaseKeepAlive = null;
+      client.getLeaseClient().revoke(sessionLease).get(QUERY_TIMEOUT_SEC, TimeUnit.SECONDS);
+    }
+  }
+
+  private static boolean isLeaseNotFound(Throwable throwable) {
+    return Throwables.getCausalChain(throwable).stream().anyMatch(
+        cause -> cause.getMessage() != null && cause.getMessage().contains(LEASE_NOT_FOUND));
+  }
+
+  /**
+   * Acquire a distributed lock. Waiters within this process first queue on a local per-key lock,
+   * so only one at a time per key goes to etcd, and all locks share one session lease.
+   */
   private AutoCloseable lockRef(String lockName) {
+    Instant start = Instant.now();
+    ReentrantLock localLock = localLocks.computeIfAbsent(lockName, key -> new ReentrantLock());
+    boolean contended = !localLock.tryLock();
+    if (contended) {
+      localLock.lock();
+    }
+    long leaseId = 0;
     try {
-      long leaseId = client.getLeaseClient().grant(10).get().getID();
-      ByteSequence lockKey = lockClient.lock(bytes(lockName), leaseId).get().getKey();
+      leaseId = getSessionLease();
+      CompletableFuture<LockResponse> locking = lockClient.lock(bytes(lockName), leaseId);
+      ByteSequence lockKey;
+      try {
+        lockKey = locking.get(QUERY_TIMEOUT_SEC, TimeUnit.SECONDS).getKey();
+      } catch (TimeoutException e) {
+        locking.cancel(true);
+        throw e;
+      }
+      Duration waited = Duration.between(start, Instant.now());
+      lockStats.record(waited);
+      ifTrueThen(contended, () -> contendedStats.record(waited));
       info("Locked %s with lease %x", lockName, leaseId);
-      return new LockCloser(lockName, leaseId, lockKey);
+      return new LockCloser(lockName, localLock, lockKey);
     } catch (Exception e) {
-      throw new RuntimeException("While acquiring etcd lock", e);
+      // Other held locks share the session lease, so only drop it if it's actually gone.
+      if (isLeaseNotFound(e)) {
+        resetSessionLease(leaseId);
+      }
+      localLock.unlock();
+      throw new RuntimeException("While acquiring etcd lock " + lockName, e);
     }
   }
 
   private void putKey(String key, String value) {
     try {
-      kvClient.put(bytes(key), bytes(value)).get(QUERY_TIMEOUT_SEC, TimeUnit.SECONDS);
+      PutResponse response =
+          kvClient.put(bytes(key), bytes(value)).get(QUERY_TIMEOUT_SEC, TimeUnit.SECONDS);
+      invalidateCached(key, response.getHeader().getRevision());
     } catch (Exception e) {
       throw new RuntimeException("While putting db entry " + key, e);
     }
@@ -185,6 +360,69 @@ public class EtcdDataProvider extends ContainerBase implements IotDataProvider {
     }
   }
 
+  private static Op updateOp(String key, String value) {
+    return value == null ? Op.delete(bytes(key), DeleteOption.DEFAULT)
+        : Op.put(bytes(key), bytes(value), PutOption.DEFAULT);
+  }
+
+  /**
+   * Apply all the updates in a single etcd transaction, optionally guarded by the value of a key
+   * (a null expected value means the key must be absent).
+   */
+  private boolean updateEntries(String guardKey, String expected, Map<String, String> updates) {
+    if (updates.isEmpty()) {
+      return true;
+    }
+    if (updates.size() > MAX_TXN_OPS) {
+      throw new IllegalStateException(format("Update of %d entries exceeds the %d operations "
+          + "allowed in one transaction", updates.size(), MAX_TXN_OPS));
+    }
+    try {
+      Txn txn = kvClient.txn();
+      if (guardKey != null) {
+        CmpTarget<?> target = expected == null ? CmpTarget.version(0)
+            : CmpTarget.value(bytes(expected));
+        txn = txn.If(new Cmp(bytes(guardKey), Cmp.Op.EQUAL, target));
+      }
+      Op[] ops = updates.entrySet().stream()
+          .map(entry -> updateOp(entry.getKey(), entry.getValue())).toArray(Op[]::new);
+      TxnResponse response = txn.Then(ops).commit().get(QUERY_TIMEOUT_SEC, TimeUnit.SECONDS);
+      updates.keySet().forEach(key -> invalidateCached(key, response.getHeader().getRevision()));
+      return response.isSucceeded();
+    } catch (Exception e) {
+      throw new RuntimeException("While updating db entries " + CSV_JOINER.join(updates.keySet()),
+          e);
+    }
+  }
+
+  /**
+   * Start watching for changes to cached refs, from the current revision, so the cache can be
+   * kept coherent with writes from other pods. The cache is active before the watch is created
+   * so that no change after the starting revision can be missed.
+   */
+  private synchronized void startRefWatch() {
+    try {
+      long revision = kvClient.get(CONNECTED_KEY).get(QUERY_TIMEOUT_SEC, TimeUnit.SECONDS)
+          .getHeader().getRevision();
+      refCache.activate(revision);
+      WatchOption option =
+          WatchOption.newBuilder().isPrefix(true).withRevision(revision + 1).build();
+      refWatcher = client.getWatchClient().watch(bytes(CACHED_PATH), option,
+          Watch.listener(this::applyRefChanges, this::refWatchError));
+      info("Watching %s for ref cache from revision %d", CACHED_PATH, revision);
+    } catch (Exception e) {
+      refCache.deactivate();
+      error("While starting ref cache watch: " + friendlyStackTrace(e));
+    }
+  }
+
+  private synchronized void refWatchError(Throwable throwable) {
+    refCache.deactivate();
+    ifNotNullThen(refWatcher, Watcher::close);
+    refWatcher = null;
+    error("Ref cache watch failed, cache disabled: " + friendlyStackTrace(throwable));
+  }
+
   private void updateConnectedKey(Client client) {
     final String timestamp = GeneralUtils.getTimestamp();
     try {
@@ -210,6 +448,8 @@ public class EtcdDataProvider extends ContainerBase implements IotDataProvider {
       scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
       scheduledExecutorService
           .scheduleAtFixedRate(this::periodicTask, HEARTBEAT_SEC, HEARTBEAT_SEC, TimeUnit.SECONDS);
+      ifNotNullThen(refCache, cache -> startRefWatch());
+      MetricsServer.addStatsSource(containerId, () -> latestLockStats);
     } else {
       info("Not enabled, not activating.");
     }
@@ -220,12 +460,27 @@ public class EtcdDataProvider extends ContainerBase implements IotDataProvider {
     return new EtcdDataRef();
   }
 
+  @Override
+  public void update(Map<DataRef, Map<String, String>> updates) {
+    Map<String, String> keyPaths = new HashMap<>();
+    updates.forEach((ref, entries) -> keyPaths.putAll(ref.toKeyPaths(entries)));
+    updateEntries(null, null, keyPaths);
+  }
+
+  @Override
+  public int maxUpdateEntries() {
+    return MAX_TXN_OPS;
+  }
+
   @Override
   public void shutdown() {
     try {
       if (enabled) {
         scheduledExecutorService.shutdown();
         scheduledExecutorService.awaitTermination(HEARTBEAT_SEC, TimeUnit.SECONDS);
+        ifNotNullThen(refWatcher, Watcher::close);
+        MetricsServer.removeStatsSource(containerId);
+        revokeSessionLease();
         client.close();
       }
     } catch (Exception e) {
@@ -235,18 +490,10 @@ public class EtcdDataProvider extends ContainerBase implements IotDataProvider {
 
   class EtcdDataRef extends DataRef {
 
-    private static final String PATH_SEPARATOR = "/";
-    private static final String KEY_SEPARATOR = ":";
-    private static final String REGISTRY_PATH = PATH_SEPARATOR + "r" + PATH_SEPARATOR;
-    private static final String DEVICE_PATH = PATH_SEPARATOR + "d" + PATH_SEPARATOR;
-    private static final String COLLECT_PATH = PATH_SEPARATOR + "c" + PATH_SEPARATOR;
-
-    private String getKeyPath(String key) {
-      checkState(deviceId == null || registryId != null, "device without registry");
-      return ifNotNullGet(registryId, id -> REGISTRY_PATH + id, "")
-          + ifNotNullGet(deviceId, id -> DEVICE_PATH + id, "")
-          + ifNotNullGet(collection, id -> COLLECT_PATH + id, "")
-          + KEY_SEPARATOR + key;
+    @Override
+    public boolean compareAndUpdate(String guardKey, String expected,
+        Map<String, String> updates) {
+      return updateEntries(getKeyPath(guardKey), expected, toKeyPaths(updates));
     }
 
     @Override
@@ -270,25 +517,33 @@ public class EtcdDataProvider extends ContainerBase implements IotDataProvider {
     public void put(String key, String value) {
       putKey(getKeyPath(key), value);
     }
+
+    @Override
+    public void update(Map<String, String> updates) {
+      updateEntries(null, null, toKeyPaths(updates));
+    }
   }
 
   private class LockCloser implements AutoCloseable {
 
-    private final long leaseId;
+    private final ReentrantLock localLock;
     private final ByteSequence lockKey;
     private final String lockName;
 
-    public LockCloser(String lockName, long leaseId, ByteSequence lockKey) {
+    public LockCloser(String lockName, ReentrantLock localLock, ByteSequence lockKey) {
       this.lockName = lockName;
-      this.leaseId = leaseId;
+      this.localLock = localLock;
       this.lockKey = lockKey;
     }
 
     @Override
     public void close() throws Exception {
-      client.getLockClient().unlock(lockKey).get();
-      client.getLeaseClient().revoke(leaseId).get();
-      info("Released %s with lease %x", lockName, leaseId);
+      try {
+        lockClient.unlock(lockKey).get(QUERY_TIMEOUT_SEC, TimeUnit.SECONDS);
+        info("Released %s", lockName);
+      } finally {
+        localLock.unlock();
+      }
     }
   }
 }
@@ -15,7 +15,8 @@ import udmi.schema.IotAccess.IotProvider;
 public interface IotDataProvider extends UdmiComponent {
 
   Map<IotProvider, Class<? extends IotDataProvider>> PROVIDERS =
-      ImmutableMap.of(IotProvider.ETCD, EtcdDataProvider.class);
+      ImmutableMap.of(IotProvider.ETCD, EtcdDataProvider.class,
+          IotProvider.LOCAL, LocalDataProvider.class);
 
   /**
    * Construct a provider given the configuration.
@@ -33,4 +34,19 @@ public interface IotDataProvider extends UdmiComponent {
   }
 
   DataRef ref();
+
+  /**
+   * Atomically apply updates across several refs. Updates with a null value delete the entry.
+   * Updates too large for the provider to apply in one transaction fail outright, rather than
+   * being partially applied.
+   */
+  void update(Map<DataRef, Map<String, String>> updates);
+
+  /**
+   * Get the maximum number of entries (across all refs) that one update can apply. Callers with
+   * larger updates that don't need to be atomic should split them into chunks of at most this.
+   */
+  default int maxUpdateEntries() {
+    return Integer.MAX_VALUE;
+  }
 }
@@ -0,0 +1,444 @@
+package com.google.bos.udmi.service.support;
+
+import static com.google.udmi.util.GeneralUtils.friendlyStackTrace;
+import static com.google.udmi.util.GeneralUtils.ifNotNullGet;
+import static com.google.udmi.util.GeneralUtils.ifNotNullThen;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.bos.udmi.service.pod.ContainerBase;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import udmi.schema.IotAccess;
+
+/**
+ * Data provider that keeps everything in memory, for single-process setups and testing. With the
+ * data_file option, every update is also appended to a log file that is replayed on startup, and
+ * periodically compacted down to a single snapshot record. Records are checksummed, so a torn
+ * write at the end of the log (from a crash mid-append) is detected and dropped on replay. Writes
+ * are flushed to the OS on every update, and also synced to disk with the data_sync option.
+ * Compaction runs in the background, so updates are only held up while the tail of the log written
+ * during the snapshot is copied over.
+ */
+public class LocalDataProvider extends ContainerBase implements IotDataProvider {
+
+  private static final String DATA_FILE_KEY = "data_file";
+  private static final String DATA_SYNC_KEY = "data_sync";
+  private static final String COMPACT_SUFFIX = ".tmp";
+  private static final long COMPACT_MIN_BYTES = 1024 * 1024;
+  private static final int COMPACT_FACTOR = 4;
+  private static final long COMPACT_AWAIT_SEC = 10;
+  private static final int RECORD_OVERHEAD = Integer.BYTES + Long.BYTES;
+  private static final int ENTRY_OVERHEAD = Integer.BYTES * 2 + 1;
+
+  private final NavigableMap<String, String> entries = new TreeMap<>();
+  private final ReadWriteLock entriesLock = new ReentrantReadWriteLock();
+  private final Map<String, Lock> refLocks = new ConcurrentHashMap<>();
+  private final File dataFile;
+  private final boolean syncWrites;
+  private final ExecutorService compactor;
+  private final AtomicBoolean compacting = new AtomicBoolean();
+  private FileChannel logChannel;
+  private long logBytes;
+  private long liveBytes;
+
+  /**
+   * Create an instance of this component.
+   */
+  public LocalDataProvider(IotAccess iotConfig) {
+    Map<String, String> options = parseOptions(iotConfig);
+    dataFile = ifNotNullGet(options.get(DATA_FILE_KEY), File::new);
+    syncWrites = TRUE_OPTION.equals(options.get(DATA_SYNC_KEY));
+    compactor = ifNotNullGet(dataFile, file -> Executors.newSingleThreadExecutor());
+    ifNotNullThen(dataFile, file -> withWriteLock(this::openLog));
+  }
+
+  private static int entrySize(String key, String value) {
+    return ENTRY_OVERHEAD + encodedLength(key) + (value == null ? 0 : encodedLength(value));
+  }
+
+  /**
+   * Length of a string once encoded as UTF-8 (as written to the log), without actually encoding.
+   * Unpaired surrogates are counted as the single replacement byte the encoder substitutes.
+   */
+  private static int encodedLength(String value) {
+    int bytes = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        bytes += 1;
+      } else if (c < 0x800) {
+        bytes += 2;
+      } else if (!Character.isSurrogate(c)) {
+        bytes += 3;
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        bytes += 4;
+        i++;
+      } else {
+        bytes += 1;
+      }
+    }
+    return bytes;
+  }
+
+  private static byte[] encodeRecord(Map<String, String> updates) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(updates.size());
+    for (Map.Entry<String, String> entry : updates.entrySet()) {
+      writeString(out, entry.getKey());
+      out.writeBoolean(entry.getValue() != null);
+      if (entry.getValue() != null) {
+        writeString(out, entry.getValue());
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private static Map<String, String> decodeRecord(byte[] payload) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    int count = in.readInt();
+    Map<String, String> updates = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      String key = readString(in);
+      updates.put(key, in.readBoolean() ? readString(in) : null);
+    }
+    return updates;
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private static long checksum(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    return crc.getValue();
+  }
+
+  private static long writeRecord(FileChannel channel, Map<String, String> updates)
+      throws IOException {
+    byte[] payload = encodeRecord(updates);
+    ByteBuffer buffer = ByteBuffer.allocate(RECORD_OVERHEAD + payload.length);
+    buffer.putInt(payload.length).put(payload).putLong(checksum(payload)).flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    return buffer.limit();
+  }
+
+  private <T> T withReadLock(Supplier<T> action) {
+    entriesLock.readLock().lock();
+    try {
+      return action.get();
+    } finally {
+      entriesLock.readLock().unlock();
+    }
+  }
+
+  private <T> T withWriteLock(Supplier<T> action) {
+    entriesLock.writeLock().lock();
+    try {
+      return action.get();
+    } finally {
+      entriesLock.writeLock().unlock();
+    }
+  }
+
+  private Void openLog() {
+    try {
+      long validBytes = replayLog();
+      logChannel = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE);
+      if (logChannel.size() > validBytes) {
+        warn("Truncating %d bytes of incomplete log from %s", logChannel.size() - validBytes,
+            dataFile);
+        logChannel.truncate(validBytes);
+      }
+      logChannel.position(validBytes);
+      logBytes = validBytes;
+      info("Loaded %d entries from %s", entries.size(), dataFile);
+      return null;
+    } catch (Exception e) {
+      throw new RuntimeException("While opening data file " + dataFile, e);
+    }
+  }
+
+  /**
+   * Replay all the complete records in the log, and return the length of the valid part.
+   */
+  private long replayLog() throws IOException {
+    if (!dataFile.exists()) {
+      return 0;
+    }
+    long validBytes = 0;
+    long fileBytes = dataFile.length();
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(dataFile)))) {
+      while (true) {
+        int length = in.readInt();
+        if (length < 0 || validBytes + RECORD_OVERHEAD + length > fileBytes) {
+          break;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        if (in.readLong() != checksum(payload)) {
+          break;
+        }
+        decodeRecord(payload).forEach(this::applyEntry);
+        validBytes += RECORD_OVERHEAD + length;
+      }
+    } catch (EOFException e) {
+      // Expected at the end of the log, or part way through a torn record.
+    }
+    return validBytes;
+  }
+
+  private void applyEntry(String key, String value) {
+    String previous = value == null ? entries.remove(key) : entries.put(key, value);
+    liveBytes += entrySize(key, value) - (previous == null ? 0 : entrySize(key, previous));
+  }
+
+  private void appendLog(Map<String, String> updates) {
+    if (logChannel == null) {
+      return;
+    }
+    try {
+      logBytes += writeRecord(logChannel, updates);
+      if (syncWrites) {
+        logChannel.force(false);
+      }
+    } catch (Exception e) {
+      // Drop any partial record, else it would hide all subsequent records on replay.
+      try {
+        logChannel.truncate(logBytes);
+        logChannel.position(logBytes);
+      } catch (Exception truncateException) {
+        e.addSuppressed(truncateException);
+      }
+      throw new RuntimeException("While appending to data file " + dataFile, e);
+    }
+  }
+
+  /**
+   * Start a background rewrite of the log as a single snapshot record, once it's mostly superseded
+   * entries. Called with the write lock held.
+   */
+  private void maybeCompact() {
+    if (logChannel == null || logBytes < COMPACT_MIN_BYTES
+        || logBytes < COMPACT_FACTOR * liveBytes || !compacting.compareAndSet(false, true)) {
+      return;
+    }
+    compactor.execute(() -> {
+      try {
+        compactLog();
+      } catch (Exception e) {
+        error("While compacting data file %s: %s", dataFile, friendlyStackTrace(e));
+      } finally {
+        compacting.set(false);
+      }
+    });
+  }
+
+  /**
+   * Write a snapshot to a temporary file, outside the write lock, and then (inside the lock) append
+   * whatever was logged in the meantime and move it into place, so the log is never incomplete. The
+   * new channel is opened before the move, so the current log stays in use if anything fails.
+   */
+  private void compactLog() throws IOException {
+    final NavigableMap<String, String> snapshot;
+    final long snapshotBytes;
+    entriesLock.readLock().lock();
+    try {
+      snapshot = new TreeMap<>(entries);
+      snapshotBytes = logBytes;
+    } finally {
+      entriesLock.readLock().unlock();
+    }
+    File compactFile = new File(dataFile.getPath() + COMPACT_SUFFIX);
+    try (FileChannel channel = FileChannel.open(compactFile.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.WRITE)) {
+      writeRecord(channel, snapshot);
+    }
+    withWriteLock(() -> {
+      FileChannel compacted = null;
+      try {
+        if (logChannel == null) {
+          Files.deleteIfExists(compactFile.toPath());
+          return null;
+        }
+        compacted = FileChannel.open(compactFile.toPath(), StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+        try (FileChannel tail = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
+          long position = snapshotBytes;
+          while (position < logBytes) {
+            position += tail.transferTo(position, logBytes - position, compacted);
+          }
+        }
+        compacted.force(true);
+        Files.move(compactFile.toPath(), dataFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+        FileChannel previous = logChannel;
+        long previousBytes = logBytes;
+        logChannel = compacted;
+        logBytes = compacted.size();
+        compacted = null;
+        previous.close();
+        debug("Compacted %s from %d to %d bytes", dataFile, previousBytes, logBytes);
+        return null;
+      } catch (Exception e) {
+        if (compacted != null) {
+          try {
+            compacted.close();
+            Files.deleteIfExists(compactFile.toPath());
+          } catch (Exception cleanupException) {
+            e.addSuppressed(cleanupException);
+          }
+        }
+        throw new RuntimeException("While compacting data file " + dataFile, e);
+      }
+    });
+  }
+
+  private boolean updateEntries(String guardKey, String expected, Map<String, String> updates) {
+    return withWriteLock(() -> {
+      if (guardKey != null && !Objects.equals(entries.get(guardKey), expected)) {
+        return false;
+      }
+      appendLog(updates);
+      updates.forEach(this::applyEntry);
+      maybeCompact();
+      return true;
+    });
+  }
+
+  private Map<String, String> singleEntry(String key, String value) {
+    Map<String, String> update = new HashMap<>();
+    update.put(key, value);
+    return update;
+  }
+
+  private void awaitCompactor(ExecutorService executor) {
+    try {
+      executor.shutdown();
+      if (!executor.awaitTermination(COMPACT_AWAIT_SEC, TimeUnit.SECONDS)) {
+        warn("Timeout waiting for compaction of %s", dataFile);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("While awaiting compaction of " + dataFile, e);
+    }
+  }
+
+  @Override
+  public DataRef ref() {
+    return new LocalDataRef();
+  }
+
+  @Override
+  public void shutdown() {
+    ifNotNullThen(compactor, this::awaitCompactor);
+    withWriteLock(() -> {
+      try {
+        if (logChannel != null) {
+          logChannel.close();
+          logChannel = null;
+        }
+        return null;
+      } catch (Exception e) {
+        throw new RuntimeException("While closing data file " + dataFile, e);
+      }
+    });
+    super.shutdown();
+  }
+
+  @Override
+  public void update(Map<DataRef, Map<String, String>> updates) {
+    Map<String, String> keyPaths = new HashMap<>();
+    updates.forEach((ref, entries) -> keyPaths.putAll(ref.toKeyPaths(entries)));
+    updateEntries(null, null, keyPaths);
+  }
+
+  class LocalDataRef extends DataRef {
+
+    @Override
+    public boolean compareAndUpdate(String guardKey, String expected,
+        Map<String, String> updates) {
+      return updateEntries(getKeyPath(guardKey), expected, toKeyPaths(updates));
+    }
+
+    @Override
+    public void delete(String key) {
+      updateEntries(null, null, singleEntry(getKeyPath(key), null));
+    }
+
+    @Override
+    public Map<String, String> entries() {
+      String prefix = getKeyPath("");
+      return withReadLock(() -> entries.tailMap(prefix).entrySet().stream()
+          .takeWhile(entry -> entry.getKey().startsWith(prefix))
+          .collect(Collectors.toMap(entry -> entry.getKey().substring(prefix.length()),
+              Map.Entry::getValue)));
+    }
+
+    @Override
+    public String get(String key) {
+      return withReadLock(() -> entries.get(getKeyPath(key)));
+    }
+
+    @Override
+    public AutoCloseable lock() {
+      Lock lock = refLocks.computeIfAbsent(getKeyPath(""), key -> new ReentrantLock());
+      lock.lock();
+      return lock::unlock;
+    }
+
+    @Override
+    public void put(String key, String value) {
+      updateEntries(null, null, singleEntry(getKeyPath(key), value));
+    }
+
+    @Override
+    public void update(Map<String, String> updates) {
+      updateEntries(null, null, toKeyPaths(updates));
+    }
+  }
+}
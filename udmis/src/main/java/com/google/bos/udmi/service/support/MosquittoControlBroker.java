@@ -0,0 +1,312 @@
+package com.google.bos.udmi.service.support;
+
+import static com.google.udmi.util.GeneralUtils.friendlyStackTrace;
+import static com.google.udmi.util.JsonUtil.mapCast;
+import static com.google.udmi.util.JsonUtil.stringifyTerse;
+import static com.google.udmi.util.JsonUtil.toMap;
+import static java.lang.String.format;
+import static java.util.Optional.ofNullable;
+
+import com.google.bos.udmi.service.pod.ContainerBase;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.udmi.util.CertManager;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import udmi.schema.EndpointConfiguration.Transport;
+
+/**
+ * Broker that manages client auth through the mosquitto dynamic-security control topic, over a
+ * persistent MQTT connection, rather than running a mosquitto_ctrl process per operation. Commands
+ * from concurrent callers are sent together in one control message. Connection events are still
+ * taken from the broker log, since mosquitto does not publish its debug-level PUBLISH/PUBACK log
+ * lines anywhere else.
+ */
+public class MosquittoControlBroker extends MosquittoBroker {
+
+  private static final String CONTROL_TOPIC = "$CONTROL/dynamic-security/v1";
+  private static final String RESPONSE_TOPIC = CONTROL_TOPIC + "/response";
+  private static final String BROKER_URL_FORMAT = "ssl://%s:%s";
+  private static final String MQTT_HOST =
+      ofNullable(System.getenv("MQTT_HOST")).orElse("localhost");
+  private static final String MQTT_PORT = ofNullable(System.getenv("MQTT_PORT")).orElse("8883");
+  private static final String SSL_SECRETS_DIR =
+      ofNullable(System.getenv("SSL_SECRETS_DIR")).orElse("/etc/mosquitto/certs");
+  private static final String AUTH_USER = "scrumptious";
+  private static final String AUTH_PASS = "aardvark";
+  private static final String ROLE_FORMAT = "role_%s";
+  private static final String CONTROL_CLIENT_ID = "udmis-control-%08x";
+  private static final long COMMAND_TIMEOUT_SEC = 10;
+  private static final int MAX_BATCH_COMMANDS = 100;
+  private static final int CONNECT_TIMEOUT_SEC = 10;
+  private static final List<String> DEVICE_SUBSCRIBE = ImmutableList.of("config", "commands",
+      "errors");
+  private static final List<String> DEVICE_PUBLISH = ImmutableList.of("events/#", "state");
+  private static final List<String> GATEWAY_PUBLISH = ImmutableList.of("events/#", "state",
+      "attach");
+  private static final String SUBSCRIBE_PATTERN = "subscribePattern";
+  private static final String PUBLISH_CLIENT_SEND = "publishClientSend";
+
+  private final AtomicLong correlationCounter = new AtomicLong();
+  private final Map<String, ControlCommand> awaiting = new ConcurrentHashMap<>();
+  private final List<ControlCommand> queued = new ArrayList<>();
+  private final Object publishLock = new Object();
+  private MqttClient mqttClient;
+
+  public MosquittoControlBroker(ContainerBase container) {
+    super(container);
+  }
+
+  /**
+   * Create a broker that uses the given (already constructed) control client.
+   */
+  @VisibleForTesting
+  MosquittoControlBroker(ContainerBase container, MqttClient controlClient) {
+    super(container);
+    mqttClient = controlClient;
+    mqttClient.setCallback(new ControlCallback());
+  }
+
+  private static String roleName(String clientId) {
+    return format(ROLE_FORMAT, clientId.replace('/', '_'));
+  }
+
+  private static Map<String, Object> command(String command, Object... keyValues) {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("command", command);
+    for (int i = 0; i < keyValues.length; i += 2) {
+      map.put((String) keyValues[i], keyValues[i + 1]);
+    }
+    return map;
+  }
+
+  private static Map<String, Object> acl(String aclType, String topic) {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("acltype", aclType);
+    map.put("topic", topic);
+    map.put("allow", true);
+    return map;
+  }
+
+  private static Stream<Map<String, Object>> deviceAcls(String deviceId, List<String> publish) {
+    return Stream.concat(
+        DEVICE_SUBSCRIBE.stream().map(suffix -> acl(SUBSCRIBE_PATTERN, deviceId + "/" + suffix)),
+        publish.stream().map(suffix -> acl(PUBLISH_CLIENT_SEND, deviceId + "/" + suffix)));
+  }
+
+  private MqttClient connectedClient() {
+    synchronized (publishLock) {
+      try {
+        if (mqttClient == null) {
+          String clientId = format(CONTROL_CLIENT_ID, (long) (Math.random() * 0x100000000L));
+          String brokerUrl = format(BROKER_URL_FORMAT, MQTT_HOST, MQTT_PORT);
+          info("Creating broker control client %s to %s", clientId, brokerUrl);
+          mqttClient = new MqttClient(brokerUrl, clientId, new MemoryPersistence());
+          mqttClient.setCallback(new ControlCallback());
+        }
+        if (!mqttClient.isConnected()) {
+          MqttConnectOptions options = new MqttConnectOptions();
+          options.setMqttVersion(MqttConnectOptions.MQTT_VERSION_3_1_1);
+          options.setConnectionTimeout(CONNECT_TIMEOUT_SEC);
+          options.setUserName(AUTH_USER);
+          options.setPassword(AUTH_PASS.toCharArray());
+          options.setSocketFactory(new CertManager(new File(SSL_SECRETS_DIR,
+              CertManager.CA_CERT_FILE), new File(SSL_SECRETS_DIR), Transport.SSL, AUTH_PASS,
+              this::debug).getSocketFactory());
+          mqttClient.connect(options);
+          mqttClient.subscribe(RESPONSE_TOPIC, 1);
+          info("Connected broker control client %s", mqttClient.getClientId());
+        }
+        return mqttClient;
+      } catch (Exception e) {
+        throw new RuntimeException("While connecting broker control client", e);
+      }
+    }
+  }
+
+  /**
+   * Queue up the commands, send everything queued so far, and wait for the responses. Callers
+   * that queue while another send is in progress get picked up by the next send in line.
+   */
+  private void execute(List<ControlCommand> commands) {
+    synchronized (queued) {
+      queued.addAll(commands);
+    }
+    sendQueued();
+    try {
+      CompletableFuture.allOf(commands.stream().map(command -> command.result)
+          .toArray(CompletableFuture[]::new)).get(COMMAND_TIMEOUT_SEC, TimeUnit.SECONDS);
+    } catch (Exception e) {
+      throw new RuntimeException("While executing broker control commands", e);
+    } finally {
+      commands.forEach(command -> awaiting.remove(command.correlationData));
+    }
+  }
+
+  private void sendQueued() {
+    synchronized (publishLock) {
+      while (true) {
+        List<ControlCommand> batch;
+        synchronized (queued) {
+          batch = new ArrayList<>(queued.subList(0, Math.min(queued.size(), MAX_BATCH_COMMANDS)));
+          queued.subList(0, batch.size()).clear();
+        }
+        if (batch.isEmpty()) {
+          return;
+        }
+        try {
+          batch.forEach(command -> awaiting.put(command.correlationData, command));
+          List<Map<String, Object>> payload = batch.stream().map(command -> command.payload)
+              .toList();
+          debug("Sending %d broker control commands", batch.size());
+          connectedClient().publish(CONTROL_TOPIC,
+              stringifyTerse(Map.of("commands", payload)).getBytes(), 1, false);
+        } catch (Exception e) {
+          batch.forEach(command -> command.result.completeExceptionally(e));
+        }
+      }
+    }
+  }
+
+  private void handleResponses(String message) {
+    if (!(toMap(message).get("responses") instanceof List<?> responses)) {
+      return;
+    }
+    responses.forEach(item -> {
+      Map<String, Object> response = mapCast(item);
+      ControlCommand command = awaiting.remove(String.valueOf(response.get("correlationData")));
+      if (command == null) {
+        return;
+      }
+      Object error = response.get("error");
+      if (error == null) {
+        command.result.complete(null);
+      } else if (command.required) {
+        command.result.completeExceptionally(new RuntimeException(
+            format("Control command %s failed: %s", response.get("command"), error)));
+      } else {
+        debug("Ignoring control command %s error: %s", response.get("command"), error);
+        command.result.complete(null);
+      }
+    });
+  }
+
+  private ControlCommand required(Map<String, Object> payload) {
+    return new ControlCommand(payload, true);
+  }
+
+  private ControlCommand optional(Map<String, Object> payload) {
+    return new ControlCommand(payload, false);
+  }
+
+  @Override
+  public void authorize(String clientId, String password) {
+    String roleName = roleName(clientId);
+    List<ControlCommand> commands = new ArrayList<>();
+    commands.add(optional(command("deleteClient", "username", clientId)));
+    commands.add(optional(command("deleteRole", "rolename", roleName)));
+    if (password != null) {
+      commands.add(required(command("createRole", "rolename", roleName,
+          "acls", deviceAcls(clientId, DEVICE_PUBLISH).toList())));
+      commands.add(required(command("createClient", "username", clientId, "password", password,
+          "clientid", clientId, "roles", List.of(Map.of("rolename", roleName)))));
+    }
+    info("Authorizing client %s %s", clientId, password == null ? "revoked" : "allowed");
+    execute(commands);
+  }
+
+  @Override
+  public void bindGateway(String gatewayId, String deviceId) {
+    bindGateway(gatewayId, List.of(deviceId));
+  }
+
+  @Override
+  public void bindGateway(String gatewayId, Collection<String> deviceIds) {
+    String roleName = roleName(gatewayId);
+    List<ControlCommand> commands = new ArrayList<>();
+    commands.add(optional(command("createRole", "rolename", roleName)));
+    commands.add(optional(command("addClientRole", "username", gatewayId, "rolename", roleName)));
+    deviceIds.forEach(deviceId -> deviceAcls(deviceId, GATEWAY_PUBLISH).forEach(acl -> {
+      Map<String, Object> payload = command("addRoleACL", "rolename", roleName);
+      payload.putAll(acl);
+      commands.add(required(payload));
+    }));
+    info("Binding %d devices to gateway %s", deviceIds.size(), gatewayId);
+    execute(commands);
+  }
+
+  @Override
+  public void unbindGateway(String gatewayId, String deviceId) {
+    unbindGateway(gatewayId, List.of(deviceId));
+  }
+
+  @Override
+  public void unbindGateway(String gatewayId, Collection<String> deviceIds) {
+    String roleName = roleName(gatewayId);
+    List<ControlCommand> commands = new ArrayList<>();
+    deviceIds.forEach(deviceId -> deviceAcls(deviceId, GATEWAY_PUBLISH).forEach(acl -> {
+      Map<String, Object> payload = command("removeRoleACL", "rolename", roleName);
+      payload.put("acltype", acl.get("acltype"));
+      payload.put("topic", acl.get("topic"));
+      commands.add(optional(payload));
+    }));
+    info("Unbinding %d devices from gateway %s", deviceIds.size(), gatewayId);
+    execute(commands);
+  }
+
+  private class ControlCommand {
+
+    final String correlationData = Long.toString(correlationCounter.incrementAndGet());
+    final Map<String, Object> payload;
+    final boolean required;
+    final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    ControlCommand(Map<String, Object> payload, boolean required) {
+      this.payload = new HashMap<>(payload);
+      this.payload.put("correlationData", correlationData);
+      this.required = required;
+    }
+  }
+
+  private class ControlCallback implements MqttCallback {
+
+    @Override
+    public void connectionLost(Throwable cause) {
+      warn("Broker control connection lost: " + friendlyStackTrace(cause));
+      List<ControlCommand> pending = new ArrayList<>(awaiting.values());
+      awaiting.clear();
+      pending.forEach(command -> command.result.completeExceptionally(cause));
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) {
+      try {
+        if (RESPONSE_TOPIC.equals(topic)) {
+          handleResponses(new String(message.getPayload()));
+        }
+      } catch (Exception e) {
+        error("Exception handling control response: " + friendlyStackTrace(e));
+      }
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package com.google.bos.udmi.service.support;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of data ref entries, keyed by the ref path prefix. It is kept coherent by
+ * applying change events in revision order, and tracks the latest known revision so that a read
+ * that raced with a newer change never gets cached.
+ */
+class RefCache {
+
+  private static final String KEY_SEPARATOR = ":";
+
+  private final Map<String, CachedRef> refs;
+  private boolean active;
+  private long knownRevision;
+  private long hits;
+  private long misses;
+
+  /**
+   * Create a cache holding up to the given number of refs.
+   */
+  RefCache(int maxRefs) {
+    refs = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedRef> eldest) {
+        return size() > maxRefs;
+      }
+    };
+  }
+
+  /**
+   * Get the ref path prefix for a full key path, or null if there isn't one.
+   */
+  static String prefixOf(String keyPath) {
+    int index = keyPath.indexOf(KEY_SEPARATOR);
+    return index < 0 ? null : keyPath.substring(0, index + 1);
+  }
+
+  /**
+   * Start serving from the cache, as of the given revision. All changes after that revision must
+   * subsequently be applied.
+   */
+  synchronized void activate(long revision) {
+    refs.clear();
+    knownRevision = revision;
+    active = true;
+  }
+
+  /**
+   * Stop serving from the cache, for example because the change stream has been interrupted.
+   */
+  synchronized void deactivate() {
+    refs.clear();
+    active = false;
+  }
+
+  synchronized boolean isActive() {
+    return active;
+  }
+
+  /**
+   * Get a copy of the cached entries for a ref, or null if not cached.
+   */
+  synchronized Map<String, String> get(String prefix) {
+    CachedRef cached = active ? refs.get(prefix) : null;
+    if (cached == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return new HashMap<>(cached.entries);
+  }
+
+  /**
+   * Load entries for a ref read at the given revision. The entries are dropped if a newer change
+   * has already been seen, since it may or may not be reflected in the read.
+   */
+  synchronized void load(String prefix, long revision, Map<String, String> entries) {
+    if (active && revision >= knownRevision) {
+      refs.put(prefix, new CachedRef(revision, new HashMap<>(entries)));
+    }
+  }
+
+  /**
+   * Apply a change event for a key: a null value is a delete.
+   */
+  synchronized void apply(String keyPath, String value, long revision) {
+    knownRevision = Math.max(knownRevision, revision);
+    String prefix = prefixOf(keyPath);
+    CachedRef cached = prefix == null ? null : refs.get(prefix);
+    if (cached == null || revision <= cached.revision) {
+      return;
+    }
+    String key = keyPath.substring(prefix.length());
+    if (value == null) {
+      cached.entries.remove(key);
+    } else {
+      cached.entries.put(key, value);
+    }
+  }
+
+  /**
+   * Drop any cached entries for the ref of a key that was written locally at the given revision,
+   * so the write is seen on the next read even before its change event arrives.
+   */
+  synchronized void invalidate(String keyPath, long revision) {
+    knownRevision = Math.max(knownRevision, revision);
+    String prefix = prefixOf(keyPath);
+    if (prefix != null) {
+      refs.remove(prefix);
+    }
+  }
+
+  synchronized String getStats() {
+    return String.format("%d refs, %d hits, %d misses", refs.size(), hits, misses);
+  }
+
+  private record CachedRef(long revision, Map<String, String> entries) {
+  }
+}
@@ -12,6 +12,7 @@ import com.clearblade.cloud.iot.v1.devicetypes.Device;
 import com.google.bos.udmi.service.messaging.impl.MessageTestCore;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import java.util.HashMap;
 import java.util.Map;
 import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.Test;
@@ -60,6 +61,17 @@ class ClearBladeIotAccessProviderTest extends MessageTestCore {
     assertTrue(cloudModel.device_ids.containsKey(TEST_DEVICE), "listed device name");
   }
 
+  @Test
+  void streamDevices() {
+    ClearBladeIotAccessProvider provider = getProvider();
+    when(mockClient.listDevices(Mockito.any(DevicesListRequest.class))).thenAnswer(
+        this::makeDevicesListResponse);
+    Map<String, CloudModel> devices = new HashMap<>();
+    provider.streamDevices(TEST_REGISTRY, devices::put, null);
+    assertEquals(1, devices.size(), "number of streamed devices");
+    assertTrue(devices.containsKey(TEST_DEVICE), "streamed device name");
+  }
+
   private DevicesListResponse makeDevicesListResponse(InvocationOnMock invocation) {
     String request = invocation.getArgument(0).toString();
     assertTrue(request.endsWith(TEST_REGISTRY));
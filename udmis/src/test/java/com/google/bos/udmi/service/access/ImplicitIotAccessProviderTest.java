@@ -0,0 +1,277 @@
+package com.google.bos.udmi.service.access;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.bos.udmi.service.core.ReflectProcessor;
+import com.google.bos.udmi.service.pod.ContainerBase;
+import com.google.bos.udmi.service.pod.UdmiServicePod;
+import com.google.bos.udmi.service.support.ConnectionBroker;
+import com.google.bos.udmi.service.support.DataRef;
+import com.google.bos.udmi.service.support.LocalDataProvider;
+import com.google.common.collect.ImmutableSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import udmi.schema.CloudModel;
+import udmi.schema.CloudModel.ModelOperation;
+import udmi.schema.CloudModel.Resource_type;
+import udmi.schema.GatewayModel;
+import udmi.schema.IotAccess;
+
+/**
+ * Tests for the implicit access provider, against the in-memory data provider.
+ */
+class ImplicitIotAccessProviderTest {
+
+  private static final String REGISTRY_ID = "ZZ-TRI-FECTA";
+  private static final String GATEWAY_ID = "GAT-1";
+  private static final String OTHER_GATEWAY_ID = "GAT-2";
+  private static final String DEVICE_ID = "AHU-1";
+  private static final String OTHER_DEVICE_ID = "AHU-22";
+  private static final String BOUND_TO_KEY = "bound_to";
+  private static final String GATEWAY_INDEX_KEY = "gateway_index";
+  private static final String LAST_STATE_KEY = "last_state";
+  private static final int STATE_FLUSH_SIZE = 3;
+  private static final String STATE_FLUSH_OPTIONS =
+      "state_flush_ms=60000,state_flush_size=" + STATE_FLUSH_SIZE;
+  private static final long FLUSH_TIMEOUT_MS = 5000;
+  private static final int MAX_UPDATE_ENTRIES = 128;
+
+  private final ConnectionBroker broker = mock(ConnectionBroker.class);
+  private final AtomicBoolean failUpdates = new AtomicBoolean();
+  private LocalDataProvider database;
+  private ImplicitIotAccessProvider provider;
+
+  @BeforeEach
+  void setup() {
+    UdmiServicePod.resetForTest();
+    database = new LocalDataProvider(new IotAccess()) {
+      @Override
+      public void update(Map<DataRef, Map<String, String>> updates) {
+        if (failUpdates.get()) {
+          throw new IllegalStateException("Failure expected for test");
+        }
+        int entries = updates.values().stream().mapToInt(Map::size).sum();
+        if (entries > MAX_UPDATE_ENTRIES) {
+          throw new IllegalStateException("Update too large for test: " + entries);
+        }
+        super.update(updates);
+      }
+
+      @Override
+      public int maxUpdateEntries() {
+        return MAX_UPDATE_ENTRIES;
+      }
+    };
+    UdmiServicePod.putComponent("database", () -> database);
+    UdmiServicePod.putComponent(ContainerBase.getName(ReflectProcessor.class),
+        () -> mock(ReflectProcessor.class));
+    when(broker.addEventListener(any(), any())).thenReturn(new CompletableFuture<>());
+    IotAccess iotAccess = new IotAccess();
+    iotAccess.options = STATE_FLUSH_OPTIONS;
+    provider = new ImplicitIotAccessProvider(iotAccess, broker);
+    provider.activate();
+  }
+
+  @AfterEach
+  void teardown() {
+    provider.shutdown();
+    UdmiServicePod.resetForTest();
+  }
+
+  private CloudModel deviceModel(ModelOperation operation, Resource_type type,
+      String... proxyIds) {
+    CloudModel cloudModel = new CloudModel();
+    cloudModel.operation = operation;
+    cloudModel.resource_type = type;
+    if (proxyIds.length > 0) {
+      cloudModel.gateway = new GatewayModel();
+      cloudModel.gateway.proxy_ids = List.of(proxyIds);
+    }
+    return cloudModel;
+  }
+
+  private void createDevices() {
+    provider.modelDevice(REGISTRY_ID, GATEWAY_ID,
+        deviceModel(ModelOperation.CREATE, Resource_type.GATEWAY), null);
+    provider.modelDevice(REGISTRY_ID, OTHER_GATEWAY_ID,
+        deviceModel(ModelOperation.CREATE, Resource_type.GATEWAY), null);
+    provider.modelDevice(REGISTRY_ID, DEVICE_ID,
+        deviceModel(ModelOperation.CREATE, Resource_type.DIRECT), null);
+    provider.modelDevice(REGISTRY_ID, OTHER_DEVICE_ID,
+        deviceModel(ModelOperation.CREATE, Resource_type.DIRECT), null);
+  }
+
+  private void bind(String gatewayId, String... deviceIds) {
+    provider.modelDevice(REGISTRY_ID, gatewayId,
+        deviceModel(ModelOperation.BIND, Resource_type.GATEWAY, deviceIds), null);
+  }
+
+  private Set<String> indexedProxies(String gatewayId) {
+    return database.ref().registry(REGISTRY_ID).gateway(gatewayId).entries().keySet();
+  }
+
+  private String boundTo(String deviceId) {
+    return database.ref().registry(REGISTRY_ID).device(deviceId).get(BOUND_TO_KEY);
+  }
+
+  private String storedState(String deviceId) {
+    return database.ref().registry(REGISTRY_ID).device(deviceId).get(LAST_STATE_KEY);
+  }
+
+  private Set<String> fetchedProxies(String gatewayId) {
+    return ImmutableSet.copyOf(
+        provider.fetchDevice(REGISTRY_ID, gatewayId).gateway.proxy_ids);
+  }
+
+  @Test
+  void bindAndRebind() {
+    createDevices();
+    bind(GATEWAY_ID, DEVICE_ID, OTHER_DEVICE_ID);
+    assertEquals(ImmutableSet.of(DEVICE_ID, OTHER_DEVICE_ID), indexedProxies(GATEWAY_ID));
+    assertEquals(GATEWAY_ID, boundTo(OTHER_DEVICE_ID));
+    assertEquals(ImmutableSet.of(DEVICE_ID, OTHER_DEVICE_ID), fetchedProxies(GATEWAY_ID));
+
+    bind(OTHER_GATEWAY_ID, OTHER_DEVICE_ID);
+    assertEquals(ImmutableSet.of(DEVICE_ID), indexedProxies(GATEWAY_ID), "old gateway index");
+    assertEquals(ImmutableSet.of(OTHER_DEVICE_ID), indexedProxies(OTHER_GATEWAY_ID));
+    assertEquals(OTHER_GATEWAY_ID, boundTo(OTHER_DEVICE_ID));
+    verify(broker).bindGateway("/r/ZZ-TRI-FECTA/d/GAT-2", List.of("/r/ZZ-TRI-FECTA/d/AHU-22"));
+  }
+
+  @Test
+  void unbind() {
+    createDevices();
+    bind(GATEWAY_ID, DEVICE_ID, OTHER_DEVICE_ID);
+    provider.modelDevice(REGISTRY_ID, GATEWAY_ID,
+        deviceModel(ModelOperation.UNBIND, Resource_type.GATEWAY, DEVICE_ID), null);
+    assertEquals(ImmutableSet.of(OTHER_DEVICE_ID), indexedProxies(GATEWAY_ID));
+    assertNull(boundTo(DEVICE_ID), "unbound device");
+    assertEquals(GATEWAY_ID, boundTo(OTHER_DEVICE_ID));
+  }
+
+  @Test
+  void deleteGateway() {
+    createDevices();
+    bind(GATEWAY_ID, DEVICE_ID, OTHER_DEVICE_ID);
+    provider.modelDevice(REGISTRY_ID, GATEWAY_ID,
+        deviceModel(ModelOperation.DELETE, Resource_type.GATEWAY), null);
+    assertEquals(ImmutableSet.of(), indexedProxies(GATEWAY_ID), "deleted gateway index");
+    assertNull(boundTo(DEVICE_ID), "proxy of deleted gateway");
+    assertNull(boundTo(OTHER_DEVICE_ID), "proxy of deleted gateway");
+  }
+
+  @Test
+  void deleteProxy() {
+    createDevices();
+    bind(GATEWAY_ID, DEVICE_ID, OTHER_DEVICE_ID);
+    provider.modelDevice(REGISTRY_ID, DEVICE_ID,
+        deviceModel(ModelOperation.DELETE, Resource_type.DIRECT), null);
+    assertEquals(ImmutableSet.of(OTHER_DEVICE_ID), indexedProxies(GATEWAY_ID));
+  }
+
+  @Test
+  void chunkedGatewayBindings() {
+    createDevices();
+    DataRef registryDevices = database.ref().registry(REGISTRY_ID).collection("active");
+    List<String> proxyIds = IntStream.range(0, MAX_UPDATE_ENTRIES + 22)
+        .mapToObj(i -> "PRX-" + i).toList();
+    proxyIds.forEach(id -> {
+      registryDevices.put(id, "2024-01-01T00:00:00Z");
+      database.ref().registry(REGISTRY_ID).device(id).put("num_id", id);
+    });
+    bind(GATEWAY_ID, proxyIds.toArray(String[]::new));
+    assertEquals(ImmutableSet.copyOf(proxyIds), indexedProxies(GATEWAY_ID), "bound proxies");
+
+    provider.modelDevice(REGISTRY_ID, GATEWAY_ID,
+        deviceModel(ModelOperation.DELETE, Resource_type.GATEWAY), null);
+    assertEquals(ImmutableSet.of(), indexedProxies(GATEWAY_ID), "deleted gateway index");
+    proxyIds.forEach(id -> assertNull(boundTo(id), "proxy of deleted gateway"));
+  }
+
+  @Test
+  void lazyIndexRebuild() {
+    DataRef registryDevices = database.ref().registry(REGISTRY_ID).collection("active");
+    List.of(GATEWAY_ID, DEVICE_ID, OTHER_DEVICE_ID).forEach(id -> {
+      registryDevices.put(id, "2024-01-01T00:00:00Z");
+      database.ref().registry(REGISTRY_ID).device(id).put("num_id", id);
+    });
+    database.ref().registry(REGISTRY_ID).device(DEVICE_ID).put(BOUND_TO_KEY, GATEWAY_ID);
+    database.ref().registry(REGISTRY_ID).device(OTHER_DEVICE_ID).put(BOUND_TO_KEY, GATEWAY_ID);
+    assertNull(database.ref().registry(REGISTRY_ID).get(GATEWAY_INDEX_KEY), "initial index");
+
+    List<CompletableFuture<Set<String>>> lookups = IntStream.range(0, 4)
+        .mapToObj(i -> CompletableFuture.supplyAsync(() -> fetchedProxies(GATEWAY_ID)))
+        .toList();
+    lookups.forEach(lookup ->
+        assertEquals(ImmutableSet.of(DEVICE_ID, OTHER_DEVICE_ID), lookup.join()));
+    assertNotNull(database.ref().registry(REGISTRY_ID).get(GATEWAY_INDEX_KEY), "index marker");
+    assertEquals(ImmutableSet.of(DEVICE_ID, OTHER_DEVICE_ID), indexedProxies(GATEWAY_ID));
+  }
+
+  @Test
+  void coalescedStates() {
+    provider.saveState(REGISTRY_ID, DEVICE_ID, "state-1");
+    provider.saveState(REGISTRY_ID, DEVICE_ID, "state-2");
+    assertEquals("state-2", provider.fetchState(REGISTRY_ID, DEVICE_ID), "pending state");
+    assertNull(storedState(DEVICE_ID), "unexpected early write");
+    provider.shutdown();
+    assertEquals("state-2", storedState(DEVICE_ID), "flushed state");
+  }
+
+  @Test
+  void sizeTriggeredFlush() throws InterruptedException {
+    List<String> deviceIds = List.of(GATEWAY_ID, DEVICE_ID, OTHER_DEVICE_ID);
+    assertEquals(STATE_FLUSH_SIZE, deviceIds.size(), "test device count");
+    deviceIds.forEach(id -> provider.saveState(REGISTRY_ID, id, "state-" + id));
+    long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MS;
+    while (storedState(OTHER_DEVICE_ID) == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    deviceIds.forEach(id -> assertEquals("state-" + id, storedState(id), "flushed state"));
+  }
+
+  @Test
+  void deletedDeviceState() {
+    createDevices();
+    provider.saveState(REGISTRY_ID, DEVICE_ID, "state-1");
+    provider.modelDevice(REGISTRY_ID, DEVICE_ID,
+        deviceModel(ModelOperation.DELETE, Resource_type.DIRECT), null);
+    assertNull(provider.fetchState(REGISTRY_ID, DEVICE_ID), "deleted pending state");
+    provider.shutdown();
+    assertNull(storedState(DEVICE_ID), "deleted device state");
+  }
+
+  @Test
+  void chunkedStateFlush() {
+    failUpdates.set(true);
+    List<String> deviceIds = IntStream.range(0, MAX_UPDATE_ENTRIES * 2 + 10)
+        .mapToObj(i -> "DEV-" + i).toList();
+    deviceIds.forEach(id -> provider.saveState(REGISTRY_ID, id, "state-" + id));
+    failUpdates.set(false);
+    provider.shutdown();
+    deviceIds.forEach(id -> assertEquals("state-" + id, storedState(id), "flushed state"));
+  }
+
+  @Test
+  void failedShutdownFlush() {
+    provider.saveState(REGISTRY_ID, DEVICE_ID, "state-1");
+    failUpdates.set(true);
+    assertThrows(RuntimeException.class, () -> provider.shutdown(), "expected flush failure");
+    assertEquals("state-1", provider.fetchState(REGISTRY_ID, DEVICE_ID), "retained state");
+    failUpdates.set(false);
+  }
+}
@@ -1,13 +1,33 @@
 package com.google.bos.udmi.service.access;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import com.google.bos.udmi.service.core.ProcessorBase.PreviousParseException;
 import com.google.common.collect.ImmutableMap;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 import org.junit.jupiter.api.Test;
+import udmi.schema.Envelope;
 import udmi.schema.IotAccess;
 
 class IotAccessBaseTest {
 
+  private static final String LEADER_UPDATE = "L";
+  private static final String FAILED_UPDATE = "b";
+  private static final int QUEUED_CALLERS = 4;
+  private static final long WAIT_TIMEOUT_SEC = 5;
+
   @Test
   public void emptyOptions() {
     IotAccess access = new IotAccess();
@@ -24,4 +44,138 @@ class IotAccessBaseTest {
         ImmutableMap.of("enable", "true", "foo", "bar", "x", "");
     assertEquals(expected, localIotAccessProvider.options, "parsed options object");
   }
+
+  @Test
+  public void configBackoff() {
+    for (int attempt = 0; attempt < 40; attempt++) {
+      long ceiling = Math.min(2000, 50L << Math.min(attempt, 16));
+      long backoff = IotAccessBase.configBackoffMs(attempt);
+      assertTrue(backoff >= ceiling / 2 && backoff <= ceiling, "backoff out of range " + backoff);
+    }
+  }
+
+  @Test
+  public void coalescedConfigUpdates() throws Exception {
+    AtomicInteger writes = new AtomicInteger();
+    LocalIotAccessProvider provider = countingProvider(writes);
+    Envelope envelope = coalesceEnvelope();
+    String initial = provider.fetchConfig(envelope.deviceRegistryId, envelope.deviceId).getValue();
+
+    List<String> updates = IntStream.range(0, QUEUED_CALLERS)
+        .mapToObj(i -> String.valueOf((char) ('a' + i))).toList();
+    Map<String, Function<Entry<Long, String>, String>> mungers = new LinkedHashMap<>();
+    updates.forEach(update -> mungers.put(update, previous -> previous.getValue() + update));
+    Map<String, Object> results = coalescedModify(provider, envelope, mungers);
+
+    String config = provider.fetchConfig(envelope.deviceRegistryId, envelope.deviceId).getValue();
+    assertEquals(initial.length() + 1 + QUEUED_CALLERS, config.length(), "all updates applied");
+    assertEquals(2, writes.get(), "leader write plus one combined write");
+    assertEquals(initial + LEADER_UPDATE, results.get(LEADER_UPDATE), "leader update");
+    updates.forEach(update -> {
+      assertTrue(config.contains(update), "missing update " + update);
+      assertEquals(config, results.get(update), "combined update for " + update);
+    });
+  }
+
+  @Test
+  public void coalescedConfigFailure() throws Exception {
+    AtomicInteger writes = new AtomicInteger();
+    LocalIotAccessProvider provider = countingProvider(writes);
+    Envelope envelope = coalesceEnvelope();
+    String initial = provider.fetchConfig(envelope.deviceRegistryId, envelope.deviceId).getValue();
+
+    Map<String, Function<Entry<Long, String>, String>> mungers = new LinkedHashMap<>();
+    mungers.put("a", previous -> previous.getValue() + "a");
+    mungers.put(FAILED_UPDATE, previous -> {
+      throw new PreviousParseException("Failure expected for test", null);
+    });
+    mungers.put("c", previous -> previous.getValue() + "c");
+    Map<String, Object> results = coalescedModify(provider, envelope, mungers);
+
+    String config = provider.fetchConfig(envelope.deviceRegistryId, envelope.deviceId).getValue();
+    assertEquals(initial + LEADER_UPDATE + "ac", config, "good updates applied");
+    assertEquals(2, writes.get(), "leader write plus one combined write");
+    assertEquals(config, results.get("a"), "combined update for a");
+    assertEquals(config, results.get("c"), "combined update for c");
+    assertTrue(results.get(FAILED_UPDATE) instanceof PreviousParseException, "failed update");
+  }
+
+  private LocalIotAccessProvider countingProvider(AtomicInteger writes) {
+    return new LocalIotAccessProvider(new IotAccess()) {
+      @Override
+      public String updateConfig(Envelope envelope, String config, Long version) {
+        writes.incrementAndGet();
+        return super.updateConfig(envelope, config, version);
+      }
+    };
+  }
+
+  private Envelope coalesceEnvelope() {
+    Envelope envelope = new Envelope();
+    envelope.deviceRegistryId = "ZZ-TRI-FECTA";
+    envelope.deviceId = "AHU-COALESCE";
+    return envelope;
+  }
+
+  /**
+   * Run the given mungers while a leader is held inside its own munger, so that they all queue
+   * up behind it. Returns the result (or exception) for each caller, keyed as the mungers.
+   */
+  private Map<String, Object> coalescedModify(LocalIotAccessProvider provider,
+      Envelope envelope, Map<String, Function<Entry<Long, String>, String>> mungers)
+      throws InterruptedException {
+    Map<String, Object> results = new ConcurrentHashMap<>();
+    CountDownLatch leaderMunging = new CountDownLatch(1);
+    CountDownLatch leaderGate = new CountDownLatch(1);
+    Thread leader = new Thread(() -> results.put(LEADER_UPDATE,
+        provider.modifyConfig(envelope, previous -> {
+          leaderMunging.countDown();
+          try {
+            leaderGate.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted waiting for leader gate", e);
+          }
+          return previous.getValue() + LEADER_UPDATE;
+        })));
+    leader.start();
+    assertTrue(leaderMunging.await(WAIT_TIMEOUT_SEC, TimeUnit.SECONDS), "leader munging");
+
+    List<Thread> followers = mungers.entrySet().stream().map(entry -> new Thread(() -> {
+      try {
+        results.put(entry.getKey(), provider.modifyConfig(envelope, entry.getValue()));
+      } catch (RuntimeException e) {
+        results.put(entry.getKey(), e);
+      }
+    })).toList();
+    followers.forEach(Thread::start);
+    Instant deadline = Instant.now().plusSeconds(WAIT_TIMEOUT_SEC);
+    while (provider.queuedConfigUpdates(envelope.deviceRegistryId, envelope.deviceId)
+        < mungers.size()) {
+      assertTrue(Instant.now().isBefore(deadline), "timeout waiting for queued updates");
+      Thread.sleep(10);
+    }
+    leaderGate.countDown();
+    leader.join(WAIT_TIMEOUT_SEC * 1000);
+    for (Thread follower : followers) {
+      follower.join(WAIT_TIMEOUT_SEC * 1000);
+    }
+    assertEquals(mungers.size() + 1, results.size(), "completed callers");
+    return results;
+  }
+
+  @Test
+  public void cachedRegistryRegions() {
+    AtomicInteger fetches = new AtomicInteger();
+    LocalIotAccessProvider provider = new LocalIotAccessProvider(new IotAccess()) {
+      @Override
+      protected Map<String, String> fetchRegistryRegions() {
+        fetches.incrementAndGet();
+        return ImmutableMap.of("ZZ-TRI-FECTA", "us-central1");
+      }
+    };
+    assertEquals("us-central1", provider.getRegistryRegion("ZZ-TRI-FECTA"), "fetched region");
+    assertEquals("us-central1", provider.getRegistryRegion("ZZ-TRI-FECTA"), "cached region");
+    assertNull(provider.getRefreshedRegistryRegion("ZZ-UNKNOWN"), "unknown region");
+    assertEquals(1, fetches.get(), "region fetches");
+  }
 }
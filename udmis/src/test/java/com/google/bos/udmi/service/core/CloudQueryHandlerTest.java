@@ -1,10 +1,14 @@
 package com.google.bos.udmi.service.core;
 
+import static com.google.bos.udmi.service.messaging.impl.MessageTestCore.TEST_DEVICE;
 import static com.google.bos.udmi.service.messaging.impl.MessageTestCore.TEST_REGISTRY;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 
 import com.google.bos.udmi.service.access.IotAccessBase;
@@ -14,9 +18,11 @@ import java.time.Instant;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.function.BiConsumer;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import udmi.lib.ProtocolFamily;
 import udmi.schema.CloudModel;
 import udmi.schema.CloudQuery;
@@ -26,6 +32,7 @@ import udmi.schema.Envelope;
 
 class CloudQueryHandlerTest implements MessageContinuation {
 
+  private static final String BLOCKED_DEVICE = "AHU-22";
   private static final Instant LAST_SEEN = Instant.ofEpochSecond(91872);
   private static final Date QUERY_GENERATION = new Date();
   private final ControlProcessor controlProcessor = mock(ControlProcessor.class);
@@ -70,6 +77,34 @@ class CloudQueryHandlerTest implements MessageContinuation {
     assertEquals(TEST_REGISTRY, controlEnvelope.deviceRegistryId, "control message registry");
   }
 
+  /**
+   * Test that a detailed registry query publishes the registry listing before issuing the
+   * per-device detail queries, and only issues those for devices that aren't blocked.
+   */
+  @Test
+  public void queryRegistryDetails() {
+    envelope.deviceRegistryId = TEST_REGISTRY;
+    query.depth = Depth.DETAILS;
+    CloudModel blocked = new CloudModel();
+    blocked.blocked = true;
+    doAnswer(invocation -> {
+      BiConsumer<String, CloudModel> consumer = invocation.getArgument(1);
+      consumer.accept(TEST_DEVICE, new CloudModel());
+      consumer.accept(BLOCKED_DEVICE, blocked);
+      return null;
+    }).when(controlProcessor.iotAccess).streamDevices(eq(TEST_REGISTRY), any(), any());
+
+    new CloudQueryHandler(controlProcessor, query).process();
+
+    InOrder inOrder = inOrder(controlProcessor);
+    inOrder.verify(controlProcessor).publish(any());
+    inOrder.verify(controlProcessor).sideProcess(any(), any());
+    DiscoveryEvents registryDiscovery = (DiscoveryEvents) targetCapture.getValue();
+    assertEquals(ImmutableSet.of(TEST_DEVICE, BLOCKED_DEVICE), registryDiscovery.devices.keySet(),
+        "listed devices");
+    assertEquals(TEST_DEVICE, envelopeCapture.getValue().deviceId, "detail query device");
+  }
+
   @BeforeEach
   public void setupMock() {
     query.generation = QUERY_GENERATION;
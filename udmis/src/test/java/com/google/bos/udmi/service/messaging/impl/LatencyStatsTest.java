@@ -0,0 +1,36 @@
+package com.google.bos.udmi.service.messaging.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.bos.udmi.service.messaging.MessagePipe.PipeStats;
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the latency histogram stats.
+ */
+class LatencyStatsTest {
+
+  private static final double TOLERANCE = 0.01;
+
+  @Test
+  void percentileExtraction() {
+    LatencyStats latencyStats = new LatencyStats();
+    for (int i = 1; i <= 1000; i++) {
+      latencyStats.record(Duration.ofMillis(i));
+    }
+    PipeStats stats = latencyStats.extract(0.25);
+    assertEquals(1000, stats.count, "unexpected count");
+    assertEquals(500.5, stats.latency, 1.0, "unexpected total latency");
+    assertEquals(0.5, stats.p50, TOLERANCE, "unexpected p50");
+    assertEquals(0.99, stats.p99, TOLERANCE, "unexpected p99");
+    assertEquals(1.0, stats.max, TOLERANCE, "unexpected max");
+    assertEquals(0.25, stats.size, "unexpected size");
+    assertTrue(stats.p999 >= stats.p99, "p999 less than p99");
+
+    PipeStats reset = latencyStats.extract(0);
+    assertEquals(0, reset.count, "stats not reset after extraction");
+    assertEquals(0, reset.latency, "latency not reset after extraction");
+  }
+}
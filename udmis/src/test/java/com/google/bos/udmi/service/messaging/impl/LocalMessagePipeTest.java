@@ -1,13 +1,26 @@
 package com.google.bos.udmi.service.messaging.impl;
 
+import static com.google.udmi.util.Common.DEVICE_ID_KEY;
+import static com.google.udmi.util.Common.REGISTRY_ID_PROPERTY_KEY;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.google.bos.udmi.service.messaging.StateUpdate;
 import com.google.bos.udmi.service.messaging.impl.MessageBase.Bundle;
+import com.google.common.collect.ImmutableMap;
 import com.google.udmi.util.JsonUtil;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 import org.junit.jupiter.api.Test;
 import udmi.schema.EndpointConfiguration;
 import udmi.schema.EndpointConfiguration.Protocol;
@@ -17,6 +30,12 @@ import udmi.schema.EndpointConfiguration.Protocol;
  */
 public class LocalMessagePipeTest extends MessagePipeTestBase {
 
+  private static final int TEST_BATCH_SIZE = 3;
+  private static final int TEST_LINGER_MS = 100;
+
+  private Integer batchSize;
+  private Integer lingerMs;
+
   private Map<String, Object> testSend(Object message) {
     getTestDispatcher().publish(message);
     List<Bundle> bundles = getReverseDispatcher().drain();
@@ -26,6 +45,10 @@ public class LocalMessagePipeTest extends MessagePipeTestBase {
 
   public void augmentConfig(EndpointConfiguration config, boolean reversed) {
     config.protocol = Protocol.LOCAL;
+    if (!reversed) {
+      config.batch_size = batchSize;
+      config.linger_ms = lingerMs;
+    }
   }
 
   private static class BespokeObject {
@@ -33,6 +56,41 @@ public class LocalMessagePipeTest extends MessagePipeTestBase {
     public String sillyDilly;
   }
 
+  /**
+   * Batching pipe that fails a given number of raw publish attempts before succeeding.
+   */
+  private static class FlakyPipe extends MessageBase {
+
+    private final List<Bundle> published = new CopyOnWriteArrayList<>();
+    private final AtomicInteger failures;
+    private final AtomicBoolean terminated = new AtomicBoolean();
+
+    FlakyPipe(int failures) {
+      super(batchConfig());
+      this.failures = new AtomicInteger(failures);
+    }
+
+    private static EndpointConfiguration batchConfig() {
+      EndpointConfiguration config = new EndpointConfiguration();
+      config.batch_size = TEST_BATCH_SIZE;
+      config.linger_ms = TEST_LINGER_MS;
+      return config;
+    }
+
+    @Override
+    protected void publishRaw(Bundle bundle) {
+      if (failures.getAndDecrement() > 0) {
+        throw new IllegalStateException("Failure expected for test");
+      }
+      published.add(bundle);
+    }
+
+    @Override
+    protected void terminateHandlers() {
+      terminated.set(true);
+    }
+  }
+
   /**
    * Test that publishing a message results in a properly constructed bundle (envelope and
    * message).
@@ -50,6 +108,141 @@ public class LocalMessagePipeTest extends MessagePipeTestBase {
     assertEquals(TEST_VERSION, message.get("version"));
   }
 
+  /**
+   * Test that a published message is handed off as a typed object, but isolated from mutations the
+   * publisher makes after publishing.
+   */
+  @Test
+  void publishedMessageHandoff() {
+    StateUpdate testMessage = new StateUpdate();
+    testMessage.version = TEST_VERSION;
+    testMessage.timestamp = new Date(0);
+    getTestDispatcher().publish(testMessage);
+    testMessage.version = "mutated";
+    testMessage.timestamp.setTime(1000);
+    List<Bundle> bundles = getReverseDispatcher().drain();
+    assertEquals(1, bundles.size(), "unexpected received bundle");
+    StateUpdate received = assertInstanceOf(StateUpdate.class, bundles.get(0).message);
+    assertNotSame(testMessage, received, "expected message snapshot");
+    assertEquals(TEST_VERSION, received.version, "received version");
+    assertEquals(new Date(0), received.timestamp, "received timestamp");
+  }
+
+  /**
+   * Test that a handoff copy does not share mutable envelope state with the original bundle.
+   */
+  @Test
+  void handoffCopyEnvelope() {
+    Bundle bundle = new Bundle(new StateUpdate());
+    bundle.envelope.deviceId = TEST_DEVICE;
+    bundle.envelope.publishTime = new Date(0);
+    Bundle copy = bundle.handoffCopy();
+    bundle.envelope.deviceId = "mutated";
+    bundle.envelope.publishTime.setTime(1000);
+    assertEquals(TEST_DEVICE, copy.envelope.deviceId, "copied device id");
+    assertEquals(new Date(0), copy.envelope.publishTime, "copied publish time");
+  }
+
+  /**
+   * Test that messages for the same device always map to the same dispatch partition.
+   */
+  @Test
+  void devicePartitionKey() {
+    Bundle stateBundle = new Bundle(new StateUpdate());
+    stateBundle.envelope.deviceRegistryId = TEST_REGISTRY;
+    stateBundle.envelope.deviceId = TEST_DEVICE;
+    Bundle errorBundle = new Bundle(ImmutableMap.of(REGISTRY_ID_PROPERTY_KEY, TEST_REGISTRY,
+        DEVICE_ID_KEY, TEST_DEVICE), "error");
+    assertEquals(MessageBase.getPartitionKey(stateBundle), MessageBase.getPartitionKey(errorBundle),
+        "mismatched partition key");
+  }
+
+  /**
+   * Test that batched messages are held until the batch is full, and then delivered in order.
+   */
+  @Test
+  void publishedMessageBatch() {
+    batchSize = TEST_BATCH_SIZE;
+    lingerMs = (int) Duration.ofMinutes(1).toMillis();
+    List<StateUpdate> messages = new ArrayList<>();
+    for (int i = 0; i < TEST_BATCH_SIZE; i++) {
+      assertEquals(0, getReverseDispatcher().drain().size(), "unexpected early delivery");
+      StateUpdate testMessage = new StateUpdate();
+      testMessage.version = String.valueOf(i);
+      messages.add(testMessage);
+      getTestDispatcher().publish(testMessage);
+    }
+    List<Bundle> bundles = getReverseDispatcher().drain();
+    assertEquals(messages, bundles.stream().map(bundle -> bundle.message).toList(),
+        "unexpected batch delivery");
+  }
+
+  /**
+   * Test that a partial batch is delivered once the linger time has expired.
+   */
+  @Test
+  void publishedMessageLinger() throws InterruptedException {
+    batchSize = TEST_BATCH_SIZE;
+    lingerMs = TEST_LINGER_MS;
+    getTestDispatcher().publish(new StateUpdate());
+    assertEquals(0, getReverseDispatcher().drain().size(), "unexpected early delivery");
+    Thread.sleep(TEST_LINGER_MS * 5);
+    assertEquals(1, getReverseDispatcher().drain().size(), "missing lingering delivery");
+  }
+
+  /**
+   * Test that a lingering batch that fails to publish is retried, rather than dropped.
+   */
+  @Test
+  void lingeringBatchRetry() throws InterruptedException {
+    FlakyPipe pipe = new FlakyPipe(1);
+    pipe.publish(new Bundle(new StateUpdate()));
+    Thread.sleep(TEST_LINGER_MS * 10);
+    assertEquals(1, pipe.published.size(), "missing retried delivery");
+    pipe.awaitShutdown();
+  }
+
+  /**
+   * Test that a failed full batch, flushed on a publishing thread, is thrown to that publisher but
+   * kept for retry, so the other bundles in the batch aren't lost.
+   */
+  @Test
+  void fullBatchRetry() throws InterruptedException {
+    FlakyPipe pipe = new FlakyPipe(1);
+    List<Bundle> bundles = IntStream.range(0, TEST_BATCH_SIZE)
+        .mapToObj(i -> new Bundle(new StateUpdate())).toList();
+    bundles.subList(0, TEST_BATCH_SIZE - 1).forEach(pipe::publish);
+    assertThrows(RuntimeException.class, () -> pipe.publish(bundles.get(TEST_BATCH_SIZE - 1)),
+        "expected full batch failure");
+    Thread.sleep(TEST_LINGER_MS * 10);
+    assertEquals(bundles, pipe.published, "retried batch delivery");
+    pipe.awaitShutdown();
+  }
+
+  /**
+   * Test that a failed flush on shutdown still terminates the handlers, and keeps the batch.
+   */
+  @Test
+  void failedShutdownFlush() throws InterruptedException {
+    FlakyPipe pipe = new FlakyPipe(1);
+    pipe.publish(new Bundle(new StateUpdate()));
+    assertThrows(RuntimeException.class, pipe::shutdown, "expected flush failure");
+    assertTrue(pipe.terminated.get(), "handlers not terminated");
+    Thread.sleep(TEST_LINGER_MS * 10);
+    assertEquals(1, pipe.published.size(), "missing retried delivery");
+  }
+
+  /**
+   * Test that batched publishing falls back to a synchronous flush once the pipe has shut down.
+   */
+  @Test
+  void publishAfterShutdown() {
+    FlakyPipe pipe = new FlakyPipe(0);
+    pipe.awaitShutdown();
+    pipe.publish(new Bundle(new StateUpdate()));
+    assertEquals(1, pipe.published.size(), "missing synchronous delivery");
+  }
+
   /**
    * Test that publishing an unexpected type of object results in an appropriate exception.
    */
@@ -0,0 +1,153 @@
+package com.google.bos.udmi.service.support;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import udmi.schema.IotAccess;
+
+/**
+ * Tests for the in-memory data provider, and the batch operations of data refs.
+ */
+class LocalDataProviderTest {
+
+  private static final String TEST_REGISTRY = "ZZ-TRI-FECTA";
+  private static final String TEST_DEVICE = "AHU-1";
+  private static final String OTHER_DEVICE = "AHU-22";
+  private static final int COMPACT_KEYS = 3;
+  private static final int COMPACT_UPDATES = 3000;
+  private static final int COMPACT_VALUE_REPEAT = 100;
+
+  private final LocalDataProvider provider = new LocalDataProvider(new IotAccess());
+
+  private DataRef deviceRef(String deviceId) {
+    return provider.ref().registry(TEST_REGISTRY).device(deviceId);
+  }
+
+  private DataRef gatewayRef(String gatewayId) {
+    return provider.ref().registry(TEST_REGISTRY).gateway(gatewayId);
+  }
+
+  @Test
+  void batchUpdates() {
+    deviceRef(TEST_DEVICE).putAll(ImmutableMap.of("a", "1", "b", "2", "c", "3"));
+    deviceRef(OTHER_DEVICE).put("a", "other");
+
+    Map<String, String> updates = new HashMap<>();
+    updates.put("a", "4");
+    updates.put("b", null);
+    deviceRef(TEST_DEVICE).update(updates);
+    assertEquals(ImmutableMap.of("a", "4", "c", "3"), deviceRef(TEST_DEVICE).entries());
+
+    deviceRef(TEST_DEVICE).deleteAll(ImmutableList.of("a", "c"));
+    assertTrue(deviceRef(TEST_DEVICE).entries().isEmpty(), "unexpected remaining entries");
+    assertEquals(ImmutableMap.of("a", "other"), deviceRef(OTHER_DEVICE).entries());
+  }
+
+  @Test
+  void multiRefUpdate() {
+    deviceRef(TEST_DEVICE).put("bound_to", "GAT-1");
+    Map<String, String> unbind = new HashMap<>();
+    unbind.put("bound_to", null);
+    Map<String, String> unindex = new HashMap<>();
+    unindex.put(TEST_DEVICE, null);
+    provider.update(ImmutableMap.of(
+        deviceRef(TEST_DEVICE), unbind,
+        gatewayRef("GAT-1"), unindex,
+        gatewayRef("GAT-2"), ImmutableMap.of(TEST_DEVICE, "1")));
+    assertTrue(deviceRef(TEST_DEVICE).entries().isEmpty(), "unexpected device entries");
+    assertEquals(ImmutableMap.of(TEST_DEVICE, "1"),
+        gatewayRef("GAT-2").entries());
+    assertTrue(gatewayRef("GAT-1").entries().isEmpty(),
+        "unexpected gateway entries");
+  }
+
+  @Test
+  void replaceEntries() {
+    deviceRef(TEST_DEVICE).putAll(ImmutableMap.of("a", "1", "b", "2"));
+    deviceRef(TEST_DEVICE).replace(ImmutableMap.of("b", "3", "c", "4"));
+    assertEquals(ImmutableMap.of("b", "3", "c", "4"), deviceRef(TEST_DEVICE).entries());
+  }
+
+  @Test
+  void compareAndSwap() {
+    DataRef ref = deviceRef(TEST_DEVICE);
+    assertTrue(ref.compareAndSwap("ver", null, "1"), "swap from absent");
+    assertFalse(ref.compareAndSwap("ver", null, "2"), "swap from absent when present");
+    assertFalse(ref.compareAndSwap("ver", "2", "3"), "swap from mismatched value");
+    assertEquals("1", ref.get("ver"));
+
+    assertTrue(ref.compareAndUpdate("ver", "1", ImmutableMap.of("ver", "2", "config", "{}")),
+        "guarded update");
+    assertFalse(ref.compareAndUpdate("ver", "1", ImmutableMap.of("ver", "3", "config", "[]")),
+        "stale guarded update");
+    assertEquals(ImmutableMap.of("ver", "2", "config", "{}"), ref.entries());
+
+    assertTrue(ref.compareAndSwap("ver", "2", null), "swap to absent");
+    assertNull(ref.get("ver"), "deleted value");
+  }
+
+  @Test
+  void persistentEntries() throws Exception {
+    File dataFile = File.createTempFile("udmis_data", ".log");
+    dataFile.deleteOnExit();
+    IotAccess iotAccess = new IotAccess();
+    iotAccess.options = "data_file=" + dataFile.getAbsolutePath();
+    LocalDataProvider persistent = new LocalDataProvider(iotAccess);
+    DataRef ref = persistent.ref().registry(TEST_REGISTRY).device(TEST_DEVICE);
+    ref.putAll(ImmutableMap.of("a", "1", "b", "2"));
+    ref.delete("a");
+    assertTrue(ref.compareAndSwap("ver", null, "1"), "guarded update");
+    persistent.shutdown();
+
+    // Simulate a torn write at the end of the log, which should be dropped on replay.
+    try (FileOutputStream out = new FileOutputStream(dataFile, true)) {
+      out.write(new byte[] {0, 0, 0, 100, 1, 2, 3});
+    }
+
+    LocalDataProvider reloaded = new LocalDataProvider(iotAccess);
+    DataRef reloadedRef = reloaded.ref().registry(TEST_REGISTRY).device(TEST_DEVICE);
+    assertEquals(ImmutableMap.of("b", "2", "ver", "1"), reloadedRef.entries());
+    reloadedRef.put("c", "3");
+    reloaded.shutdown();
+
+    LocalDataProvider appended = new LocalDataProvider(iotAccess);
+    assertEquals(ImmutableMap.of("b", "2", "c", "3", "ver", "1"),
+        appended.ref().registry(TEST_REGISTRY).device(TEST_DEVICE).entries());
+    appended.shutdown();
+  }
+
+  @Test
+  void compactedEntries() throws Exception {
+    File dataFile = File.createTempFile("udmis_data", ".log");
+    dataFile.deleteOnExit();
+    IotAccess iotAccess = new IotAccess();
+    iotAccess.options = "data_file=" + dataFile.getAbsolutePath();
+    LocalDataProvider persistent = new LocalDataProvider(iotAccess);
+    DataRef ref = persistent.ref().registry(TEST_REGISTRY).device(TEST_DEVICE);
+    String value = "\u00e9\u20ac\ud83d\ude00".repeat(COMPACT_VALUE_REPEAT);
+    long writtenBytes = 0;
+    for (int i = 0; i < COMPACT_UPDATES; i++) {
+      ref.put("key" + (i % COMPACT_KEYS), value + i);
+      writtenBytes += value.getBytes(UTF_8).length;
+    }
+    persistent.shutdown();
+    assertTrue(dataFile.length() < writtenBytes / 2, "expected compacted log");
+
+    LocalDataProvider reloaded = new LocalDataProvider(iotAccess);
+    DataRef reloadedRef = reloaded.ref().registry(TEST_REGISTRY).device(TEST_DEVICE);
+    assertEquals(COMPACT_KEYS, reloadedRef.entries().size(), "reloaded entry count");
+    assertEquals(value + (COMPACT_UPDATES - 1),
+        reloadedRef.get("key" + ((COMPACT_UPDATES - 1) % COMPACT_KEYS)), "latest value");
+    reloaded.shutdown();
+  }
+}
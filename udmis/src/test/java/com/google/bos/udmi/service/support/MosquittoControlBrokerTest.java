@@ -0,0 +1,175 @@
+package com.google.bos.udmi.service.support;
+
+import static com.google.udmi.util.JsonUtil.stringifyTerse;
+import static com.google.udmi.util.JsonUtil.toMap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.bos.udmi.service.pod.ContainerBase;
+import com.google.udmi.util.JsonUtil;
+import java.io.IOException;
+import java.lang.Thread.State;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Tests for the dynamic-security control broker, with a mocked control client that answers each
+ * published batch of commands on the response topic.
+ */
+class MosquittoControlBrokerTest {
+
+  private static final String CONTROL_TOPIC = "$CONTROL/dynamic-security/v1";
+  private static final String RESPONSE_TOPIC = CONTROL_TOPIC + "/response";
+  private static final String CLIENT_ID = "/r/ZZ-TRI-FECTA/d/AHU-1";
+  private static final String GATEWAY_ID = "/r/ZZ-TRI-FECTA/d/GAT-1";
+  private static final String PASSWORD = "password";
+  private static final int CONCURRENT_CALLERS = 4;
+  private static final long WAIT_TIMEOUT_SEC = 5;
+
+  private final MqttClient mqttClient = mock(MqttClient.class);
+  private final List<List<Map<String, Object>>> published = new CopyOnWriteArrayList<>();
+  private final Map<String, String> commandErrors = new ConcurrentHashMap<>();
+  private volatile boolean respond = true;
+  private volatile boolean reverseResponses;
+  private volatile CountDownLatch publishGate = new CountDownLatch(0);
+  private MqttCallback callback;
+  private MosquittoControlBroker broker;
+
+  @BeforeEach
+  void setup() throws Exception {
+    when(mqttClient.isConnected()).thenReturn(true);
+    doAnswer(invocation -> {
+      handlePublish(invocation.getArgument(1));
+      return null;
+    }).when(mqttClient).publish(eq(CONTROL_TOPIC), any(byte[].class), anyInt(), anyBoolean());
+    broker = new MosquittoControlBroker(mock(ContainerBase.class), mqttClient);
+    ArgumentCaptor<MqttCallback> captor = ArgumentCaptor.forClass(MqttCallback.class);
+    verify(mqttClient).setCallback(captor.capture());
+    callback = captor.getValue();
+  }
+
+  private void handlePublish(byte[] payload) throws Exception {
+    List<Map<String, Object>> commands = ((List<?>) toMap(new String(payload)).get("commands"))
+        .stream().map(JsonUtil::mapCast).toList();
+    published.add(commands);
+    publishGate.await(WAIT_TIMEOUT_SEC, TimeUnit.SECONDS);
+    if (!respond) {
+      return;
+    }
+    List<Map<String, Object>> responses = new ArrayList<>();
+    commands.forEach(command -> {
+      Map<String, Object> response = new HashMap<>();
+      response.put("command", command.get("command"));
+      response.put("correlationData", command.get("correlationData"));
+      if (commandErrors.containsKey((String) command.get("command"))) {
+        response.put("error", commandErrors.get((String) command.get("command")));
+      }
+      responses.add(response);
+    });
+    if (reverseResponses) {
+      Collections.reverse(responses);
+      responses.add(0, Map.of("command", "deleteClient", "correlationData", "unknown"));
+    }
+    callback.messageArrived(RESPONSE_TOPIC,
+        new MqttMessage(stringifyTerse(Map.of("responses", responses)).getBytes()));
+  }
+
+  private List<Object> commandNames(List<Map<String, Object>> commands) {
+    return commands.stream().map(command -> command.get("command")).toList();
+  }
+
+  @Test
+  void authorizeCommands() {
+    broker.authorize(CLIENT_ID, PASSWORD);
+    assertEquals(1, published.size(), "published batches");
+    List<Map<String, Object>> commands = published.get(0);
+    assertEquals(List.of("deleteClient", "deleteRole", "createRole", "createClient"),
+        commandNames(commands));
+    assertEquals(commands.size(),
+        commands.stream().map(command -> command.get("correlationData")).distinct().count(),
+        "distinct correlation data");
+  }
+
+  @Test
+  void correlatedResponses() {
+    reverseResponses = true;
+    broker.bindGateway(GATEWAY_ID, List.of(CLIENT_ID));
+    assertEquals(1, published.size(), "published batches");
+  }
+
+  @Test
+  void optionalErrorIgnored() {
+    commandErrors.put("deleteClient", "Client not found");
+    commandErrors.put("deleteRole", "Role not found");
+    broker.authorize(CLIENT_ID, PASSWORD);
+  }
+
+  @Test
+  void requiredErrorFails() {
+    commandErrors.put("createClient", "Client already exists");
+    assertThrows(RuntimeException.class, () -> broker.authorize(CLIENT_ID, PASSWORD),
+        "expected required command failure");
+  }
+
+  @Test
+  void batchedCallers() throws Exception {
+    publishGate = new CountDownLatch(1);
+    Thread leader = new Thread(() -> broker.authorize(CLIENT_ID, null));
+    leader.start();
+    while (published.isEmpty()) {
+      Thread.sleep(10);
+    }
+    List<Thread> followers = IntStream.range(0, CONCURRENT_CALLERS)
+        .mapToObj(i -> new Thread(() -> broker.authorize(CLIENT_ID + i, null))).toList();
+    followers.forEach(Thread::start);
+    while (!followers.stream().allMatch(follower -> follower.getState() == State.BLOCKED)) {
+      Thread.sleep(10);
+    }
+    publishGate.countDown();
+    leader.join();
+    for (Thread follower : followers) {
+      follower.join();
+    }
+    assertEquals(2, published.size(), "published batches");
+    assertEquals(CONCURRENT_CALLERS * 2, published.get(1).size(), "batched follower commands");
+  }
+
+  @Test
+  void connectionLost() throws Exception {
+    respond = false;
+    CompletableFuture<Void> pending =
+        CompletableFuture.runAsync(() -> broker.authorize(CLIENT_ID, PASSWORD));
+    while (published.isEmpty()) {
+      Thread.sleep(10);
+    }
+    callback.connectionLost(new IOException("Connection lost for test"));
+    ExecutionException failure = assertThrows(ExecutionException.class,
+        () -> pending.get(WAIT_TIMEOUT_SEC, TimeUnit.SECONDS), "expected pending failure");
+    assertTrue(failure.getCause() instanceof RuntimeException, "unexpected failure type");
+  }
+}
@@ -0,0 +1,64 @@
+package com.google.bos.udmi.service.support;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the coherent ref cache.
+ */
+class RefCacheTest {
+
+  private static final String DEVICE_REF = "/r/ZZ-TRI-FECTA/d/AHU-1:";
+  private static final String OTHER_REF = "/r/ZZ-TRI-FECTA/d/AHU-22:";
+  private static final long START_REVISION = 10;
+
+  private final RefCache refCache = new RefCache(1);
+
+  @Test
+  void loadAndApply() {
+    refCache.activate(START_REVISION);
+    refCache.load(DEVICE_REF, START_REVISION, ImmutableMap.of("a", "1", "b", "2"));
+    refCache.apply(DEVICE_REF + "a", "3", START_REVISION + 1);
+    refCache.apply(DEVICE_REF + "b", null, START_REVISION + 2);
+    refCache.apply(DEVICE_REF + "c", "4", START_REVISION);
+    assertEquals(ImmutableMap.of("a", "3"), refCache.get(DEVICE_REF));
+  }
+
+  @Test
+  void staleLoad() {
+    refCache.activate(START_REVISION);
+    refCache.apply(DEVICE_REF + "a", "2", START_REVISION + 2);
+    refCache.load(DEVICE_REF, START_REVISION + 1, ImmutableMap.of("a", "1"));
+    assertNull(refCache.get(DEVICE_REF), "stale load was cached");
+
+    refCache.invalidate(OTHER_REF + "a", START_REVISION + 3);
+    refCache.load(DEVICE_REF, START_REVISION + 2, ImmutableMap.of("a", "2"));
+    assertNull(refCache.get(DEVICE_REF), "load older than local write was cached");
+  }
+
+  @Test
+  void evictionAndInvalidation() {
+    refCache.activate(START_REVISION);
+    refCache.load(DEVICE_REF, START_REVISION, ImmutableMap.of("a", "1"));
+    refCache.load(OTHER_REF, START_REVISION, ImmutableMap.of("a", "2"));
+    assertNull(refCache.get(DEVICE_REF), "eldest ref not evicted");
+    assertEquals(ImmutableMap.of("a", "2"), refCache.get(OTHER_REF));
+
+    refCache.invalidate(OTHER_REF + "a", START_REVISION + 1);
+    assertNull(refCache.get(OTHER_REF), "invalidated ref still cached");
+  }
+
+  @Test
+  void inactive() {
+    refCache.load(DEVICE_REF, START_REVISION, ImmutableMap.of("a", "1"));
+    assertNull(refCache.get(DEVICE_REF), "loaded into inactive cache");
+
+    refCache.activate(START_REVISION);
+    refCache.load(DEVICE_REF, START_REVISION, ImmutableMap.of("a", "1"));
+    refCache.deactivate();
+    assertNull(refCache.get(DEVICE_REF), "served from deactivated cache");
+  }
+}
@@ -0,0 +1,51 @@
+package com.google.daq.mqtt.util;
+
+import com.google.udmi.util.DiffEntry;
+import com.google.udmi.util.JsonUtil;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Change computation for a sequence of device states, taken from the upgrade test trace.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ObjectDiffEngineBenchmark {
+
+  private static final String UDMI_ROOT_PROPERTY = "udmi.root";
+  private static final String STATE_TRACE = "tests/traces/upgrade/expected/devices/%s/state.json";
+  private static final List<String> TRACE_DEVICES =
+      List.of("AHU-1", "AHU-22", "NON-1", "NON-2", "SNS-4");
+
+  private final ObjectDiffEngine diffEngine = new ObjectDiffEngine();
+  private List<udmi.schema.State> states;
+  private int stateIndex;
+
+  /**
+   * Load the device states, and initialize the engine with the first one.
+   */
+  @Setup
+  public void setup() {
+    File udmiRoot = new File(System.getProperty(UDMI_ROOT_PROPERTY, ".."));
+    states = TRACE_DEVICES.stream()
+        .map(device -> new File(udmiRoot, String.format(STATE_TRACE, device)))
+        .map(file -> JsonUtil.loadFile(udmi.schema.State.class, file))
+        .toList();
+    diffEngine.resetState(states.get(0));
+  }
+
+  @Benchmark
+  public List<DiffEntry> computeChanges() {
+    stateIndex = (stateIndex + 1) % states.size();
+    return diffEngine.computeChanges(states.get(stateIndex));
+  }
+}
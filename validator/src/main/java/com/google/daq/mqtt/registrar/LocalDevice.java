@@ -3,8 +3,8 @@ package com.google.daq.mqtt.registrar;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.daq.mqtt.registrar.Registrar.DEVICE_ERRORS_MAP;
-import static com.google.daq.mqtt.registrar.Registrar.ENVELOPE_SCHEMA_JSON;
-import static com.google.daq.mqtt.registrar.Registrar.METADATA_SCHEMA_JSON;
+import static com.google.daq.mqtt.registrar.Registrar.ENVELOPE_SCHEMA_ID;
+import static com.google.daq.mqtt.registrar.Registrar.METADATA_SCHEMA_ID;
 import static com.google.daq.mqtt.util.ConfigManager.GENERATED_CONFIG_JSON;
 import static com.google.daq.mqtt.util.ConfigManager.configFrom;
 import static com.google.udmi.util.Common.DEVICE_ID_ALLOWABLE;
@@ -37,7 +37,6 @@ import com.github.fge.jsonschema.core.exceptions.ProcessingException;
 import com.github.fge.jsonschema.core.report.LogLevel;
 import com.github.fge.jsonschema.core.report.ProcessingMessage;
 import com.github.fge.jsonschema.core.report.ProcessingReport;
-import com.github.fge.jsonschema.main.JsonSchema;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
@@ -54,6 +53,7 @@ import com.google.udmi.util.ExceptionMap.ExceptionCategory;
 import com.google.udmi.util.JsonUtil;
 import com.google.udmi.util.MessageDowngrader;
 import com.google.udmi.util.MessageValidator;
+import com.google.udmi.util.SchemaRegistry;
 import com.google.udmi.util.SiteDevice;
 import com.google.udmi.util.SiteModel;
 import com.google.udmi.util.SiteModel.MetadataException;
@@ -181,7 +181,7 @@ class LocalDevice implements SiteDevice {
   private static final Set<String> ALL_CERT_FILES = ImmutableSet.of(RSA_CERT_PEM, ES_CERT_PEM);
   private static final int MAX_JSON_LENGTH = 32767;
   private final String deviceId;
-  private final Map<String, JsonSchema> schemas;
+  private final SchemaRegistry schemas;
   private final File deviceDir;
   private final File outDir;
   private final DeviceKind deviceKind;
@@ -203,7 +203,7 @@ class LocalDevice implements SiteDevice {
   private Instant lastUpdated;
 
   LocalDevice(
-      SiteModel siteModel, String deviceId, Map<String, JsonSchema> schemas,
+      SiteModel siteModel, String deviceId, SchemaRegistry schemas,
       String generation, DeviceKind kind) {
     try {
       this.deviceId = deviceId;
@@ -297,7 +297,7 @@ class LocalDevice implements SiteDevice {
     try {
       extraValidation(metadata);  // Do this first so it will always be called.
       JsonNode metadataObject = JsonUtil.convertTo(JsonNode.class, metadata);
-      ProcessingReport report = schemas.get(METADATA_SCHEMA_JSON).validate(metadataObject);
+      ProcessingReport report = schemas.validate(METADATA_SCHEMA_ID, metadataObject, false);
       parseMetadataValidateProcessingReport(report);
     } catch (ProcessingException | ValidationException e) {
       exceptionMap.put(ExceptionCategory.validation, e);
@@ -594,8 +594,8 @@ class LocalDevice implements SiteDevice {
       envelope.projectId = fakeProjectId();
       envelope.deviceNumId = makeNumId(envelope);
       String envelopeJson = OBJECT_MAPPER_STRICT.writeValueAsString(envelope);
-      ProcessingReport processingReport = schemas.get(ENVELOPE_SCHEMA_JSON)
-          .validate(OBJECT_MAPPER.readTree(envelopeJson));
+      ProcessingReport processingReport = schemas.validate(ENVELOPE_SCHEMA_ID,
+          OBJECT_MAPPER.readTree(envelopeJson), false);
       if (!processingReport.isSuccess()) {
         processingReport.forEach(action -> {
           throw new RuntimeException("Against envelope schema", action.asException());
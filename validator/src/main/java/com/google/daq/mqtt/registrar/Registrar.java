@@ -52,12 +52,6 @@ import static java.util.Objects.requireNonNull;
 import static java.util.Optional.ofNullable;
 import static java.util.stream.Collectors.groupingBy;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.github.fge.jsonschema.core.load.configuration.LoadingConfiguration;
-import com.github.fge.jsonschema.core.load.download.URIDownloader;
-import com.github.fge.jsonschema.main.JsonSchema;
-import com.github.fge.jsonschema.main.JsonSchemaFactory;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -80,6 +74,7 @@ import com.google.udmi.util.ExceptionMap;
 import com.google.udmi.util.ExceptionMap.ErrorTree;
 import com.google.udmi.util.ExceptionMap.ExceptionCategory;
 import com.google.udmi.util.JsonUtil;
+import com.google.udmi.util.SchemaRegistry;
 import com.google.udmi.util.SiteModel;
 import com.google.udmi.util.ValidationError;
 import java.io.File;
@@ -87,8 +82,6 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.lang.reflect.Field;
-import java.net.URI;
-import java.nio.file.Files;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.AbstractMap.SimpleEntry;
@@ -135,10 +128,9 @@ public class Registrar {
   public static final String SCHEMA_BASE_PATH = "schema";
   public static final Joiner JOIN_CSV = Joiner.on(", ");
   public static final File BASE_DIR = new File(".");
-  static final String ENVELOPE_SCHEMA_JSON = "envelope.json";
-  static final String METADATA_SCHEMA_JSON = "metadata.json";
+  static final String ENVELOPE_SCHEMA_ID = "envelope";
+  static final String METADATA_SCHEMA_ID = "metadata";
   static final String DEVICE_ERRORS_MAP = "errors.map";
-  private static final String SCHEMA_SUFFIX = ".json";
   private static final String SCHEMA_NAME = "UDMI";
   private static final String SWARM_SUBFOLDER = "swarm";
   private static final String CONFIG_SUB_TYPE = "config";
@@ -154,8 +146,8 @@ public class Registrar {
   private static final int UNBIND_SET_SIZE = 1000;
   public static final int BATCH_REPORT_SIZE = 100;
   private boolean autoAltRegistry;
-  private final Map<String, JsonSchema> schemas = new HashMap<>();
   private final String generation = JsonUtil.isoConvert();
+  private SchemaRegistry schemas;
   private final Set<Summarizer> summarizers = new HashSet<>();
   private final List<String> usageForms = ImmutableList.of(
       "bin/registrar site_model project_spec [options] [devices...]",
@@ -1653,11 +1645,8 @@ public class Registrar {
       if (!schemaBase.isDirectory()) {
         throw new RuntimeException("Missing schema directory " + schemaBase.getAbsolutePath());
       }
-      File[] schemaFiles = schemaBase.listFiles(file -> file.getName().endsWith(SCHEMA_SUFFIX));
-      for (File schemaFile : requireNonNull(schemaFiles, "schema files")) {
-        loadSchema(schemaFile.getName());
-      }
-      if (schemas.isEmpty()) {
+      schemas = SchemaRegistry.forRoot(schemaBase);
+      if (schemas.loadAll().isEmpty()) {
         throw new RuntimeException(
             "No schemas successfully loaded from " + schemaBase.getAbsolutePath());
       }
@@ -1672,33 +1661,10 @@ public class Registrar {
     ifNotNullThen(siteModel, SiteModel::setStrictWarnings);
   }
 
-  private void loadSchema(String key) {
-    File schemaFile = new File(schemaBase, key);
-    try (InputStream schemaStream = Files.newInputStream(schemaFile.toPath())) {
-      JsonNode schemaTree = OBJECT_MAPPER.readTree(schemaStream);
-      if (schemaTree instanceof ObjectNode schemaObject) {
-        Set<String> toRemove = new HashSet<>();
-        schemaObject.fields().forEachRemaining(entry -> {
-          ifTrueThen(entry.getKey().startsWith("$"), () -> toRemove.add(entry.getKey()));
-        });
-        toRemove.forEach(schemaObject::remove);
-      }
-      JsonSchema schema =
-          JsonSchemaFactory.newBuilder()
-              .setLoadingConfiguration(
-                  LoadingConfiguration.newBuilder()
-                      .addScheme("file", new RelativeDownloader())
-                      .freeze()).freeze().getJsonSchema(schemaTree);
-      schemas.put(key, schema);
-    } catch (Exception e) {
-      throw new RuntimeException("While loading schema " + schemaFile.getAbsolutePath(), e);
-    }
-  }
-
   private void loadSiteDefaults() {
     this.siteDefaults = null;
 
-    if (!schemas.containsKey(SiteModel.METADATA_JSON)) {
+    if (schemas == null || !schemas.hasSchema(METADATA_SCHEMA_ID)) {
       return;
     }
 
@@ -1714,7 +1680,7 @@ public class Registrar {
       // At this time, do not validate the site defaults schema because, by its nature of being
       // a partial overlay on each device Metadata, this Metadata will likely be incomplete
       // and fail validation.
-      schemas.get(METADATA_SCHEMA_JSON).validate(OBJECT_MAPPER.readTree(targetStream));
+      schemas.validate(METADATA_SCHEMA_ID, OBJECT_MAPPER.readTree(targetStream), false);
     } catch (FileNotFoundException e) {
       return;
     } catch (Exception e) {
@@ -1745,16 +1711,4 @@ public class Registrar {
   private void setAutoAltRegistry() {
     autoAltRegistry = true;
   }
-
-  class RelativeDownloader implements URIDownloader {
-
-    @Override
-    public InputStream fetch(URI source) {
-      try {
-        return Files.newInputStream(new File(schemaBase, source.getSchemeSpecificPart()).toPath());
-      } catch (Exception e) {
-        throw new RuntimeException("While loading sub-schema " + source, e);
-      }
-    }
-  }
 }
@@ -0,0 +1,187 @@
+package com.google.daq.mqtt.validator;
+
+import static com.google.udmi.util.GeneralUtils.friendlyStackTrace;
+import static java.lang.String.format;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Background writer for the validator's capture files. Writes are handed off to a single writer
+ * thread, which takes everything pending as a batch. Pending rewrites of the same file are
+ * coalesced, so only the latest content is written, and callers block once too much is pending.
+ * Trace captures can also be appended to a segment-rotated capture log, rather than written out
+ * as individual files.
+ */
+public class CaptureWriter {
+
+  private static final int MAX_PENDING = 1000;
+  private static final long SEGMENT_BYTES = 64 * 1024 * 1024;
+  private static final String SEGMENT_FORMAT = "capture_%04d.log";
+
+  private final Map<File, byte[]> pendingFiles = new LinkedHashMap<>();
+  private final List<byte[]> pendingRecords = new ArrayList<>();
+  private final Set<File> knownDirs = new HashSet<>();
+  private Thread writerThread;
+  private boolean writing;
+  private File logDir;
+  private OutputStream logStream;
+  private int segmentIndex;
+  private long segmentBytes;
+
+  /**
+   * Append capture records to log segments in the given directory.
+   */
+  public synchronized void setCaptureLog(File captureLogDir) {
+    logDir = captureLogDir;
+  }
+
+  public synchronized boolean hasCaptureLog() {
+    return logDir != null;
+  }
+
+  /**
+   * Queue the content to be written to the target file, replacing any pending content for it.
+   */
+  public synchronized void write(File target, byte[] content) {
+    if (!pendingFiles.containsKey(target)) {
+      awaitCapacity();
+    }
+    pendingFiles.put(target, content);
+    startWriting();
+  }
+
+  /**
+   * Queue a record to be appended to the capture log.
+   */
+  public synchronized void append(byte[] record) {
+    if (logDir == null) {
+      throw new IllegalStateException("No capture log configured");
+    }
+    awaitCapacity();
+    pendingRecords.add(record);
+    startWriting();
+  }
+
+  /**
+   * Wait for everything queued so far to be written out.
+   */
+  public synchronized void flush() {
+    try {
+      while (writing || !pendingFiles.isEmpty() || !pendingRecords.isEmpty()) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted flushing capture writes", e);
+    }
+  }
+
+  /**
+   * Flush everything, and close the current capture log segment.
+   */
+  public synchronized void close() {
+    flush();
+    try {
+      if (logStream != null) {
+        logStream.close();
+        logStream = null;
+      }
+    } catch (Exception e) {
+      throw new RuntimeException("While closing capture log", e);
+    }
+  }
+
+  private void awaitCapacity() {
+    try {
+      while (pendingFiles.size() + pendingRecords.size() >= MAX_PENDING) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted queueing capture write", e);
+    }
+  }
+
+  private void startWriting() {
+    if (writerThread == null) {
+      writerThread = new Thread(this::writeLoop, "capture-writer");
+      writerThread.setDaemon(true);
+      writerThread.start();
+    }
+    notifyAll();
+  }
+
+  private void writeLoop() {
+    while (true) {
+      Map<File, byte[]> files;
+      List<byte[]> records;
+      synchronized (this) {
+        writing = false;
+        notifyAll();
+        while (pendingFiles.isEmpty() && pendingRecords.isEmpty()) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        files = new LinkedHashMap<>(pendingFiles);
+        records = new ArrayList<>(pendingRecords);
+        pendingFiles.clear();
+        pendingRecords.clear();
+        writing = true;
+        notifyAll();
+      }
+      files.forEach(this::writeFile);
+      appendRecords(records);
+    }
+  }
+
+  private void writeFile(File target, byte[] content) {
+    try {
+      File parent = target.getParentFile();
+      if (parent != null && knownDirs.add(parent)) {
+        parent.mkdirs();
+      }
+      Files.write(target.toPath(), content);
+    } catch (Exception e) {
+      System.err.printf("Error writing capture file %s: %s%n", target.getAbsolutePath(),
+          friendlyStackTrace(e));
+    }
+  }
+
+  private void appendRecords(List<byte[]> records) {
+    if (records.isEmpty()) {
+      return;
+    }
+    try {
+      for (byte[] record : records) {
+        if (logStream == null || segmentBytes >= SEGMENT_BYTES) {
+          openSegment();
+        }
+        logStream.write(record);
+        segmentBytes += record.length;
+      }
+      logStream.flush();
+    } catch (Exception e) {
+      System.err.println("Error appending to capture log: " + friendlyStackTrace(e));
+    }
+  }
+
+  private void openSegment() throws Exception {
+    if (logStream != null) {
+      logStream.close();
+    }
+    File segmentFile = new File(logDir, format(SEGMENT_FORMAT, segmentIndex++));
+    logStream = new BufferedOutputStream(new FileOutputStream(segmentFile, true));
+    segmentBytes = segmentFile.length();
+  }
+}
@@ -19,13 +19,22 @@ import com.google.daq.mqtt.util.MessagePublisher;
 import com.google.daq.mqtt.validator.Validator.ErrorContainer;
 import com.google.daq.mqtt.validator.Validator.MessageBundle;
 import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -46,14 +55,19 @@ public class MessageReadingClient implements MessagePublisher {
           .setSerializationInclusion(Include.NON_NULL);
   private static final Pattern filenamePattern = Pattern.compile("[0-9]+_([a-z]+)_([a-z]+)\\.json");
   private static final String TRACE_FILE_SUFFIX = ".json";
+  private static final int READ_AHEAD = 4;
   public static final String MSG_SOURCE = "msgSource";
   private final File messageDir;
   private final String registryId;
-  private final Map<String, List<String>> deviceMessageLists = new HashMap<>();
-  private final Map<String, Map<String, Object>> deviceMessages = new HashMap<>();
-  private final Map<String, Map<String, String>> deviceAttributes = new HashMap<>();
-  private final Map<String, String> deviceNextTimestamp = new HashMap<>();
-  private final Map<String, String> deviceLastTimestamp = new HashMap<>();
+  private final PriorityQueue<DeviceTrace> nextDevices = new PriorityQueue<>(
+      Comparator.comparing((DeviceTrace trace) -> trace.timestamp)
+          .thenComparing(trace -> trace.deviceId));
+  private final ExecutorService readers = Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(), runnable -> {
+        Thread thread = new Thread(runnable, "trace-reader");
+        thread.setDaemon(true);
+        return thread;
+      });
   private final List<OutputBundle> outputMessages = new ArrayList<>();
   int messageCount;
   private boolean isActive;
@@ -73,6 +87,7 @@ public class MessageReadingClient implements MessagePublisher {
     }
     File devicesDir = new File(messageDir, "devices");
     Arrays.stream(Objects.requireNonNull(devicesDir.list())).forEach(this::prepDevice);
+    isActive = !nextDevices.isEmpty();
   }
 
   private void prepDevice(String deviceId) {
@@ -81,40 +96,16 @@ public class MessageReadingClient implements MessagePublisher {
         .filter(filename -> filename.endsWith(TRACE_FILE_SUFFIX))
         .sorted()
         .collect(Collectors.toList());
-    deviceMessageLists.put(deviceId, messages);
-    prepNextMessage(deviceId);
-  }
-
-  private void prepNextMessage(String deviceId) {
-    try {
-      if (deviceMessageLists.get(deviceId).isEmpty()) {
-        return;
-      }
-      String msgName = deviceMessageLists.get(deviceId).remove(0);
-      Map<String, Object> msgObj = getMessageObject(deviceId, msgName);
-      Map<String, String> attributes = makeAttributes(deviceId, msgName, msgObj);
-      deviceAttributes.put(deviceId, attributes);
-      deviceMessages.put(deviceId, msgObj);
-      if (!msgObj.containsKey("timestamp")) {
-        msgObj.put("timestamp", deviceLastTimestamp.get(deviceId));
-      }
-      String timestamp = Objects.requireNonNull((String) msgObj.get("timestamp"));
-      deviceNextTimestamp.put(deviceId, timestamp);
-    } finally {
-      isActive = !deviceMessages.isEmpty();
+    DeviceTrace trace = new DeviceTrace(deviceId, messages);
+    if (trace.advance()) {
+      nextDevices.add(trace);
     }
   }
 
-  private Map<String, Object> getMessageObject(String deviceId, String msgName) {
-    File deviceDir = new File(messageDir, "devices/" + deviceId);
-    File msgFile = new File(deviceDir, msgName);
-    try {
-      @SuppressWarnings("unchecked")
-      Map<String, Object> treeMap = OBJECT_MAPPER.readValue(msgFile, TreeMap.class);
-      return treeMap;
-    } catch (Exception e) {
-      return new ErrorContainer(e, "Reading from " + msgFile, lastValidTimestamp);
-    }
+  private Map<String, Object> readMessageObject(File msgFile) throws Exception {
+    @SuppressWarnings("unchecked")
+    Map<String, Object> treeMap = OBJECT_MAPPER.readValue(msgFile, TreeMap.class);
+    return treeMap;
   }
 
   private Map<String, String> makeAttributes(String deviceId, String msgName,
@@ -167,6 +158,7 @@ public class MessageReadingClient implements MessagePublisher {
   @Override
   public void close() {
     isActive = false;
+    readers.shutdownNow();
   }
 
   @Override
@@ -185,12 +177,15 @@ public class MessageReadingClient implements MessagePublisher {
 
   @Override
   public Validator.MessageBundle takeNextMessage(QuerySpeed speed) {
-    final String deviceId = getNextDevice();
-    final Map<String, Object> message = deviceMessages.remove(deviceId);
-    final Map<String, String> attributes = deviceAttributes.remove(deviceId);
-    lastValidTimestamp = deviceNextTimestamp.remove(deviceId);
-    deviceLastTimestamp.put(deviceId, lastValidTimestamp);
-    prepNextMessage(deviceId);
+    DeviceTrace trace = nextDevices.remove();
+    final String deviceId = trace.deviceId;
+    final Map<String, Object> message = trace.message;
+    final Map<String, String> attributes = trace.attributes;
+    lastValidTimestamp = trace.timestamp;
+    if (trace.advance()) {
+      nextDevices.add(trace);
+    }
+    isActive = !nextDevices.isEmpty();
     String messageName = attributes.get(MSG_SOURCE);
     System.out.printf("Replay %s %s for %s%n", messageName, lastValidTimestamp, deviceId);
     messageCount++;
@@ -201,17 +196,66 @@ public class MessageReadingClient implements MessagePublisher {
     return bundle;
   }
 
-  private String getNextDevice() {
-    String nextDevice = deviceNextTimestamp.keySet().iterator().next();
-    String nextTimestamp = deviceNextTimestamp.get(nextDevice);
-    for (String deviceId : deviceNextTimestamp.keySet()) {
-      String deviceTimestamp = deviceNextTimestamp.get(deviceId);
-      if (deviceTimestamp.compareTo(nextTimestamp) < 0) {
-        nextDevice = deviceId;
-        nextTimestamp = deviceTimestamp;
+  /**
+   * Message stream of a single device. The next few files of each device are read and parsed in
+   * the background, while the streams of all the devices are merged in timestamp order.
+   */
+  private class DeviceTrace {
+
+    private final String deviceId;
+    private final Iterator<String> msgNames;
+    private final Deque<Map.Entry<String, Future<Map<String, Object>>>> readAhead =
+        new ArrayDeque<>();
+    private Map<String, Object> message;
+    private Map<String, String> attributes;
+    private String timestamp;
+
+    DeviceTrace(String deviceId, List<String> msgNames) {
+      this.deviceId = deviceId;
+      this.msgNames = msgNames.iterator();
+      fillReadAhead();
+    }
+
+    private void fillReadAhead() {
+      while (readAhead.size() < READ_AHEAD && msgNames.hasNext()) {
+        String msgName = msgNames.next();
+        File msgFile = new File(messageDir, "devices/" + deviceId + "/" + msgName);
+        readAhead.add(Map.entry(msgName, readers.submit(() -> readMessageObject(msgFile))));
+      }
+    }
+
+    /**
+     * Move on to the next message of this device, returning false if there are no more.
+     */
+    boolean advance() {
+      Map.Entry<String, Future<Map<String, Object>>> next = readAhead.poll();
+      if (next == null) {
+        return false;
+      }
+      fillReadAhead();
+      String msgName = next.getKey();
+      Map<String, Object> msgObj = getMessageObject(msgName, next.getValue());
+      attributes = makeAttributes(deviceId, msgName, msgObj);
+      if (!msgObj.containsKey("timestamp")) {
+        msgObj.put("timestamp", timestamp);
+      }
+      message = msgObj;
+      timestamp = Objects.requireNonNull((String) msgObj.get("timestamp"));
+      return true;
+    }
+
+    private Map<String, Object> getMessageObject(String msgName,
+        Future<Map<String, Object>> reading) {
+      try {
+        return reading.get();
+      } catch (ExecutionException e) {
+        File msgFile = new File(messageDir, "devices/" + deviceId + "/" + msgName);
+        Exception cause = e.getCause() instanceof Exception exception ? exception : e;
+        return new ErrorContainer(cause, "Reading from " + msgFile, lastValidTimestamp);
+      } catch (InterruptedException e) {
+        throw new RuntimeException("Interrupted reading " + msgName, e);
       }
     }
-    return nextDevice;
   }
 
   static class OutputBundle {
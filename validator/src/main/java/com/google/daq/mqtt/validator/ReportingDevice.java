@@ -277,6 +277,21 @@ public class ReportingDevice implements ErrorCollector {
     entries.removeIf(entry -> entry.timestamp.before(getThreshold(now)));
   }
 
+  /**
+   * Get the time at which the reported status of this device will change on its own, as errors
+   * expire or it stops being seen recently.
+   *
+   * @param now current instant
+   * @return instant of the next status change, or null if there is none pending
+   */
+  public Instant getStatusDeadline(Instant now) {
+    Date earliest = seenRecently(now) ? lastSeen : null;
+    for (Entry entry : entries) {
+      earliest = earliest == null || entry.timestamp.before(earliest) ? entry.timestamp : earliest;
+    }
+    return ifNotNullGet(earliest, date -> date.toInstant().plusSeconds(thresholdSec));
+  }
+
   private Date getThreshold(Instant now) {
     return Date.from(now.minusSeconds(thresholdSec));
   }
@@ -37,6 +37,7 @@ import static com.google.udmi.util.JsonUtil.convertTo;
 import static com.google.udmi.util.JsonUtil.isoConvert;
 import static com.google.udmi.util.JsonUtil.mapCast;
 import static com.google.udmi.util.JsonUtil.safeSleep;
+import static com.google.udmi.util.JsonUtil.stringifyTerse;
 import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
 import static java.util.Optional.ofNullable;
@@ -44,11 +45,9 @@ import static udmi.schema.IotAccess.IotProvider.PUBSUB;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.github.fge.jsonschema.core.load.configuration.LoadingConfiguration;
-import com.github.fge.jsonschema.core.load.download.URIDownloader;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.github.fge.jsonschema.core.report.ProcessingReport;
 import com.github.fge.jsonschema.main.JsonSchema;
-import com.github.fge.jsonschema.main.JsonSchemaFactory;
 import com.google.bos.iot.core.proxy.IotReflectorClient;
 import com.google.bos.iot.core.proxy.MqttPublisher;
 import com.google.bos.iot.core.proxy.NullPublisher;
@@ -57,6 +56,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.daq.mqtt.util.CloudIotManager;
 import com.google.daq.mqtt.util.FileDataSink;
@@ -75,33 +75,42 @@ import com.google.udmi.util.GeneralUtils;
 import com.google.udmi.util.JsonUtil;
 import com.google.udmi.util.MessageUpgrader;
 import com.google.udmi.util.MessageValidator;
+import com.google.udmi.util.SchemaRegistry;
 import com.google.udmi.util.SiteModel;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URI;
-import java.net.URL;
 import java.nio.file.Files;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
@@ -171,17 +180,31 @@ public class Validator {
   private static final String VALIDATOR_TOOL_NAME = "validator";
   private static final String REGISTRY_DEVICE_DEFAULT = "_regsitry";
   private static final String SCHEMA_NAME_KEY = "ignore_envelope";
+  private static final int SHARD_QUEUE_SIZE = 1000;
+  private static final String CAPTURE_FILE_KEY = "file";
+  private static final String CAPTURE_MESSAGE_KEY = "message";
+  private static final long SHARD_DRAIN_SEC = 60;
   private long reportingDelaySec = DEFAULT_INTERVAL_SEC;
   private final CommandLineProcessor commandLineProcessor = new CommandLineProcessor(this);
-  private final Map<String, ReportingDevice> reportingDevices = new TreeMap<>();
-  private final Set<String> extraDevices = new TreeSet<>();
-  private final Set<String> processedDevices = new TreeSet<>();
-  private final Set<String> base64Devices = new TreeSet<>();
-  private final Set<String> ignoredRegistries = new HashSet<>();
+  private final Map<String, ReportingDevice> reportingDevices = new ConcurrentSkipListMap<>();
+  private final Set<String> extraDevices = new ConcurrentSkipListSet<>();
+  private final Set<String> processedDevices = new ConcurrentSkipListSet<>();
+  private final Set<String> base64Devices = new ConcurrentSkipListSet<>();
+  private final Set<String> ignoredRegistries = ConcurrentHashMap.newKeySet();
   private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-  private final Map<String, AtomicInteger> deviceMessageIndex = new HashMap<>();
+  private final Map<String, AtomicInteger> deviceMessageIndex = new ConcurrentHashMap<>();
   private final List<MessagePublisher> dataSinks = new ArrayList<>();
-  private final Set<String> summaryDevices = new HashSet<>();
+  private final Set<String> summaryDevices = new LinkedHashSet<>();
+  private final Set<String> dirtyDevices = ConcurrentHashMap.newKeySet();
+  private final Map<String, DeviceReport> deviceReports = new HashMap<>();
+  private final Set<String> errorDevices = new TreeSet<>();
+  private final Set<String> correctDevices = new TreeSet<>();
+  private final Map<String, DeviceValidationEvents> deviceEvents = new TreeMap<>();
+  private final Map<String, Instant> scheduledDeadlines = new HashMap<>();
+  private final PriorityQueue<DeviceDeadline> statusDeadlines =
+      new PriorityQueue<>(Comparator.comparing(DeviceDeadline::deadline));
+  private final Object sinkLock = new Object();
+  private final CaptureWriter captureWriter = new CaptureWriter();
   private final ImpulseRunningAverage validationStats = new ImpulseRunningAverage(
       "Message validate");
   private Set<String> targetDevices;
@@ -192,13 +215,15 @@ public class Validator {
   private String schemaSpec;
   private ExecutionConfiguration config;
   private MessagePublisher client;
-  private Map<String, JsonSchema> schemaMap;
+  private SchemaRegistry schemaRegistry;
   private File traceDir;
   private boolean simulatedMessages;
   private Instant mockNow = null;
   private boolean forceUpgrade;
   private SiteModel siteModel;
   private boolean validateCurrent;
+  private int validationThreads = Runtime.getRuntime().availableProcessors();
+  private volatile List<ExecutorService> validationShards;
 
   static {
     System.setProperty(SimpleLogger.DEFAULT_LOG_LEVEL_KEY, "info");
@@ -316,7 +341,7 @@ public class Validator {
       List<String> remainingArgs = commandLineProcessor.processArgs(argList);
       return ofNullable(remainingArgs).orElse(ImmutableList.of());
     } finally {
-      if (schemaMap == null) {
+      if (schemaRegistry == null) {
         setSchemaSpec(new File(UDMI_ROOT, "schema").getAbsolutePath());
       }
     }
@@ -343,6 +368,12 @@ public class Validator {
     reportingDelaySec = Integer.parseInt(arg);
   }
 
+  @CommandLineOption(short_form = "-j", arg_name = "threads",
+      description = "Set validation worker threads")
+  private void setValidationThreads(String arg) {
+    validationThreads = Integer.parseInt(arg);
+  }
+
   @CommandLineOption(short_form = "-c", description = "Validate current device messages")
   private void setValidateCurrent() {
     validateCurrent = true;
@@ -413,6 +444,16 @@ public class Validator {
     return this;
   }
 
+  /**
+   * Replay a message trace against the wall clock, rather than the message timestamps, so that
+   * (unlike regular trace playback) messages can be validated on worker threads.
+   */
+  @VisibleForTesting
+  Validator prepForWallClock() {
+    simulatedMessages = false;
+    return this;
+  }
+
   /**
    * Set the site directory to use for this validation run.
    *
@@ -444,6 +485,13 @@ public class Validator {
     return GeneralUtils.mergeObject(siteConfig, config);
   }
 
+  @CommandLineOption(short_form = "-l", arg_name = "trace_dir",
+      description = "Write trace output to a capture log")
+  private void setMessageTraceLog(String writeDirArg) {
+    setMessageTraceDir(writeDirArg);
+    captureWriter.setCaptureLog(traceDir);
+  }
+
   @CommandLineOption(short_form = "-w", arg_name = "trace_dir", description = "Write trace output")
   private void setMessageTraceDir(String writeDirArg) {
     traceDir = new File(writeDirArg);
@@ -457,7 +505,8 @@ public class Validator {
   private void initializeExpectedDevices() {
     Set<String> siteDevices = siteModel.getDeviceIds();
     try {
-      expectedDevices = new HashSet<>(siteDevices);
+      expectedDevices = ConcurrentHashMap.newKeySet();
+      expectedDevices.addAll(siteDevices);
       for (String device : siteDevices) {
         ReportingDevice reportingDevice = newReportingDevice(device);
         try {
@@ -469,6 +518,7 @@ public class Validator {
           reportingDevice.addError(e, Category.VALIDATION_DEVICE_SCHEMA, detail);
         }
         reportingDevices.put(device, reportingDevice);
+        dirtyDevices.add(device);
       }
       outputLogger.info("Loaded " + reportingDevices.size() + " expected devices");
     } catch (Exception e) {
@@ -503,26 +553,19 @@ public class Validator {
       throw new RuntimeException(
           "Schema directory/file not found: " + schemaFile.getAbsolutePath());
     }
-    schemaMap = getSchemaMap();
+    schemaRegistry = getSchemaRegistry();
   }
 
-  private Map<String, JsonSchema> getSchemaMap() {
-    Map<String, JsonSchema> schemaMap = new TreeMap<>();
-    for (File schemaFile : makeFileList(null, schemaRoot)) {
-      JsonSchema schema = getSchema(schemaFile);
-      String fullName = schemaFile.getName();
-      String schemaName =
-          schemaFile.getName().substring(0, fullName.length() - JSON_SUFFIX.length());
-      schemaMap.put(schemaName, schema);
-    }
-    if (!schemaMap.containsKey(ENVELOPE_SCHEMA_ID)) {
+  private SchemaRegistry getSchemaRegistry() {
+    SchemaRegistry registry = SchemaRegistry.forRoot(schemaRoot);
+    if (!registry.loadAll().contains(ENVELOPE_SCHEMA_ID)) {
       throw new RuntimeException("Missing schema for attribute validation: " + ENVELOPE_SCHEMA_ID);
     }
 
     // Copy the metadata schema to model, since sometimes it's referenced that way.
-    schemaMap.put("model", schemaMap.get("metadata"));
+    registry.alias("model", "metadata");
 
-    return schemaMap;
+    return registry;
   }
 
   private String getRegistryId() {
@@ -569,6 +612,8 @@ public class Validator {
     sendInitializationQuery();
     outputLogger.info("Running udmi tools version " + UDMI_TOOLS);
     outputLogger.notice("Entering message loop on " + client.getSubscriptionId());
+    // Simulated messages drive the clock and reports from the message stream, so stay serial.
+    validationShards = simulatedMessages || validationThreads <= 1 ? null : makeShards();
     processValidationReport();
     ScheduledFuture<?> reportSender =
         simulatedMessages ? null : executor.scheduleAtFixedRate(this::processValidationReport,
@@ -576,7 +621,7 @@ public class Validator {
     try {
       while (client.isActive()) {
         try {
-          validateMessage(client.takeNextMessage(QuerySpeed.SHORT));
+          dispatchMessage(client.takeNextMessage(QuerySpeed.SHORT));
         } catch (Exception e) {
           e.printStackTrace();
         }
@@ -586,6 +631,72 @@ public class Validator {
       if (reportSender != null) {
         reportSender.cancel(true);
       }
+      // The shard workers are done once drained, so the last report can safely go serial.
+      ifNotNullThen(validationShards, this::drainShards);
+      validationShards = null;
+      // One last report, so it reflects everything processed (including anything left on shards).
+      ifTrueThen(!simulatedMessages, this::processValidationReport);
+      captureWriter.close();
+    }
+  }
+
+  /**
+   * Make the validation shards, each a single worker thread for the devices that hash to it. This
+   * keeps per-device message order, and confines each ReportingDevice to one thread. The shard
+   * queues are bounded, so the ingest loop blocks rather than buffering without limit. Tasks are
+   * rejected once a shard is shut down, since they would otherwise be queued but never run, and
+   * leave the report waiting on them (holding the validator lock) forever.
+   */
+  private List<ExecutorService> makeShards() {
+    outputLogger.info("Using %d validation worker threads", validationThreads);
+    List<ExecutorService> shards = new ArrayList<>();
+    for (int i = 0; i < validationThreads; i++) {
+      shards.add(new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(SHARD_QUEUE_SIZE), (task, shard) -> {
+            if (shard.isShutdown()) {
+              throw new RejectedExecutionException("Validation shard is shut down");
+            }
+            try {
+              shard.getQueue().put(task);
+            } catch (InterruptedException e) {
+              throw new RejectedExecutionException("Interrupted queueing validation task", e);
+            }
+          }));
+    }
+    return shards;
+  }
+
+  private void drainShards(List<ExecutorService> shards) {
+    shards.forEach(ExecutorService::shutdown);
+    try {
+      for (ExecutorService shard : shards) {
+        if (!shard.awaitTermination(SHARD_DRAIN_SEC, TimeUnit.SECONDS)) {
+          outputLogger.warn("Timeout waiting for validation shard to drain");
+          shard.shutdownNow();
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException("While draining validation shards", e);
+    }
+  }
+
+  private static int shardIndex(String deviceId, List<ExecutorService> shards) {
+    return Math.floorMod(Objects.hashCode(deviceId), shards.size());
+  }
+
+  private void dispatchMessage(MessageBundle message) {
+    List<ExecutorService> shards = validationShards;
+    if (shards == null) {
+      validateMessage(message);
+    } else if (message != null) {
+      String deviceId = message.attributes.get("deviceId");
+      shards.get(shardIndex(deviceId, shards)).execute(() -> {
+        try {
+          processMessage(message);
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      });
     }
   }
 
@@ -628,6 +739,7 @@ public class Validator {
     Metadata metadata = convertTo(Metadata.class,
         requireNonNull(messageObject, "messageObject is null"));
     ReportingDevice device = reportingDevices.computeIfAbsent(deviceId, this::newReportingDevice);
+    dirtyDevices.add(deviceId);
 
     if (catchToNull(() -> metadata.cloud.operation) == ModelOperation.DELETE) {
       reportingDevices.remove(deviceId);
@@ -641,6 +753,10 @@ public class Validator {
   }
 
   protected synchronized void validateMessage(MessageBundle message) {
+    processMessage(message);
+  }
+
+  private void processMessage(MessageBundle message) {
     ifNotNullThen(message, bundle -> {
       Object object = ofNullable((Object) bundle.message).orElse(bundle.rawMessage);
       if (!handleSystemMessage(bundle.attributes, object)
@@ -679,12 +795,18 @@ public class Validator {
     }
   }
 
-  private void validateMessage(JsonSchema schema, Object message) throws Exception {
-    ProcessingReport report = schema.validate(OBJECT_MAPPER.valueToTree(message), true);
+  private void validateMessage(String schemaName, JsonNode message) throws Exception {
+    ProcessingReport report = schemaRegistry.validate(schemaName, message);
     ifTrueThen(!report.isSuccess(),
         () -> ifNotNullThrow(MessageValidator.fromProcessingReport(report)));
   }
 
+  private static JsonNode attributesNode(Map<String, String> attributes) {
+    ObjectNode attributesNode = OBJECT_MAPPER.createObjectNode();
+    attributes.forEach(attributesNode::put);
+    return attributesNode;
+  }
+
   private Instant getInstant(Object msgObject, Map<String, String> attributes) {
     if (msgObject instanceof Map) {
       Map<String, Object> mapped = mapCast(msgObject);
@@ -704,6 +826,7 @@ public class Validator {
     }
 
     ReportingDevice device = reportingDevices.computeIfAbsent(deviceId, this::newReportingDevice);
+    dirtyDevices.add(deviceId);
     device.clearMessageEntries();
 
     String schemaName = messageSchema(attributes);
@@ -721,13 +844,13 @@ public class Validator {
         return null;
       }
 
-      writeDeviceOutCapture(messageObj, attributes, deviceId, schemaName);
+      byte[] captured = writeDeviceOutCapture(messageObj, attributes, deviceId, schemaName);
 
       String subFolder = attributes.get(SUBFOLDER_PROPERTY_KEY);
       boolean processSchema = !IGNORE_FOLDERS.contains(subFolder);
 
       try {
-        if (processSchema && !schemaMap.containsKey(schemaName)) {
+        if (processSchema && !schemaRegistry.hasSchema(schemaName)) {
           throw new IllegalArgumentException(format(SCHEMA_SKIP_FORMAT, schemaName, deviceId));
         }
       } catch (Exception e) {
@@ -754,9 +877,8 @@ public class Validator {
       validateDeviceMessage(device, message, attributes);
 
       if (message.containsKey(UPGRADED_FROM)) {
-        File jsonFile = getDeviceOutCaptureFile(deviceId, schemaName, false);
-        File origFile = getDeviceOutCaptureFile(deviceId, schemaName, true);
-        jsonFile.renameTo(origFile);
+        // Keep the original as captured, and replace it with the upgraded version.
+        captureWriter.write(getDeviceOutCaptureFile(deviceId, schemaName, true), captured);
         writeDeviceOutCapture(message, attributes, deviceId, schemaName);
       }
 
@@ -801,16 +923,16 @@ public class Validator {
     // Assume the attributes know what they're doing when the schema name is provided explicitly.
     if (!attributes.containsKey(SCHEMA_NAME_KEY)) {
       try {
-        validateMessage(schemaMap.get(ENVELOPE_SCHEMA_ID), (Object) attributes);
+        validateMessage(ENVELOPE_SCHEMA_ID, attributesNode(attributes));
       } catch (Exception e) {
         outputLogger.error("Error validating attributes: " + friendlyStackTrace(e));
         device.addError(e, attributes, Category.VALIDATION_DEVICE_RECEIVE);
       }
     }
 
-    if (schemaMap.containsKey(schemaName) && shouldValidateMessage(attributes)) {
+    if (schemaRegistry.hasSchema(schemaName) && shouldValidateMessage(attributes)) {
       try {
-        validateMessage(schemaMap.get(schemaName), message);
+        validateMessage(schemaName, OBJECT_MAPPER.<JsonNode>valueToTree(message));
       } catch (Exception e) {
         outputLogger.error("Error validating schema %s: %s", schemaName, friendlyStackTrace(e));
         device.addError(e, attributes, Category.VALIDATION_DEVICE_SCHEMA);
@@ -909,10 +1031,12 @@ public class Validator {
     }
   }
 
-  private synchronized void sendValidationMessage(String deviceId, Object message, String topic) {
+  private void sendValidationMessage(String deviceId, Object message, String topic) {
     try {
       String messageString = OBJECT_MAPPER.writeValueAsString(message);
-      dataSinks.forEach(sink -> sink.publish(deviceId, topic, messageString));
+      synchronized (sinkLock) {
+        dataSinks.forEach(sink -> sink.publish(deviceId, topic, messageString));
+      }
     } catch (Exception e) {
       throw new RuntimeException("While sending validation event for " + deviceId, e);
     }
@@ -926,13 +1050,18 @@ public class Validator {
         key -> new AtomicInteger());
     int index = messageIndex.incrementAndGet();
     String filename = format("%03d_%s.json", index, typeFolderPairKey(type, folder));
-    File deviceDir = new File(traceDir, ofNullable(deviceId).orElse(REGISTRY_DEVICE_DEFAULT));
-    File messageFile = new File(deviceDir, filename);
+    String devicePath = ofNullable(deviceId).orElse(REGISTRY_DEVICE_DEFAULT);
+    File messageFile = new File(new File(traceDir, devicePath), filename);
     try {
-      deviceDir.mkdir();
       String timestamp = isoConvert(getInstant(message, attributes));
       outputLogger.debug("Capture %s at %s for %s", filename, timestamp, deviceId);
-      OBJECT_MAPPER.writeValue(messageFile, message);
+      if (captureWriter.hasCaptureLog()) {
+        Map<String, Object> record = ImmutableMap.of(CAPTURE_FILE_KEY,
+            devicePath + "/" + filename, CAPTURE_MESSAGE_KEY, message);
+        captureWriter.append((stringifyTerse(record) + "\n").getBytes());
+      } else {
+        captureWriter.write(messageFile, OBJECT_MAPPER.writeValueAsBytes(message));
+      }
     } catch (Exception e) {
       throw new RuntimeException("While writing message file " + messageFile.getAbsolutePath(), e);
     }
@@ -969,37 +1098,40 @@ public class Validator {
     return !isConfig;
   }
 
-  private void writeDeviceOutCapture(Object message, Map<String, String> attributes,
+  /**
+   * Queue up the out files for a device message, returning the captured message content. The
+   * content is serialized here, since the message itself may be modified after this returns.
+   */
+  private byte[] writeDeviceOutCapture(Object message, Map<String, String> attributes,
       String deviceId, String schemaName) throws IOException {
 
     File messageFile = getDeviceOutCaptureFile(deviceId, schemaName, false);
 
+    final byte[] captured;
     if (message instanceof Map) {
       Map<String, Object> messageMap = mapCast(message);
       // OBJECT_MAPPER can't handle an Exception class object, so do a swap-and-restore.
       Exception saved = (Exception) messageMap.get(EXCEPTION_KEY);
       messageMap.put(EXCEPTION_KEY, ifNotNullGet(saved, GeneralUtils::friendlyStackTrace));
-      OBJECT_MAPPER.writeValue(messageFile, messageMap);
+      captured = OBJECT_MAPPER.writeValueAsBytes(messageMap);
       messageMap.put(EXCEPTION_KEY, saved);
     } else {
-      OBJECT_MAPPER.writeValue(messageFile, message);
+      captured = OBJECT_MAPPER.writeValueAsBytes(message);
     }
+    captureWriter.write(messageFile, captured);
 
-    File deviceDir = makeDeviceDir(deviceId);
-    File attributesFile = new File(deviceDir, schemaName + ATTRIBUTE_SUFFIX);
-    OBJECT_MAPPER.writeValue(attributesFile, attributes);
+    File attributesFile = new File(getDeviceDir(deviceId), schemaName + ATTRIBUTE_SUFFIX);
+    captureWriter.write(attributesFile, OBJECT_MAPPER.writeValueAsBytes(attributes));
+    return captured;
   }
 
   private File getDeviceOutCaptureFile(String deviceId, String schemaName, boolean orig) {
-    File deviceDir = makeDeviceDir(deviceId);
     String suffix = orig ? ORIG_SUFFIX : JSON_SUFFIX;
-    return new File(deviceDir, schemaName + suffix);
+    return new File(getDeviceDir(deviceId), schemaName + suffix);
   }
 
-  private File makeDeviceDir(String deviceId) {
-    File deviceDir = new File(outBaseDir, format(DEVICE_FILE_FORMAT, deviceId));
-    deviceDir.mkdirs();
-    return deviceDir;
+  private File getDeviceDir(String deviceId) {
+    return new File(outBaseDir, format(DEVICE_FILE_FORMAT, deviceId));
   }
 
   private String messageSchema(Map<String, String> attributes) {
@@ -1024,6 +1156,8 @@ public class Validator {
   private synchronized void processValidationReport() {
     try {
       System.err.println(validationStats.getMessage());
+      schemaRegistry.getTimingSummary().forEach(
+          (schemaName, timing) -> outputLogger.debug("Schema %s: %s", schemaName, timing));
       processValidationReportRaw();
     } catch (Exception e) {
       e.printStackTrace();
@@ -1031,87 +1165,150 @@ public class Validator {
   }
 
   private void processValidationReportRaw() {
-    ValidationSummary summary = new ValidationSummary();
-    Map<String, ValidationState> summaries = new HashMap<>();
+    Instant now = getNow();
+    Collection<String> targets = targetDevices.isEmpty() ? expectedDevices : targetDevices;
+    Set<String> dueDevices = takeDueDevices(now);
+    try {
+      reportDevices(dueDevices, targets, now).forEach(this::applyDeviceReport);
+    } catch (RuntimeException e) {
+      // Keep the devices around for the next report, rather than silently dropping them.
+      dirtyDevices.addAll(dueDevices);
+      throw e;
+    }
 
+    ValidationSummary summary = new ValidationSummary();
     summary.extra_devices = new ArrayList<>(extraDevices);
+    summary.correct_devices = new ArrayList<>(correctDevices);
+    summary.error_devices = new ArrayList<>(errorDevices);
+    summary.missing_devices = new ArrayList<>(targets);
+    summary.missing_devices.removeAll(errorDevices);
+    summary.missing_devices.removeAll(correctDevices);
 
-    summary.correct_devices = new ArrayList<>();
-    summary.error_devices = new ArrayList<>();
+    System.err.println("Updating validation reports to " + outBaseDir.getAbsolutePath());
+    sendValidationReport(makeValidationReport(summary, new TreeMap<>(deviceEvents)));
+    sendDeviceValidationReports();
+  }
 
-    Map<String, DeviceValidationEvents> devices = new TreeMap<>();
-    Collection<String> targets = targetDevices.isEmpty() ? expectedDevices : targetDevices;
-    for (String deviceId : reportingDevices.keySet()) {
-      ReportingDevice deviceInfo = reportingDevices.get(deviceId);
-      ValidationState deviceState = summaries.computeIfAbsent(deviceId,
-          id -> makeDeviceValidationState(deviceInfo));
-      deviceInfo.expireEntries(getNow());
-      boolean expected = targets.contains(deviceId);
-      if (deviceInfo.hasErrors()) {
-        DeviceValidationEvents event = getValidationEvents(devices, deviceInfo);
-        deviceState.last_updated = event.last_seen;
-        event.status = ReportingDevice.getSummaryEntry(deviceInfo.getErrors(null, null));
-        if (expected) {
-          summary.error_devices.add(deviceId);
-        } else {
-          event.status.category = Category.VALIDATION_DEVICE_EXTRA;
-          event.status.level = Level.WARNING.value();
-        }
-      } else if (deviceInfo.seenRecently(getNow())) {
-        DeviceValidationEvents event = getValidationEvents(devices, deviceInfo);
-        event.status = ReportingDevice.getSummaryEntry(deviceInfo.getErrors(null, null));
-        if (expected) {
-          summary.correct_devices.add(deviceId);
-        } else {
-          event.status.category = Category.VALIDATION_DEVICE_EXTRA;
-          event.status.level = Level.WARNING.value();
-        }
+  /**
+   * Collect the devices whose status needs recomputing: those touched since the last report, and
+   * those with errors or a last-seen time that have since aged out.
+   */
+  private Set<String> takeDueDevices(Instant now) {
+    Set<String> dueDevices = new HashSet<>();
+    for (String deviceId : dirtyDevices) {
+      dirtyDevices.remove(deviceId);
+      dueDevices.add(deviceId);
+    }
+    while (!statusDeadlines.isEmpty() && !statusDeadlines.peek().deadline().isAfter(now)) {
+      DeviceDeadline due = statusDeadlines.poll();
+      if (scheduledDeadlines.remove(due.deviceId(), due.deadline())) {
+        dueDevices.add(due.deviceId());
       }
     }
+    return dueDevices;
+  }
 
-    summary.missing_devices = new ArrayList<>(targets);
-    summary.missing_devices.removeAll(summary.error_devices);
-    summary.missing_devices.removeAll(summary.correct_devices);
-
-    System.err.println("Updating validation reports to " + outBaseDir.getAbsolutePath());
-    sendValidationReport(makeValidationReport(summary, devices));
-    sendDeviceValidationReports(summaries);
+  /**
+   * Recompute the status of the given devices. Each shard reports on its own devices, so device
+   * state is only read by its own thread.
+   */
+  private List<DeviceReport> reportDevices(Set<String> deviceIds, Collection<String> targets,
+      Instant now) {
+    List<ExecutorService> shards = validationShards;
+    if (shards == null) {
+      return deviceIds.stream().map(id -> reportDevice(id, targets, now)).toList();
+    }
+    List<Future<List<DeviceReport>>> futures = new ArrayList<>();
+    deviceIds.stream().collect(Collectors.groupingBy(id -> shardIndex(id, shards))).forEach(
+        (shard, ids) -> futures.add(shards.get(shard).submit(
+            () -> ids.stream().map(id -> reportDevice(id, targets, now)).toList())));
+    List<DeviceReport> reports = new ArrayList<>();
+    try {
+      for (Future<List<DeviceReport>> future : futures) {
+        reports.addAll(future.get());
+      }
+    } catch (Exception e) {
+      throw new RuntimeException("While collecting shard validation reports", e);
+    }
+    return reports;
+  }
+
+  private DeviceReport reportDevice(String deviceId, Collection<String> targets, Instant now) {
+    ReportingDevice deviceInfo = reportingDevices.get(deviceId);
+    if (deviceInfo == null) {
+      return new DeviceReport(deviceId, null, false, false, null, null);
+    }
+    deviceInfo.expireEntries(now);
+    boolean expected = targets.contains(deviceId);
+    boolean hasErrors = deviceInfo.hasErrors();
+    DeviceValidationEvents event = null;
+    if (hasErrors || deviceInfo.seenRecently(now)) {
+      event = new DeviceValidationEvents();
+      event.last_seen = deviceInfo.getLastSeen();
+      event.status = ReportingDevice.getSummaryEntry(deviceInfo.getErrors(null, null));
+      if (!expected) {
+        event.status.category = Category.VALIDATION_DEVICE_EXTRA;
+        event.status.level = Level.WARNING.value();
+      }
+    }
+    return new DeviceReport(deviceId, event, expected && hasErrors,
+        expected && !hasErrors && event != null, deviceInfo.getLastSeen(),
+        deviceInfo.getStatusDeadline(now));
   }
 
-  private synchronized void sendDeviceValidationReports(Map<String, ValidationState> summaries) {
-    if (summaryDevices.isEmpty()) {
-      List<String> keys = summaries.entrySet().stream()
-          .filter(entry -> entry.getValue().last_updated.after(START_TIME))
-          .map(Entry::getKey).toList();
-      summaryDevices.addAll(keys);
+  /**
+   * Fold a recomputed device status into the maintained summary, and queue a device validation
+   * state update if its last-seen time has moved on.
+   */
+  private void applyDeviceReport(DeviceReport report) {
+    String deviceId = report.deviceId();
+    errorDevices.remove(deviceId);
+    correctDevices.remove(deviceId);
+    deviceEvents.remove(deviceId);
+    DeviceReport previous = report.lastSeen() == null ? deviceReports.remove(deviceId)
+        : deviceReports.put(deviceId, report);
+    if (report.lastSeen() == null) {
+      scheduledDeadlines.remove(deviceId);
+      summaryDevices.remove(deviceId);
+      return;
+    }
+    ifNotNullThen(report.event(), event -> deviceEvents.put(deviceId, event));
+    ifTrueThen(report.error(), () -> errorDevices.add(deviceId));
+    ifTrueThen(report.correct(), () -> correctDevices.add(deviceId));
+
+    Instant deadline = report.deadline();
+    Instant scheduled = scheduledDeadlines.get(deviceId);
+    if (deadline != null && (scheduled == null || deadline.isBefore(scheduled))) {
+      scheduledDeadlines.put(deviceId, deadline);
+      statusDeadlines.add(new DeviceDeadline(deadline, deviceId));
+    }
+
+    Date lastSeen = report.lastSeen();
+    if (lastSeen.after(START_TIME)
+        && (previous == null || !lastSeen.equals(previous.lastSeen()))) {
+      summaryDevices.add(deviceId);
     }
+  }
+
+  private synchronized void sendDeviceValidationReports() {
     long batchSize = reportingDelaySec * REPORTS_PER_SEC;
     List<String> sendList = summaryDevices.stream().limit(batchSize).toList();
     System.err.printf("Sending %d device validation state updates out of an available %d%n",
         sendList.size(), summaryDevices.size());
     sendList.forEach(id -> {
-      sendValidationReport(id, summaries.get(id));
+      sendValidationReport(id, makeDeviceValidationState(deviceReports.get(id).lastSeen()));
       summaryDevices.remove(id);
     });
   }
 
-  private static ValidationState makeDeviceValidationState(ReportingDevice deviceInfo) {
+  private static ValidationState makeDeviceValidationState(Date lastSeen) {
     ValidationState validationState = new ValidationState();
     validationState.version = UDMI_VERSION;
     validationState.timestamp = GeneralUtils.getNow();
-    validationState.last_updated = deviceInfo.getLastSeen();
+    validationState.last_updated = lastSeen;
     return validationState;
   }
 
-  private DeviceValidationEvents getValidationEvents(Map<String, DeviceValidationEvents> devices,
-      ReportingDevice deviceInfo) {
-    DeviceValidationEvents deviceValidationEvents = devices.computeIfAbsent(
-        deviceInfo.getDeviceId(),
-        key -> new DeviceValidationEvents());
-    deviceValidationEvents.last_seen = deviceInfo.getLastSeen();
-    return deviceValidationEvents;
-  }
-
   private Instant getNow() {
     return mockNow == null ? Instant.now() : mockNow;
   }
@@ -1150,7 +1347,8 @@ public class Validator {
         new ErrorMap(format(SCHEMA_VALIDATION_FORMAT, schemaFiles.size()));
     for (File schemaFile : schemaFiles) {
       try {
-        JsonSchema schema = getSchema(schemaFile);
+        JsonSchema schema = SchemaRegistry.forRoot(ofNullable(schemaRoot)
+            .orElse(schemaFile.getAbsoluteFile().getParentFile())).compile(schemaFile);
         String fileName = schemaFile.getName();
         ErrorMap validateExceptions =
             new ErrorMap(format(TARGET_VALIDATION_FORMAT, targetFiles.size(), fileName));
@@ -1189,20 +1387,6 @@ public class Validator {
     }
   }
 
-  private JsonSchema getSchema(File schemaFile) {
-    try (InputStream schemaStream = Files.newInputStream(schemaFile.toPath())) {
-      return JsonSchemaFactory.newBuilder()
-          .setLoadingConfiguration(
-              LoadingConfiguration.newBuilder()
-                  .addScheme("file", new RelativeDownloader())
-                  .freeze())
-          .freeze()
-          .getJsonSchema(OBJECT_MAPPER.readTree(schemaStream));
-    } catch (Exception e) {
-      throw new RuntimeException("While loading schema " + schemaFile.getAbsolutePath(), e);
-    }
-  }
-
   private List<File> makeFileList(String prefix, String spec) {
     return makeFileList(prefix, new File(spec));
   }
@@ -1327,6 +1511,19 @@ public class Validator {
     public String timestamp;
   }
 
+  /**
+   * Recomputed validation status of a single device, with a null lastSeen for a removed device.
+   */
+  private record DeviceReport(String deviceId, DeviceValidationEvents event, boolean error,
+      boolean correct, Date lastSeen, Instant deadline) {
+  }
+
+  /**
+   * Time at which a device's status is due to be recomputed, even without any new messages.
+   */
+  private record DeviceDeadline(Instant deadline, String deviceId) {
+  }
+
   /**
    * Container for validation errors of a message.
    */
@@ -1345,24 +1542,4 @@ public class Validator {
       put(TIMESTAMP_KEY, timestamp);
     }
   }
-
-  class RelativeDownloader implements URIDownloader {
-
-    private static final String FILE_URL_PREFIX = "file:";
-
-    @Override
-    public InputStream fetch(URI source) {
-      String url = source.toString();
-      try {
-        if (!url.startsWith(FILE_URL_PREFIX)) {
-          throw new IllegalStateException("Expected path to start with " + FILE_URL_PREFIX);
-        }
-        String newUrl =
-            FILE_URL_PREFIX + new File(schemaRoot, url.substring(FILE_URL_PREFIX.length()));
-        return (InputStream) (new URL(newUrl)).getContent();
-      } catch (Exception e) {
-        throw new RuntimeException("While loading URL " + url, e);
-      }
-    }
-  }
 }
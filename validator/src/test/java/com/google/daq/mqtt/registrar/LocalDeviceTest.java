@@ -8,12 +8,11 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
-import com.github.fge.jsonschema.main.JsonSchema;
 import com.google.daq.mqtt.registrar.LocalDevice.DeviceKind;
 import com.google.udmi.util.JsonUtil;
+import com.google.udmi.util.SchemaRegistry;
 import com.google.udmi.util.SiteModel;
 import java.io.File;
-import java.util.Map;
 import org.junit.Test;
 import udmi.schema.Metadata;
 
@@ -22,7 +21,7 @@ import udmi.schema.Metadata;
  */
 public class LocalDeviceTest {
 
-  private static final Map<String, JsonSchema> SCHEMAS = null;
+  private static final SchemaRegistry SCHEMAS = null;
   private static final String EMPTY_DEFAULTS_SITE = "../tests/sites/discovery";
   private static final String POPULATED_DEFAULTS_SITE = "../tests/sites/missing";
   private static final String DEVICE_ID = "GAT-123";
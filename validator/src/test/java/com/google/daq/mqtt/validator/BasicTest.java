@@ -5,6 +5,7 @@ import static com.google.udmi.util.Common.TIMESTAMP_KEY;
 import static com.google.udmi.util.JsonUtil.getInstant;
 import static com.google.udmi.util.JsonUtil.isoConvert;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static udmi.schema.Level.INFO;
@@ -13,6 +14,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.daq.mqtt.TestCommon;
 import com.google.daq.mqtt.validator.Validator.MessageBundle;
 import com.google.udmi.util.SiteModel;
+import java.io.File;
 import java.time.Instant;
 import java.util.Date;
 import java.util.List;
@@ -52,6 +54,8 @@ public class BasicTest extends TestBase {
       "-s", TestCommon.SITE_DIR);
   private static final String FLUX_READING = "FLUX_READING";
   private static final long TWO_SECONDS_MS = 1000 * 2;
+  private static final int STATUS_THRESHOLD_SEC = 60 * 60;
+  private static final String OTHER_DEVICE_ID = "AHU-22";
   private final Validator validator = new Validator(TEST_ARGS).prepForMock();
 
   @Test
@@ -155,6 +159,80 @@ public class BasicTest extends TestBase {
     assertEquals("device last seen", isoConvert(Date.from(parse)), isoConvert(lastSeen));
   }
 
+  @Test
+  public void errorToCorrect() {
+    validator.validateMessage(getMessageBundle(EVENTS_SUBTYPE, POINTSET_SUBFOLDER,
+        new PointsetEvents()));
+    assertEquals("error devices", List.of(TestCommon.DEVICE_ID),
+        getValidationReport().summary.error_devices);
+
+    advanceClockSec(STATUS_THRESHOLD_SEC + 10);
+
+    validator.validateMessage(getMessageBundle(EVENTS_SUBTYPE, POINTSET_SUBFOLDER,
+        basePointsetEvents()));
+    ValidationState report = getValidationReport();
+    assertEquals("no error devices", 0, report.summary.error_devices.size());
+    assertTrue("correct device", report.summary.correct_devices.contains(TestCommon.DEVICE_ID));
+    assertEquals("report status level", (Object) INFO.value(),
+        report.devices.get(TestCommon.DEVICE_ID).status.level);
+  }
+
+  @Test
+  public void statusDeadlineExpiry() {
+    validator.validateMessage(getMessageBundle(EVENTS_SUBTYPE, POINTSET_SUBFOLDER,
+        new PointsetEvents()));
+    assertEquals("error devices", List.of(TestCommon.DEVICE_ID),
+        getValidationReport().summary.error_devices);
+
+    advanceClockSec(STATUS_THRESHOLD_SEC + 10);
+
+    // Only another device reports, so the first device has to be picked up by its deadline.
+    MessageBundle otherBundle = getMessageBundle(EVENTS_SUBTYPE, DISCOVERY_SUBFOLDER,
+        new DiscoveryEvents());
+    otherBundle.attributes.put(DEVICE_ID_KEY, OTHER_DEVICE_ID);
+    validator.validateMessage(otherBundle);
+
+    ValidationState report = getValidationReport();
+    assertFalse("expired error device",
+        report.summary.error_devices.contains(TestCommon.DEVICE_ID));
+    assertFalse("expired correct device",
+        report.summary.correct_devices.contains(TestCommon.DEVICE_ID));
+    assertTrue("missing device", report.summary.missing_devices.contains(TestCommon.DEVICE_ID));
+    assertNull("expired device status", report.devices.get(TestCommon.DEVICE_ID));
+  }
+
+  @Test
+  public void deviceReportResend() throws Exception {
+    resetClockToNow();
+    advanceClockSec(1);
+    File deviceReport = getDeviceReportFile(TestCommon.DEVICE_ID);
+    deviceReport.delete();
+
+    MessageBundle eventBundle = getMessageBundle(EVENTS_SUBTYPE, POINTSET_SUBFOLDER,
+        basePointsetEvents());
+    validator.validateMessage(eventBundle);
+    assertEquals("device last updated", eventBundle.message.get(TIMESTAMP_KEY),
+        isoConvert(readDeviceReport(deviceReport).last_updated));
+
+    // A config message is not from the device, so leaves the last seen time (and report) as is.
+    deviceReport.delete();
+    advanceClockSec(10);
+    validator.validateMessage(getMessageBundle(CONFIG_SUBTYPE, UPDATE_SUBFOLDER, new Config()));
+    assertFalse("unexpected device report resend", deviceReport.exists());
+
+    advanceClockSec(10);
+    MessageBundle discoveryBundle = getMessageBundle(EVENTS_SUBTYPE, DISCOVERY_SUBFOLDER,
+        new DiscoveryEvents());
+    validator.validateMessage(discoveryBundle);
+    assertEquals("device last updated", discoveryBundle.message.get(TIMESTAMP_KEY),
+        isoConvert(readDeviceReport(deviceReport).last_updated));
+  }
+
+  private ValidationState readDeviceReport(File deviceReport) throws Exception {
+    assertTrue("missing device report " + deviceReport.getAbsolutePath(), deviceReport.exists());
+    return TestCommon.OBJECT_MAPPER.readValue(deviceReport, ValidationState.class);
+  }
+
   @Test
   public void deviceMetadataUpdate() {
     Metadata messageObject = new Metadata();
@@ -0,0 +1,47 @@
+package com.google.daq.mqtt.validator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Unit tests for the background capture writer.
+ */
+public class CaptureWriterTest {
+
+  private static final int DEVICE_COUNT = 10;
+  private static final int WRITE_COUNT = 1000;
+
+  @Test
+  public void coalescedWrites() throws Exception {
+    File outDir = Files.createTempDirectory("capture_writer").toFile();
+    CaptureWriter captureWriter = new CaptureWriter();
+    for (int i = 0; i < WRITE_COUNT; i++) {
+      File target = new File(outDir, "devices/AHU-" + (i % DEVICE_COUNT) + "/state.json");
+      captureWriter.write(target, Integer.toString(i).getBytes());
+    }
+    captureWriter.flush();
+    for (int device = 0; device < DEVICE_COUNT; device++) {
+      File target = new File(outDir, "devices/AHU-" + device + "/state.json");
+      assertEquals("latest content", Integer.toString(WRITE_COUNT - DEVICE_COUNT + device),
+          Files.readString(target.toPath()));
+    }
+  }
+
+  @Test
+  public void captureLog() throws Exception {
+    File traceDir = Files.createTempDirectory("capture_log").toFile();
+    CaptureWriter captureWriter = new CaptureWriter();
+    captureWriter.setCaptureLog(traceDir);
+    for (int i = 0; i < WRITE_COUNT; i++) {
+      captureWriter.append(("{\"index\":" + i + "}\n").getBytes());
+    }
+    captureWriter.close();
+    List<String> records = Files.readAllLines(new File(traceDir, "capture_0000.log").toPath());
+    assertEquals("capture records", WRITE_COUNT, records.size());
+    assertEquals("last record", "{\"index\":999}", records.get(WRITE_COUNT - 1));
+  }
+}
@@ -0,0 +1,119 @@
+package com.google.daq.mqtt.validator;
+
+import static com.google.daq.mqtt.validator.MessageReadingClient.MSG_SOURCE;
+import static com.google.udmi.util.Common.DEVICE_ID_KEY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.daq.mqtt.TestCommon;
+import com.google.daq.mqtt.util.MessagePublisher.QuerySpeed;
+import com.google.daq.mqtt.validator.Validator.MessageBundle;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import org.junit.Test;
+
+/**
+ * Tests for the replay order of message traces.
+ */
+public class MessageReadingClientTest {
+
+  private static final String TRACE_FILE_SUFFIX = ".json";
+
+  @Test
+  public void simpleTraceOrder() {
+    assertReplayOrder(PlaybackTest.SIMPLE_TRACE_DIR, 14);
+  }
+
+  @Test
+  public void lengthyTraceOrder() {
+    assertReplayOrder(PlaybackTest.LENGTHY_TRACE_DIR, 3);
+  }
+
+  private void assertReplayOrder(String traceDir, int messageCount) {
+    List<MessageBundle> replayed = replayTrace(traceDir);
+    assertEquals("replayed message count", messageCount, replayed.size());
+
+    Map<String, List<String>> deviceSources = new TreeMap<>();
+    Map<String, Deque<String>> deviceTimestamps = new TreeMap<>();
+    replayed.forEach(bundle -> {
+      String deviceId = bundle.attributes.get(DEVICE_ID_KEY);
+      deviceSources.computeIfAbsent(deviceId, id -> new ArrayList<>())
+          .add(bundle.attributes.get(MSG_SOURCE));
+      deviceTimestamps.computeIfAbsent(deviceId, id -> new ArrayDeque<>()).add(bundle.timestamp);
+    });
+    assertEquals("per-device trace files", traceFiles(traceDir), deviceSources);
+
+    List<String> expected = scanOrder(deviceSources, deviceTimestamps);
+    List<String> actual = replayed.stream().map(this::messageKey).toList();
+    assertEquals("replay order", expected, actual);
+  }
+
+  private List<MessageBundle> replayTrace(String traceDir) {
+    MessageReadingClient client = new MessageReadingClient(TestCommon.REGISTRY_ID, traceDir);
+    List<MessageBundle> replayed = new ArrayList<>();
+    try {
+      while (client.isActive()) {
+        replayed.add(client.takeNextMessage(QuerySpeed.QUICK));
+      }
+    } finally {
+      client.close();
+    }
+    return replayed;
+  }
+
+  private Map<String, List<String>> traceFiles(String traceDir) {
+    File devicesDir = new File(traceDir, "devices");
+    Map<String, List<String>> traceFiles = new TreeMap<>();
+    Arrays.stream(Objects.requireNonNull(devicesDir.list())).forEach(deviceId -> {
+      List<String> files = Arrays.stream(
+              Objects.requireNonNull(new File(devicesDir, deviceId).list()))
+          .filter(filename -> filename.endsWith(TRACE_FILE_SUFFIX))
+          .sorted()
+          .toList();
+      assertFalse("empty device trace " + deviceId, files.isEmpty());
+      traceFiles.put(deviceId, files);
+    });
+    return traceFiles;
+  }
+
+  /**
+   * Reference order, from the previous replay implementation: repeatedly scan the next timestamp
+   * of every device, and take the earliest. Scanning in device id order (and only moving on for a
+   * strictly earlier timestamp) breaks ties by device id.
+   */
+  private List<String> scanOrder(Map<String, List<String>> deviceSources,
+      Map<String, Deque<String>> deviceTimestamps) {
+    Map<String, Deque<String>> remainingSources = new TreeMap<>();
+    deviceSources.forEach((deviceId, sources) ->
+        remainingSources.put(deviceId, new ArrayDeque<>(sources)));
+    List<String> order = new ArrayList<>();
+    while (!deviceTimestamps.isEmpty()) {
+      String nextDevice = null;
+      String nextTimestamp = null;
+      for (Map.Entry<String, Deque<String>> entry : deviceTimestamps.entrySet()) {
+        String deviceTimestamp = entry.getValue().peek();
+        if (nextTimestamp == null || deviceTimestamp.compareTo(nextTimestamp) < 0) {
+          nextDevice = entry.getKey();
+          nextTimestamp = deviceTimestamp;
+        }
+      }
+      deviceTimestamps.get(nextDevice).remove();
+      if (deviceTimestamps.get(nextDevice).isEmpty()) {
+        deviceTimestamps.remove(nextDevice);
+      }
+      order.add(nextDevice + "/" + remainingSources.get(nextDevice).remove());
+    }
+    return order;
+  }
+
+  private String messageKey(MessageBundle bundle) {
+    return bundle.attributes.get(DEVICE_ID_KEY) + "/" + bundle.attributes.get(MSG_SOURCE);
+  }
+}
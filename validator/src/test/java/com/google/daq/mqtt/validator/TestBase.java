@@ -1,5 +1,6 @@
 package com.google.daq.mqtt.validator;
 
+import static com.google.daq.mqtt.util.FileDataSink.REPORT_DEVICE_FMT;
 import static com.google.daq.mqtt.util.FileDataSink.REPORT_JSON_FILENAME;
 import static com.google.udmi.util.Common.DEVICE_ID_KEY;
 import static com.google.udmi.util.Common.DEVICE_NUM_KEY;
@@ -100,6 +101,10 @@ public class TestBase {
     }
   }
 
+  protected File getDeviceReportFile(String deviceId) {
+    return new File(REPORT_BASE, String.format(REPORT_DEVICE_FMT, deviceId));
+  }
+
   protected ValidationEvents getValidationResult(String deviceId, String subType,
       String subFolder) {
     try {
@@ -112,7 +117,11 @@ public class TestBase {
   }
 
   protected void advanceClockSec(int seconds) {
-    testTime.addAndGet(seconds);
+    testTime.addAndGet(seconds * 1000L);
+  }
+
+  protected void resetClockToNow() {
+    testTime.set(System.currentTimeMillis());
   }
 
   private Map<String, String> messageAttributes(String subType, String subFolder) {
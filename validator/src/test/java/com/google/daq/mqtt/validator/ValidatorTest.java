@@ -0,0 +1,102 @@
+package com.google.daq.mqtt.validator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.daq.mqtt.TestCommon;
+import com.google.daq.mqtt.validator.MessageReadingClient.OutputBundle;
+import com.google.udmi.util.SiteModel;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import udmi.schema.DeviceValidationEvents;
+import udmi.schema.ValidationEvents;
+import udmi.schema.ValidationState;
+
+/**
+ * Tests for validating messages on multiple worker threads, against the serial path.
+ */
+public class ValidatorTest extends TestBase {
+
+  private static final String VALIDATION_EVENT_TOPIC = "validation/events";
+  private static final String VALIDATION_STATE_TOPIC = "validation/state";
+  private static final int SHARDED_THREADS = 4;
+
+  @Test
+  public void shardedTraceMatchesSerial() {
+    List<OutputBundle> serial = validateTrace(1);
+    List<OutputBundle> sharded = validateTrace(SHARDED_THREADS);
+
+    Map<String, List<String>> serialResults = deviceResults(serial);
+    assertFalse("no device results", serialResults.isEmpty());
+    assertEquals("per-device results", serialResults, deviceResults(sharded));
+
+    ValidationState serialReport = finalReport(serial);
+    ValidationState shardedReport = finalReport(sharded);
+    assertEquals("correct devices", serialReport.summary.correct_devices,
+        shardedReport.summary.correct_devices);
+    assertEquals("error devices", serialReport.summary.error_devices,
+        shardedReport.summary.error_devices);
+    assertEquals("extra devices", serialReport.summary.extra_devices,
+        shardedReport.summary.extra_devices);
+    assertEquals("missing devices", serialReport.summary.missing_devices,
+        shardedReport.summary.missing_devices);
+    assertEquals("device statuses", deviceStatuses(serialReport), deviceStatuses(shardedReport));
+  }
+
+  private List<OutputBundle> validateTrace(int threads) {
+    List<String> testArgs = List.of(
+        "-p", SiteModel.MOCK_PROJECT,
+        "-a", TestCommon.SCHEMA_SPEC,
+        "-s", TestCommon.SITE_DIR,
+        "-r", PlaybackTest.SIMPLE_TRACE_DIR,
+        "-j", String.valueOf(threads));
+    Validator validator = new Validator(testArgs).prepForWallClock();
+    validator.messageLoop();
+    return validator.getMessageReadingClient().getOutputMessages();
+  }
+
+  /**
+   * Summarize the validation results of each device, in the order they were sent. Timestamps are
+   * left out, since they come from the wall clock.
+   */
+  private Map<String, List<String>> deviceResults(List<OutputBundle> outputMessages) {
+    return outputMessages.stream()
+        .filter(bundle -> VALIDATION_EVENT_TOPIC.equals(bundle.topic))
+        .collect(Collectors.groupingBy(bundle -> bundle.deviceId, TreeMap::new,
+            Collectors.mapping(bundle -> resultSummary(convert(bundle, ValidationEvents.class)),
+                Collectors.toList())));
+  }
+
+  private String resultSummary(ValidationEvents result) {
+    return String.format("%s/%s %s", result.sub_type, result.sub_folder,
+        result.status == null ? null : result.status.category);
+  }
+
+  private ValidationState finalReport(List<OutputBundle> outputMessages) {
+    List<OutputBundle> reports = outputMessages.stream()
+        .filter(bundle -> VALIDATION_STATE_TOPIC.equals(bundle.topic) && bundle.deviceId == null)
+        .toList();
+    return convert(reports.get(reports.size() - 1), ValidationState.class);
+  }
+
+  private Map<String, String> deviceStatuses(ValidationState report) {
+    return report.devices.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey,
+        entry -> statusCategory(entry.getValue()), (a, b) -> a, TreeMap::new));
+  }
+
+  private String statusCategory(DeviceValidationEvents events) {
+    return events.status == null ? "none" : events.status.category;
+  }
+
+  private <T> T convert(OutputBundle bundle, Class<T> targetClass) {
+    try {
+      String stringValue = TestCommon.OBJECT_MAPPER.writeValueAsString(bundle.message);
+      return TestCommon.OBJECT_MAPPER.readValue(stringValue, targetClass);
+    } catch (Exception e) {
+      throw new RuntimeException("While converting message", e);
+    }
+  }
+}